@@ -0,0 +1,70 @@
+package ra;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Properties;
+import antlr.CommonAST;
+
+// Odds and ends shared by the benchmarks.
+public class BenchmarkSupport {
+
+    // Where the benchmarks find the sample database; "ant bench"
+    // builds it and runs them from the top-level directory:
+    public static File getSampleDb() {
+        return new File(System.getProperty("ra.sampleDb", "sample.db"));
+    }
+
+    // Benchmarks create (and drop) views, so they work on a copy of
+    // the sample database rather than the original:
+    public static File copyToTempFile(File file)
+        throws IOException {
+        File copy = File.createTempFile("ra-bench", ".db");
+        copy.deleteOnExit();
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new FileOutputStream(copy);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return copy;
+    }
+
+    public static DB openSqlite(File dbFile)
+        throws Exception {
+        String url = "jdbc:sqlite:" + dbFile.getPath();
+        Properties props = new Properties();
+        props.setProperty("url", url);
+        return new DB(url, props);
+    }
+
+    // Result output goes nowhere, so that only producing it counts:
+    public static PrintStream nullPrintStream() {
+        return new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+    }
+
+    // Parses a single statement:
+    public static CommonAST parse(String statement)
+        throws Exception {
+        RAParser parser = new RAParser(new RALexer(new StringReader(statement)));
+        parser.start();
+        return (CommonAST)parser.getAST();
+    }
+}
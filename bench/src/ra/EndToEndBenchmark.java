@@ -0,0 +1,80 @@
+package ra;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import antlr.CommonAST;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Evaluating whole queries against (a copy of) sample.db, the way
+// RA.evaluate() does: constructing the tree from the parse tree,
+// validating it (views mode) or compiling it (compile mode),
+// executing it, and cleaning up.  Parsing is left out; see
+// ParseBenchmark.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+
+    protected static final String[] QUERIES = {
+        // A selection:
+        "\\select_{price > 2.5 and beer like 'B%'} Serves;",
+        // Joins:
+        "\\project_{drinker, address} (Frequents \\join_{drinker = name} Drinker) " +
+        "\\join \\project_{drinker, beer} Likes;",
+        // Set operations:
+        "\\project_{name} Bar \\diff (\\project_{bar} Frequents \\intersect \\project_{bar} Serves);",
+    };
+
+    @Param({"select", "join", "setops"})
+    public String query;
+    @Param({"views", "compile"})
+    public String mode;
+
+    protected DB _db;
+    protected CommonAST _ast;
+    protected PrintStream _out;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception {
+        _db = BenchmarkSupport.openSqlite(BenchmarkSupport.copyToTempFile(BenchmarkSupport.getSampleDb()));
+        int i = query.equals("select")? 0 : query.equals("join")? 1 : 2;
+        _ast = BenchmarkSupport.parse(QUERIES[i] + "\n");
+        _out = BenchmarkSupport.nullPrintStream();
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception {
+        _db.close();
+        return;
+    }
+
+    @Benchmark
+    public void evaluate()
+        throws Exception {
+        _db.resetViewNames();
+        RAXNode rax = new RAXConstructor().expr(_ast);
+        try {
+            if (mode.equals("compile")) {
+                rax.compile(_db);
+            } else {
+                rax.validate(_db);
+            }
+            rax.execute(_db, _out);
+        } finally {
+            rax.clean(_db);
+        }
+        return;
+    }
+}
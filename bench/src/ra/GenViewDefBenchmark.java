@@ -0,0 +1,98 @@
+package ra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Generating SQL for deep trees of selections, projections,
+// theta-joins and unions: the view definitions of all nodes (as in
+// the views mode), and the single nested statement of the compile
+// mode (for databases without common table expressions).  The
+// database is only consulted for the schemas of base tables, which
+// are cached after the first time.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GenViewDefBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int depth;
+
+    protected DB _db;
+    protected List<RAXNode> _nodes;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception {
+        _db = BenchmarkSupport.openSqlite(BenchmarkSupport.copyToTempFile(BenchmarkSupport.getSampleDb()));
+        // Works out what generating view definitions relies on
+        // (schemas of base tables, and keys), as validation would,
+        // but without creating the views:
+        RAXNode rax = buildTree(depth);
+        _db.resetViewNames();
+        rax.compileTree(_db, false);
+        _nodes = new ArrayList<RAXNode>();
+        rax.collectPostOrder(_nodes);
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception {
+        _db.close();
+        return;
+    }
+
+    // Returns the total length of the definitions:
+    @Benchmark
+    public long viewDefs()
+        throws Exception {
+        long length = 0;
+        for (RAXNode node : _nodes) {
+            length += node.genViewDef(_db).length();
+        }
+        return length;
+    }
+
+    // Returns the length of the statement:
+    @Benchmark
+    public int compiledQuery()
+        throws Exception {
+        RAXNode rax = buildTree(depth);
+        _db.resetViewNames();
+        rax.compileTree(_db, true);
+        return rax.genQuery(_db).length();
+    }
+
+    protected static RAXNode buildTree(int depth) {
+        RAXNode node = new RAXNode.TABLE("Drinker");
+        for (int i=0; i<depth; i++) {
+            switch (i%4) {
+            case 0:
+                node = new RAXNode.SELECT("name <> 'x" + i + "' AND address IS NOT NULL", node);
+                break;
+            case 1:
+                node = new RAXNode.JOIN("name = bar_name", node,
+                                        new RAXNode.RENAME("bar_name, bar_address", new RAXNode.TABLE("Bar")));
+                break;
+            case 2:
+                node = new RAXNode.PROJECT("name, address", node);
+                break;
+            default:
+                node = new RAXNode.UNION(node, new RAXNode.TABLE("Drinker"));
+                break;
+            }
+        }
+        return node;
+    }
+}
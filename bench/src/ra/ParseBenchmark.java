@@ -0,0 +1,84 @@
+package ra;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import antlr.CommonAST;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Throughput of RALexer, RAParser and RAXConstructor on a large
+// generated script of queries of varying shape and nesting depth,
+// with comments and multi-line operator options thrown in.  Nothing
+// touches the database.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+
+    @Param({"1000"})
+    public int numStatements;
+
+    protected String _script;
+
+    @Setup
+    public void setUp() {
+        _script = generateScript(numStatements);
+        return;
+    }
+
+    // Returns the number of statements parsed:
+    @Benchmark
+    public int parseScript()
+        throws Exception {
+        RAParser parser = new RAParser(new RALexer(new StringReader(_script)));
+        RAXConstructor constructor = new RAXConstructor();
+        int count = 0;
+        while (true) {
+            parser.start();
+            CommonAST ast = (CommonAST)parser.getAST();
+            if (ast.getType() == RALexerTokenTypes.EOF) break;
+            constructor.expr(ast);
+            count++;
+        }
+        return count;
+    }
+
+    public static String generateScript(int numStatements) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<numStatements; i++) {
+            if (i%10 == 0) sb.append("// Statement ").append(i).append("\n");
+            String expr = "Drinker";
+            for (int depth=0; depth<=i%8; depth++) {
+                switch ((i+depth)%6) {
+                case 0:
+                    expr = "\\select_{name <> 'x" + depth + "' and address like '%St%'} " + expr;
+                    break;
+                case 1:
+                    expr = "\\project_{name, address}\n    (" + expr + ")";
+                    break;
+                case 2:
+                    expr = "(" + expr + ") \\join_{name = drinker} Frequents";
+                    expr = "\\project_{name, address} (" + expr + ")";
+                    break;
+                case 3:
+                    expr = "(" + expr + ") \\union Drinker";
+                    break;
+                case 4:
+                    expr = "\\rename_{name, address}\n    (" + expr + ")";
+                    break;
+                default:
+                    expr = "/* not much */ (" + expr + ") \\diff \\select_{\n    address is null\n} Drinker";
+                    break;
+                }
+            }
+            sb.append(expr).append(";\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package ra;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Executing the queries of EndToEndBenchmark through RAEngine, once
+// they have been prepared, and reading their rows; compare with the
+// compile mode there, which also parses, compiles and cleans up each
+// time.  Run with more threads (e.g., -t 8) to see how executions on
+// the pool's connections scale.  The "parameter" query is the
+// selection with its constant turned into a parameter, which is given
+// one of a few values at random each time.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PreparedQueryBenchmark {
+
+    protected static final String PARAMETER_QUERY =
+        "\\select_{price > :price and beer like 'B%'} Serves;";
+    protected static final double[] PRICES = { 2.0, 2.5, 2.75, 3.0 };
+
+    @Param({"select", "join", "setops", "parameter"})
+    public String query;
+
+    protected DB _db;
+    protected RAEngine _engine;
+    protected RAEngine.Query _query;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception {
+        _db = BenchmarkSupport.openSqlite(BenchmarkSupport.copyToTempFile(BenchmarkSupport.getSampleDb()));
+        _engine = new RAEngine(_db);
+        if (query.equals("parameter")) {
+            _query = _engine.prepare(PARAMETER_QUERY);
+        } else {
+            int i = query.equals("select")? 0 : query.equals("join")? 1 : 2;
+            _query = _engine.prepare(EndToEndBenchmark.QUERIES[i]);
+        }
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception {
+        _engine.close();
+        _db.close();
+        return;
+    }
+
+    // Returns the number of rows, so that reading them isn't
+    // optimized away:
+    @Benchmark
+    public long execute()
+        throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        if (query.equals("parameter")) {
+            params.put("price", PRICES[ThreadLocalRandom.current().nextInt(PRICES.length)]);
+        }
+        RAEngine.Rows rows = _query.execute(params);
+        try {
+            while (rows.next() != null) {
+            }
+            return rows.getCount();
+        } finally {
+            rows.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ra;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Reading and printing query results with DB.printResultSet() through
+// the bundled SQLite driver, for a wide result (many columns, few
+// rows) and a long one (few columns, many rows), each with a mix of
+// integer, floating-point, string and NULL values.  The output itself
+// is thrown away.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PrintResultSetBenchmark {
+
+    @Param({"wide", "long"})
+    public String shape;
+
+    protected File _dbFile;
+    protected DB _db;
+    protected PrintStream _out;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception {
+        int numCols = shape.equals("wide")? 200 : 4;
+        int numRows = shape.equals("wide")? 1000 : 100000;
+        // DB registers the driver, but isn't loaded yet:
+        Class.forName("org.sqlite.JDBC");
+        _dbFile = File.createTempFile("ra-bench", ".db");
+        _dbFile.deleteOnExit();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + _dbFile.getPath());
+        try {
+            String create = "CREATE TABLE T(";
+            String insert = "INSERT INTO T VALUES(";
+            for (int j=0; j<numCols; j++) {
+                if (j>0) {
+                    create += ", ";
+                    insert += ", ";
+                }
+                create += "c" + j + " " + ((j%3 == 0)? "INT" : (j%3 == 1)? "DOUBLE" : "VARCHAR(20)");
+                insert += "?";
+            }
+            Statement s = conn.createStatement();
+            s.executeUpdate(create + ")");
+            s.close();
+            conn.setAutoCommit(false);
+            PreparedStatement ps = conn.prepareStatement(insert + ")");
+            for (int i=0; i<numRows; i++) {
+                for (int j=0; j<numCols; j++) {
+                    if ((i+j)%17 == 0) {
+                        ps.setNull(j+1, java.sql.Types.VARCHAR);
+                    } else if (j%3 == 0) {
+                        ps.setInt(j+1, i*numCols + j);
+                    } else if (j%3 == 1) {
+                        ps.setDouble(j+1, (i + j)/7.0);
+                    } else {
+                        ps.setString(j+1, "value " + i + "." + j);
+                    }
+                }
+                ps.executeUpdate();
+            }
+            ps.close();
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+        _db = BenchmarkSupport.openSqlite(_dbFile);
+        _out = BenchmarkSupport.nullPrintStream();
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception {
+        _db.close();
+        _dbFile.delete();
+        return;
+    }
+
+    @Benchmark
+    public void printResultSet()
+        throws Exception {
+        ResultSet rs = _db.openQuery("SELECT * FROM T");
+        try {
+            _db.printResultSet(_out, rs);
+        } finally {
+            _db.closeQuery(rs);
+        }
+        return;
+    }
+}
@@ -0,0 +1,115 @@
+package ra;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Many clients at once, each connecting to an RAServer (over a copy
+// of sample.db, with the default pool of connections), evaluating a
+// couple of queries, and quitting.  Measures the time until the last
+// session is done.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ServerBenchmark {
+
+    protected static final String SCRIPT =
+        "\\project_{name} Drinker;\n" +
+        "Frequents \\join_{drinker = name} Drinker;\n" +
+        "\\quit;\n";
+
+    @Param({"100", "1000"})
+    public int sessions;
+    @Param({"views", "compile"})
+    public String mode;
+
+    protected DB _db;
+    protected RAServer _server;
+    protected ExecutorService _clients;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception {
+        _db = BenchmarkSupport.openSqlite(BenchmarkSupport.copyToTempFile(BenchmarkSupport.getSampleDb()));
+        RA template = new RA(_db);
+        template._mode = mode;
+        _server = new RAServer(template, 0);
+        Thread acceptor = new Thread() {
+                public void run() {
+                    try {
+                        _server.serve();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        _clients = Executors.newFixedThreadPool(sessions);
+        return;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception {
+        _clients.shutdown();
+        _server.close();
+        _db.close();
+        return;
+    }
+
+    // Returns the total number of bytes the sessions got back:
+    @Benchmark
+    public long sessions()
+        throws Exception {
+        final CountDownLatch connected = new CountDownLatch(sessions);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i=0; i<sessions; i++) {
+            results.add(_clients.submit(new Callable<Long>() {
+                    public Long call()
+                        throws Exception {
+                        Socket socket = new Socket("localhost", _server.getPort());
+                        try {
+                            // All sessions start at once:
+                            connected.countDown();
+                            connected.await();
+                            OutputStream out = socket.getOutputStream();
+                            out.write(SCRIPT.getBytes("UTF-8"));
+                            out.flush();
+                            InputStream in = socket.getInputStream();
+                            byte[] buffer = new byte[8192];
+                            long total = 0;
+                            int n;
+                            while ((n = in.read(buffer)) > 0) total += n;
+                            return total;
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                }));
+        }
+        long total = 0;
+        for (Future<Long> result : results) {
+            total += result.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,256 @@
+package ra;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// A small pool of JDBC connections to one database, shared by the DB
+// objects of a session (see DB.newSession()) and by anything else
+// that needs a connection of its own for concurrent work.
+// Connections are checked with Connection.isValid() (or, for drivers
+// that do not implement it, a trivial query) when borrowed after
+// sitting idle, so connections broken by a server restart are
+// replaced transparently.  At most getMaxSize() connections are open
+// at any time; borrowers wait for one to be returned beyond that.
+// Connections idle for longer than the idle timeout are closed, by
+// a daemon timer that checks every so often (see evictionPeriod()),
+// so a pool that goes quiet does not keep them open either.
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5*60*1000;
+    // Connections used more recently than this are not checked again:
+    public static final long VALIDATION_INTERVAL_MILLIS = 1000;
+    public static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    // Idle connections are looked at least this often:
+    public static final long MAX_EVICTION_PERIOD_MILLIS = 60*1000;
+
+    protected static class IdleConnection {
+        protected Connection _conn;
+        protected long _since;
+        public IdleConnection(Connection conn, long since) {
+            _conn = conn;
+            _since = since;
+        }
+    }
+
+    protected String _url;
+    protected Properties _props;
+    protected String _validationQuery;
+    protected int _maxSize;
+    protected long _idleTimeoutMillis;
+    // Most recently returned first:
+    protected LinkedList<IdleConnection> _idle = new LinkedList<IdleConnection>();
+    protected int _numOpen = 0;
+    protected boolean _closed = false;
+    protected TimerTask _evictionTask = null;
+    protected static Timer _timer = null;
+
+    public ConnectionPool(String url, Properties props, String validationQuery) {
+        _url = url;
+        _props = props;
+        _validationQuery = validationQuery;
+        _maxSize = DEFAULT_MAX_SIZE;
+        _idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        scheduleEviction();
+    }
+
+    protected static synchronized Timer getTimer() {
+        if (_timer == null) _timer = new Timer("ra-pool-eviction", true);
+        return _timer;
+    }
+
+    // Connections are closed at most about half the idle timeout
+    // after it has passed:
+    protected long evictionPeriod() {
+        return Math.max(1000, Math.min(_idleTimeoutMillis/2, MAX_EVICTION_PERIOD_MILLIS));
+    }
+
+    protected synchronized void scheduleEviction() {
+        if (_evictionTask != null) _evictionTask.cancel();
+        _evictionTask = null;
+        if (_closed) return;
+        _evictionTask = new TimerTask() {
+                public void run() {
+                    evictIdle();
+                }
+            };
+        long period = evictionPeriod();
+        getTimer().schedule(_evictionTask, period, period);
+        return;
+    }
+
+    public synchronized int getMaxSize() {
+        return _maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        _maxSize = maxSize;
+        notifyAll();
+        return;
+    }
+
+    public synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        _idleTimeoutMillis = idleTimeoutMillis;
+        scheduleEviction();
+        return;
+    }
+
+    public synchronized int getNumOpen() {
+        return _numOpen;
+    }
+
+    // Returns a working connection, in autocommit mode, which must be
+    // given back through release() (or discard(), if it is known to
+    // be broken):
+    public Connection borrow()
+        throws SQLException {
+        while (true) {
+            IdleConnection idle = null;
+            synchronized (this) {
+                evictIdle();
+                while (true) {
+                    if (_closed) throw new SQLException("Connection pool closed");
+                    if (!_idle.isEmpty()) {
+                        idle = _idle.removeFirst();
+                        break;
+                    } else if (_numOpen < _maxSize) {
+                        // Reserve a slot before connecting outside
+                        // the lock:
+                        _numOpen++;
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new SQLException("Interrupted while waiting for a database connection");
+                    }
+                }
+            }
+            if (idle == null) {
+                try {
+                    return DriverManager.getConnection(_url, _props);
+                } catch (SQLException e) {
+                    closed(null);
+                    throw e;
+                }
+            }
+            if (System.currentTimeMillis() - idle._since < VALIDATION_INTERVAL_MILLIS ||
+                isValid(idle._conn)) {
+                return idle._conn;
+            }
+            // Broken (e.g., the server has restarted); try another:
+            discard(idle._conn);
+        }
+    }
+
+    public void release(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            discard(conn);
+            return;
+        }
+        synchronized (this) {
+            if (_closed || _numOpen > _maxSize) {
+                closed(conn);
+                return;
+            }
+            evictIdle();
+            _idle.addFirst(new IdleConnection(conn, System.currentTimeMillis()));
+            notifyAll();
+        }
+        return;
+    }
+
+    public void discard(Connection conn) {
+        closed(conn);
+        return;
+    }
+
+    // Closes a connection that is no longer counted as open:
+    protected void closed(Connection conn) {
+        synchronized (this) {
+            _numOpen--;
+            notifyAll();
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // Simply ignore; we are done with it anyway.
+            }
+        }
+        return;
+    }
+
+    public boolean isValid(Connection conn) {
+        try {
+            if (conn.isClosed()) return false;
+            return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (AbstractMethodError e) {
+            // Driver predates JDBC 4.0.
+        } catch (SQLFeatureNotSupportedException e) {
+            // Driver doesn't implement it.
+        } catch (SQLException e) {
+            // Some older drivers report "not implemented" this way.
+        }
+        try {
+            Statement s = conn.createStatement();
+            try {
+                s.execute(_validationQuery);
+            } finally {
+                s.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        } catch (RuntimeException e) {
+            // Some drivers fail this way on broken connections.
+            return false;
+        }
+    }
+
+    // Closes connections that have been idle for too long; the oldest
+    // are at the end of the list.
+    protected synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        while (!_idle.isEmpty() && now - _idle.getLast()._since > _idleTimeoutMillis) {
+            IdleConnection idle = _idle.removeLast();
+            _numOpen--;
+            try {
+                idle._conn.close();
+            } catch (SQLException e) {
+                // Simply ignore.
+            }
+        }
+        return;
+    }
+
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+            if (_evictionTask != null) _evictionTask.cancel();
+            _evictionTask = null;
+            notifyAll();
+        }
+        while (true) {
+            IdleConnection idle;
+            synchronized (this) {
+                if (_idle.isEmpty()) break;
+                idle = _idle.removeFirst();
+            }
+            closed(idle._conn);
+        }
+        return;
+    }
+}
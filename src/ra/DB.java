@@ -4,7 +4,22 @@ import java.sql.*;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.io.IOException;
 import java.io.PrintStream;
 
 public class DB {
@@ -27,6 +42,15 @@ public class DB {
         public ArrayList<String> getColTypes() {
             return _colTypes;
         }
+        // Whether the type of every column is known; drivers report
+        // null (or even "null", as sqlite's does for views) for types
+        // they only know from the rows:
+        public boolean hasColTypes() {
+            for (String colType : _colTypes) {
+                if (colType == null || colType.equalsIgnoreCase("null")) return false;
+            }
+            return true;
+        }
         public String toPrintString() {
             String s = _tableName;
             s += "(";
@@ -43,17 +67,95 @@ public class DB {
 
     public static void printSQLExceptionDetails(SQLException sqle, PrintStream err, boolean verbose) {
         while (sqle != null) {
-            System.out.println("Error message: " + sqle.getMessage());
-            System.out.println("Error code: " + sqle.getErrorCode());
-            System.out.println("SQL state: " + sqle.getSQLState());
+            err.println("Error message: " + sqle.getMessage());
+            err.println("Error code: " + sqle.getErrorCode());
+            err.println("SQL state: " + sqle.getSQLState());
             sqle = sqle.getNextException();
         }
         return;
     }
 
+    // Connections come from _pool, which is shared by all sessions
+    // created from the same original DB object; _conn is the one this
+    // session is using right now.  Pooled sessions (see
+    // newPooledSession()) only hold on to a connection while they
+    // are evaluating a statement, so _conn is null in between, unless
+    // _pinned: once a pooled session runs SQL commands of its own
+    // (which may leave state with the connection, e.g., temporary
+    // tables or settings), it keeps the connection until it is
+    // closed, and the connection is then discarded rather than handed
+    // to another session.
+    protected ConnectionPool _pool = null;
+    protected boolean _ownsPool = false;
+    protected boolean _pooled = false;
+    protected boolean _pinned = false;
+    protected DB _parent = null;
     protected Connection _conn = null;
+    protected long _lastUsed = 0;
     protected String _driverName = null;
+    // What SQL the database understands:
+    protected Dialect _dialect = null;
     protected String _schema = null;
+    protected boolean _storesLowerCaseIdentifiers = false;
+    protected boolean _storesUpperCaseIdentifiers = false;
+
+    // Results are fetched this many rows at a time (0 means using the
+    // driver's defaults, which for some drivers means all at once):
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    protected int _fetchSize = DEFAULT_FETCH_SIZE;
+    // Whether the MySQL driver was asked to use server-side cursors;
+    // otherwise it can only stream rows one at a time:
+    protected boolean _useCursorFetch = false;
+    // Set while autocommit is turned off for the sake of streaming:
+    protected boolean _inStreamingTransaction = false;
+
+    // Cache of relation schemas (keyed by relation names as stored
+    // in the catalog) and of the list of relations, valid until a
+    // statement issued through this object may have changed them.
+    // Changes made by other connections are not noticed, except that
+    // pooled sessions share these caches with the DB object they were
+    // created from.
+    protected Map<String, TableSchema> _schemaCache =
+        Collections.synchronizedMap(new HashMap<String, TableSchema>());
+    protected Map<String, List<List<String>>> _keysCache =
+        Collections.synchronizedMap(new HashMap<String, List<List<String>>>());
+    protected AtomicReference<ArrayList<String>> _tablesCache =
+        new AtomicReference<ArrayList<String>>();
+    protected int _schemaCacheHits = 0;
+    protected int _schemaCacheMisses = 0;
+
+    // Cache of query results (see ResultCache), shared by sessions,
+    // or null if results are not cached; _resultRecorder, if not
+    // null, collects the result being printed for the cache:
+    protected ResultCache _resultCache = null;
+    protected ResultCache.Recorder _resultRecorder = null;
+
+    // For cancelling statements (queries or \sqlexec commands; see
+    // beginStatement()) with Ctrl-C, or when they run for more than
+    // _queryTimeout seconds (0 for no limit).  _currentStatement is the
+    // JDBC statement running on behalf of the statement right now, if
+    // any; once the statement is cancelled, _cancelled is set so that
+    // it starts no more.  Statements that clean up (e.g., dropping
+    // views) are never cancelled, so cleaning up always finishes.
+    protected int _queryTimeout = 0;
+    protected long _deadline = 0;
+    protected TimerTask _timeoutTask = null;
+    protected volatile Statement _currentStatement = null;
+    protected volatile boolean _inStatement = false;
+    protected volatile boolean _cancelled = false;
+    protected volatile boolean _timedOut = false;
+    // Sessions created from this one (see newSession()), which are
+    // cancelled along with it:
+    protected List<DB> _sessions = new ArrayList<DB>();
+    protected static Timer _timer = null;
+    protected static ExecutorService _cancellers = null;
+
+    // Names for the views of the statement being evaluated (see
+    // RAXNode.nameView()); sessions that share a database without
+    // temporary views need prefixes of their own:
+    public static final String DEFAULT_VIEW_NAME_PREFIX = "RA_TMP_VIEW_";
+    protected String _viewNamePrefix = DEFAULT_VIEW_NAME_PREFIX;
+    protected int _viewNameCount = 0;
 
     static ArrayList<String> loadedDriverNames = new ArrayList<String>();
     static List<String> supportedDriverNames = Arrays.asList(
@@ -82,27 +184,522 @@ public class DB {
 
     public DB(String connURL, Properties connProperties)
         throws Exception {
-        _conn = DriverManager.getConnection(connURL, connProperties);
         _driverName = DriverManager.getDriver(connURL).getClass().getName();
+        // Pool settings are ours, not the driver's:
+        Properties driverProperties = new Properties();
+        driverProperties.putAll(connProperties);
+        driverProperties.remove("poolMaxSize");
+        driverProperties.remove("poolIdleTimeout");
+        _pool = new ConnectionPool(connURL, driverProperties,
+                                   _driverName.equals("com.ibm.db2.jcc.DB2Driver")? "VALUES 1" : "SELECT 1");
+        _ownsPool = true;
+        if (connProperties.getProperty("poolMaxSize") != null) {
+            _pool.setMaxSize(Integer.parseInt(connProperties.getProperty("poolMaxSize").trim()));
+        }
+        if (connProperties.getProperty("poolIdleTimeout") != null) {
+            _pool.setIdleTimeoutMillis(1000*Long.parseLong(connProperties.getProperty("poolIdleTimeout").trim()));
+        }
+        _conn = _pool.borrow();
+        _lastUsed = System.currentTimeMillis();
+        DatabaseMetaData dbmd = _conn.getMetaData();
+        _dialect = Dialect.forDatabase(_driverName, dbmd);
+        _storesLowerCaseIdentifiers = dbmd.storesLowerCaseIdentifiers();
+        _storesUpperCaseIdentifiers = dbmd.storesUpperCaseIdentifiers();
         _schema = connProperties.getProperty("schema");
+        _useCursorFetch = connURL.matches("(?i).*useCursorFetch=true.*") ||
+            "true".equalsIgnoreCase(connProperties.getProperty("useCursorFetch"));
+    }
+
+    // Creates another session on the same database, with a connection
+    // of its own from the same pool, e.g., for evaluating statements
+    // concurrently.  Schema caches are not shared.
+    public DB newSession()
+        throws SQLException {
+        DB session = new DB(this);
+        session._conn = _pool.borrow();
+        session._lastUsed = System.currentTimeMillis();
+        synchronized (_sessions) {
+            _sessions.add(session);
+        }
+        return session;
+    }
+
+    // Creates another session on the same database that borrows a
+    // connection from the pool only for the duration of a statement
+    // (see releaseIdleConnection()), so that many sessions, most of
+    // them idle at any time, can share a few connections (see
+    // RAServer).  Schema caches are shared with this object (see
+    // pinConnection() for when they are not).
+    public DB newPooledSession() {
+        DB session = new DB(this);
+        session._pooled = true;
+        session._schemaCache = _schemaCache;
+        session._keysCache = _keysCache;
+        session._tablesCache = _tablesCache;
+        synchronized (_sessions) {
+            _sessions.add(session);
+        }
+        return session;
+    }
+
+    protected DB(DB other) {
+        _pool = other._pool;
+        _ownsPool = false;
+        _parent = other;
+        _driverName = other._driverName;
+        _dialect = other._dialect;
+        _schema = other._schema;
+        _storesLowerCaseIdentifiers = other._storesLowerCaseIdentifiers;
+        _storesUpperCaseIdentifiers = other._storesUpperCaseIdentifiers;
+        _fetchSize = other._fetchSize;
+        _useCursorFetch = other._useCursorFetch;
+        _resultCache = other._resultCache;
+        _queryTimeout = other._queryTimeout;
+    }
+
+    public ConnectionPool getPool() {
+        return _pool;
+    }
+
+    // For work that needs a connection other than this session's
+    // (e.g., running concurrently with it); the connection must be
+    // given back through releaseConnection().
+    public Connection borrowConnection()
+        throws SQLException {
+        return _pool.borrow();
+    }
+
+    public void releaseConnection(Connection conn) {
+        _pool.release(conn);
+        return;
+    }
+
+    // Returns this session's connection, first making sure it still
+    // works if it has not been used for a while; if it does not (e.g.,
+    // because the server has restarted), it is replaced.
+    protected Connection getConnection()
+        throws SQLException {
+        if (_conn == null) {
+            // A pooled session between statements; the pool checks
+            // the connections it hands out:
+            _conn = _pool.borrow();
+            _lastUsed = System.currentTimeMillis();
+            return _conn;
+        }
+        long now = System.currentTimeMillis();
+        if (now - _lastUsed >= ConnectionPool.VALIDATION_INTERVAL_MILLIS &&
+            !_inStreamingTransaction && !_pool.isValid(_conn)) {
+            reconnect();
+        }
+        _lastUsed = now;
+        return _conn;
+    }
+
+    // Called after a failure that may have been caused by a broken
+    // connection; replaces the connection and returns true if so.
+    protected boolean recoverConnection() {
+        if (_inStreamingTransaction || _pool.isValid(_conn)) return false;
+        try {
+            reconnect();
+        } catch (SQLException e) {
+            return false;
+        }
+        return true;
+    }
+
+    protected void reconnect()
+        throws SQLException {
+        Connection broken = _conn;
+        _conn = null;
+        _pool.discard(broken);
+        _conn = _pool.borrow();
+        _lastUsed = System.currentTimeMillis();
+        // The database may not be the same as we remember it:
+        invalidateSchemaCache(null);
+        if (_resultCache != null) _resultCache.invalidate(null);
+        return;
+    }
+
+    // Called once a statement is done with (including cleaning up
+    // after it); pooled sessions give their connection back to the
+    // pool until the next statement.  Whatever is temporary (e.g.,
+    // views) is not, so nothing of the sort may be left by then.
+    public void releaseIdleConnection() {
+        if (!_pooled || _pinned || _conn == null || _inStreamingTransaction) return;
+        _pool.release(_conn);
+        _conn = null;
+        return;
+    }
+
+    // Keeps a pooled session's connection for the rest of the session
+    // (see _pinned).  What the session sees through it (e.g., its own
+    // temporary tables) is not for other sessions, so the session
+    // stops sharing the schema and result caches.
+    protected void pinConnection() {
+        if (!_pooled || _pinned) return;
+        _pinned = true;
+        _schemaCache = Collections.synchronizedMap(new HashMap<String, TableSchema>());
+        _keysCache = Collections.synchronizedMap(new HashMap<String, List<List<String>>>());
+        _tablesCache = new AtomicReference<ArrayList<String>>();
+        _resultCache = null;
+        return;
+    }
+
+    public void setViewNamePrefix(String prefix) {
+        _viewNamePrefix = prefix;
+    }
+
+    public String generateViewName() {
+        _viewNameCount++;
+        return _viewNamePrefix + _viewNameCount;
+    }
+
+    // Called before each statement, so that view names start over:
+    public void resetViewNames() {
+        _viewNameCount = 0;
+        return;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        _fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return _fetchSize;
+    }
+
+    public void setResultCache(ResultCache resultCache) {
+        _resultCache = resultCache;
+    }
+
+    public ResultCache getResultCache() {
+        return _resultCache;
+    }
+
+    public void setQueryTimeout(int seconds) {
+        _queryTimeout = seconds;
+    }
+
+    public int getQueryTimeout() {
+        return _queryTimeout;
+    }
+
+    protected static synchronized Timer getTimer() {
+        if (_timer == null) _timer = new Timer("ra-timeout", true);
+        return _timer;
+    }
+
+    // Called before each statement that may be cancelled; this is when
+    // its time starts running out:
+    public void beginStatement() {
+        _cancelled = false;
+        _timedOut = false;
+        _inStatement = true;
+        if (_queryTimeout > 0) {
+            _deadline = System.currentTimeMillis() + 1000L*_queryTimeout;
+            _timeoutTask = new TimerTask() {
+                    public void run() {
+                        cancelStatement(true);
+                        return;
+                    }
+                };
+            getTimer().schedule(_timeoutTask, 1000L*_queryTimeout);
+        }
+        return;
+    }
+
+    // Called after the statement, before cleaning up after it:
+    public void endStatement() {
+        if (_timeoutTask != null) {
+            _timeoutTask.cancel();
+            _timeoutTask = null;
+        }
+        _deadline = 0;
+        _inStatement = false;
+        return;
+    }
+
+    // Cancels the statement running in this session and in all sessions
+    // created from it; may be called from any thread:
+    public void cancel() {
+        cancelStatement(false);
+        synchronized (_sessions) {
+            for (DB session : _sessions) session.cancel();
+        }
+        return;
+    }
+
+    protected void cancelStatement(boolean timedOut) {
+        if (timedOut) _timedOut = true;
+        _cancelled = true;
+        final Statement s = _currentStatement;
+        if (s == null) return;
+        // Some drivers (e.g., older sqlite ones) refuse to cancel a
+        // query before it has returned its first row, or wait for the
+        // row they are working on, so keep trying on another thread
+        // for as long as the statement is running:
+        getCancellers().execute(new Runnable() {
+                public void run() {
+                    while (_currentStatement == s) {
+                        try {
+                            s.cancel();
+                            return;
+                        } catch (SQLException e) {
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException ie) {
+                                return;
+                            }
+                        }
+                    }
+                    return;
+                }
+            });
+        return;
+    }
+
+    // Threads for cancelling statements (see cancelStatement()), which
+    // are reused, and only go away after a while without cancels:
+    protected static synchronized ExecutorService getCancellers() {
+        if (_cancellers == null) {
+            _cancellers = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ra-cancel");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return _cancellers;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    // Whether we are between beginStatement() and endStatement():
+    public boolean isInStatement() {
+        return _inStatement;
+    }
+
+    // Returns why the statement was cancelled, or null if it wasn't:
+    public String getCancelMessage() {
+        if (!_cancelled) return null;
+        return _timedOut? "Statement timed out after " + _queryTimeout + " second(s)" : "Statement cancelled";
+    }
+
+    // Throws an exception if the statement has been cancelled, for
+    // work done outside the database (e.g., by RAXEvaluator):
+    public void checkCancelled()
+        throws SQLException {
+        // The SQLSTATE for query_canceled:
+        if (_cancelled) throw new SQLException(getCancelMessage(), "57014");
+        return;
+    }
+
+    // Makes s the JDBC statement to cancel, with what is left of the
+    // timeout as its own timeout:
+    protected Statement trackStatement(Statement s)
+        throws SQLException {
+        // Set first, so that a cancel() from now on will find it:
+        _currentStatement = s;
+        try {
+            checkCancelled();
+        } catch (SQLException e) {
+            _currentStatement = null;
+            s.close();
+            throw e;
+        }
+        if (_deadline > 0) {
+            int seconds = (int)Math.max(1, (_deadline - System.currentTimeMillis() + 999)/1000);
+            try {
+                s.setQueryTimeout(seconds);
+            } catch (SQLException e) {
+                // Not supported by the driver; the timer will cancel
+                // the statement anyway.
+            }
+        }
+        return s;
+    }
+
+    protected void untrackStatement(Statement s) {
+        if (_currentStatement == s) _currentStatement = null;
+        return;
+    }
+
+    // For statements that do the work of a query, which may be
+    // cancelled; to be closed with closeStatement():
+    protected Statement createStatement()
+        throws SQLException {
+        return trackStatement(getConnection().createStatement());
+    }
+
+    protected void closeStatement(Statement s)
+        throws SQLException {
+        untrackStatement(s);
+        s.close();
+        return;
+    }
+
+    // While recorder is set, results printed through this object are
+    // also passed to it:
+    public void setResultRecorder(ResultCache.Recorder recorder) {
+        _resultRecorder = recorder;
     }
 
     public String getDriverName() {
         return _driverName;
     }
 
+    public Dialect getDialect() {
+        return _dialect;
+    }
+
     public void close()
         throws SQLException {
-        _conn.close();
+        if (_parent != null) {
+            synchronized (_parent._sessions) {
+                _parent._sessions.remove(this);
+            }
+        }
+        if (_conn != null) {
+            if (_pinned) {
+                _pool.discard(_conn);
+            } else {
+                _pool.release(_conn);
+            }
+        }
+        if (_ownsPool) _pool.close();
         _conn = null;
         _driverName = null;
+        _dialect = null;
         _schema = null;
         return;
     }
 
+    // Creates a statement whose results are fetched a bit at a time
+    // instead of being held in memory all at once, which takes
+    // different settings for different drivers.  singleQuery says
+    // whether the statement will run just one query, as opposed to
+    // arbitrary commands.  The statement must be passed to
+    // closeStreamingStatement() when done.
+    protected Statement createStreamingStatement(boolean singleQuery)
+        throws SQLException {
+        Connection conn = getConnection();
+        if (_fetchSize <= 0) {
+            return trackStatement(conn.createStatement());
+        }
+        Statement s = trackStatement(conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+        setUpStreaming(conn, s, singleQuery);
+        return s;
+    }
+
+    // Like createStreamingStatement(), for a single query with
+    // parameters ("?"):
+    protected PreparedStatement prepareStreamingStatement(String query)
+        throws SQLException {
+        Connection conn = getConnection();
+        if (_fetchSize <= 0) {
+            return (PreparedStatement)trackStatement(conn.prepareStatement(query));
+        }
+        PreparedStatement ps = (PreparedStatement)trackStatement(
+            conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+        setUpStreaming(conn, ps, true);
+        return ps;
+    }
+
+    protected void setUpStreaming(Connection conn, Statement s, boolean singleQuery)
+        throws SQLException {
+        if (_driverName.equals("org.postgresql.Driver")) {
+            // The driver only uses a cursor inside a transaction, and
+            // only for a single query; turning off autocommit for
+            // other commands would change what they do.
+            if (singleQuery && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                _inStreamingTransaction = true;
+            }
+            s.setFetchSize(_fetchSize);
+        } else if (_driverName.equals("com.mysql.jdbc.Driver")) {
+            // Without server-side cursors, the driver streams only if
+            // asked for Integer.MIN_VALUE rows at a time, and then
+            // the connection cannot be used for anything else until
+            // the result is read completely or closed.
+            s.setFetchSize(_useCursorFetch? _fetchSize : Integer.MIN_VALUE);
+        } else if (_driverName.equals("org.sqlite.JDBC")) {
+            // sqlite reads results incrementally anyway, and older
+            // drivers take the fetch size to be a limit on the number
+            // of rows returned, so leave it alone.
+        } else {
+            // db2 reads forward-only results incrementally; the fetch
+            // size is just a hint.
+            s.setFetchSize(_fetchSize);
+        }
+        return;
+    }
+
+    protected void closeStreamingStatement(Statement s)
+        throws SQLException {
+        try {
+            if (s != null) {
+                untrackStatement(s);
+                s.close();
+            }
+        } finally {
+            if (_inStreamingTransaction) {
+                _inStreamingTransaction = false;
+                try {
+                    // Nothing was changed, but this ends the
+                    // transaction before autocommit is turned back on:
+                    _conn.rollback();
+                } finally {
+                    _conn.setAutoCommit(true);
+                }
+            }
+        }
+        return;
+    }
+
+    // Closes a statement that has failed, ignoring any further errors
+    // (e.g., from a broken connection), which would only hide the
+    // original one:
+    protected void discardStreamingStatement(Statement s) {
+        try {
+            closeStreamingStatement(s);
+        } catch (SQLException e) {
+            // Simply ignore.
+        }
+        _inStreamingTransaction = false;
+        return;
+    }
+
     public void execCommands(PrintStream out, String commands)
         throws SQLException {
-        Statement s = _conn.createStatement();
+        // Invalidate up front, since some commands may succeed even if
+        // we end up with an exception:
+        Set<String> modifiedRelations = parseModifiedRelations(commands);
+        invalidateSchemaCache(modifiedRelations);
+        if (_resultCache != null) _resultCache.invalidate(modifiedRelations);
+        pinConnection();
+        if (_pinned && _parent != null) {
+            // The commands may change relations that other sessions
+            // see as well:
+            _parent.invalidateSchemaCache(modifiedRelations);
+            if (_parent._resultCache != null) _parent._resultCache.invalidate(modifiedRelations);
+        }
+        // Even a single SELECT may change things (SELECT ... INTO, or
+        // functions with side effects), so it is not run in a
+        // transaction that closeStreamingStatement() rolls back:
+        Statement s = createStreamingStatement(false);
+        try {
+            execCommands(out, s, commands);
+        } finally {
+            closeStreamingStatement(s);
+        }
+        return;
+    }
+
+    protected void execCommands(PrintStream out, Statement s, String commands)
+        throws SQLException {
         int resultNum = 0;
         while (true) {
             resultNum++;
@@ -159,104 +756,405 @@ public class DB {
                 out.println("*** Result " + resultNum + " is an update count of " + rowsAffected);
             }
         }
-        s.close();
+        return;
+    }
+
+    // Stands for a value of a type that we do not know how to print;
+    // the value itself is kept so that it can still be compared.
+    public static class UnsupportedValue {
+        protected Object _value;
+        public UnsupportedValue(Object value) {
+            _value = value;
+        }
+        public Object getValue() {
+            return _value;
+        }
+        public String toString() {
+            return "<TYPE UNSUPPORTED>";
+        }
+    }
+
+    public static boolean isSupportedType(int type) {
+        switch (type) {
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.DOUBLE:
+        case Types.FLOAT:
+        case Types.REAL:
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+        case Types.DATE:
+        case Types.CHAR:
+        case Types.VARCHAR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // Reads the i-th column of the current row as a Java object of
+    // the class we print it as, or null if it is NULL:
+    public static Object getColumnValue(ResultSet rs, int i, int type)
+        throws SQLException {
+        Object value;
+        switch (type) {
+        case Types.INTEGER:
+            value = rs.getInt(i);
+            break;
+        case Types.SMALLINT:
+            value = rs.getShort(i);
+            break;
+        case Types.DOUBLE:
+            value = rs.getDouble(i);
+            break;
+        case Types.FLOAT:
+        case Types.REAL:
+            value = rs.getFloat(i);
+            break;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            value = rs.getBigDecimal(i);
+            break;
+        case Types.DATE:
+            value = rs.getDate(i);
+            break;
+        case Types.CHAR:
+        case Types.VARCHAR:
+            value = rs.getString(i);
+            break;
+        default:
+            value = new UnsupportedValue(rs.getObject(i));
+            break;
+        }
+        return rs.wasNull()? null : value;
+    }
+
+    public static String formatColumnValue(Object value) {
+        return (value == null)? "<NULL>" : value.toString();
+    }
+
+    public void printResultHeading(PrintStream out, List<String> colNames, List<String> colTypes) {
+        out.print("Output schema: (");
+        for (int i=0; i<colNames.size(); i++) {
+            if (i>0) out.print(", ");
+            out.print(colNames.get(i) + " " + colTypes.get(i));
+        }
+        out.println(")");
+        out.println("-----");
+        if (_resultRecorder != null) _resultRecorder.heading(colNames, colTypes);
+        return;
+    }
+
+    public void printResultRow(PrintStream out, Object[] row) {
+        for (int i=0; i<row.length; i++) {
+            if (i>0) out.print("|");
+            out.print(formatColumnValue(row[i]));
+        }
+        out.println();
+        if (_resultRecorder != null) _resultRecorder.row(row);
+        return;
+    }
+
+    public void printResultSummary(PrintStream out, int count) {
+        out.println("-----");
+        out.println("Total number of rows: " + count);
+        out.println();
+        return;
+    }
+
+    // Prints a result from the cache:
+    public void printResult(PrintStream out, ResultCache.Result result) {
+        ResultCache.Recorder recorder = _resultRecorder;
+        _resultRecorder = null;
+        printResultHeading(out, result.getColNames(), result.getColTypes());
+        for (Object[] row : result.getRows()) {
+            printResultRow(out, row);
+        }
+        printResultSummary(out, result.getRows().size());
+        _resultRecorder = recorder;
         return;
     }
 
     public void printResultSet(PrintStream out, ResultSet rs)
         throws SQLException {
+        long start = Metrics.start();
         ResultSetMetaData rsmd = rs.getMetaData();
         // Print result heading:
-        out.print("Output schema: (");
         int numCols = rsmd.getColumnCount();
+        List<String> colNames = new ArrayList<String>();
+        List<String> colTypes = new ArrayList<String>();
+        int[] types = new int[numCols];
         for (int i=1; i<=numCols; i++) {
-            if (i>1) out.print(", ");
-            out.print(rsmd.getColumnName(i) + " " + rsmd.getColumnTypeName(i));
+            colNames.add(rsmd.getColumnName(i));
+            colTypes.add(rsmd.getColumnTypeName(i));
+            types[i-1] = rsmd.getColumnType(i);
         }
-        out.println(")");
-        out.println("-----");
+        printResultHeading(out, colNames, colTypes);
         // Print result content:
+        boolean staticTypes = _dialect.hasStaticColumnTypes();
         int count = 0;
+        Object[] row = new Object[numCols];
         while (rs.next()) {
+            // Drivers that cannot stop a query in the middle of a row
+            // (see cancelStatement()) stop here:
+            checkCancelled();
             for (int i=1; i<=numCols; i++) {
-                if (i>1) out.print("|");
-                String colString;
-                switch (rsmd.getColumnType(i)) {
-                case Types.INTEGER:
-                    colString = String.valueOf(rs.getInt(i));
-                    break;
-                case Types.SMALLINT:
-                    colString = String.valueOf(rs.getShort(i));
-                    break;
-                case Types.DOUBLE:
-                    colString = String.valueOf(rs.getDouble(i));
-                    break;
-                case Types.FLOAT:
-                case Types.REAL:
-                    colString = String.valueOf(rs.getFloat(i));
-                    break;
-                case Types.DECIMAL:
-                case Types.NUMERIC:
-                    colString = rs.getBigDecimal(i).toString();
-                    break;
-                case Types.DATE:
-                    colString = rs.getDate(i).toString();
-                    break;
-                case Types.CHAR:
-                case Types.VARCHAR:
-                    colString = rs.getString(i);
-                    break;
-                default:
-                    colString = null;
-                    break;
-                }
-                if (colString == null) {
-                    colString = "<TYPE UNSUPPORTED>";
-                } else if (rs.wasNull()) {
-                    colString = "<NULL>";
-                }
-                out.print(colString);
+                // Where columns don't really have types, the driver
+                // reports the type of the value in the current row:
+                if (!staticTypes) types[i-1] = rsmd.getColumnType(i);
+                // Don't even try to read values we cannot print:
+                row[i-1] = isSupportedType(types[i-1])?
+                    getColumnValue(rs, i, types[i-1]) : new UnsupportedValue(null);
             }
-            out.println();
+            printResultRow(out, row);
             count++;
         }
         // Print result summary:
-        out.println("-----");
-        out.println("Total number of rows: " + count);
-        out.println();
+        printResultSummary(out, count);
+        Metrics.ROWS_STREAMED.add(count);
+        Metrics.PRINT_RESULT_SET.stop(start);
         return;
     }
 
     public void execQueryAndOutputResult(PrintStream out, String query)
         throws SQLException {
-        Statement s = _conn.createStatement();
-        ResultSet rs = s.executeQuery(query);
-        printResultSet(out, rs);
-        rs.close();
-        s.close();
+        long start = Metrics.start();
+        ResultSet rs = openQuery(query);
+        try {
+            printResultSet(out, rs);
+        } finally {
+            closeQuery(rs);
+            Metrics.EXEC_QUERY.stop(start);
+        }
         return;
     }
 
+    // Runs a query and writes its result to exporter, instead of
+    // printing it; returns the number of rows:
+    public long execQueryAndExportResult(ResultExporter exporter, String query)
+        throws SQLException, IOException {
+        long start = Metrics.start();
+        ResultSet rs = openQuery(query);
+        try {
+            long exportStart = Metrics.start();
+            long count = exporter.export(rs, _dialect.hasStaticColumnTypes());
+            Metrics.ROWS_STREAMED.add(count);
+            Metrics.EXPORT_RESULT_SET.stop(exportStart);
+            return count;
+        } finally {
+            closeQuery(rs);
+            Metrics.EXEC_QUERY.stop(start);
+        }
+    }
+
+    // Runs a query and returns its result, which is fetched as it is
+    // read (see createStreamingStatement()); the caller must pass the
+    // result to closeQuery() when done.
+    public ResultSet openQuery(String query)
+        throws SQLException {
+        Statement s = createStreamingStatement(true);
+        try {
+            return s.executeQuery(query);
+        } catch (SQLException e) {
+            discardStreamingStatement(s);
+            // Queries are safe to retry if the connection broke:
+            if (!recoverConnection()) throw e;
+        }
+        s = createStreamingStatement(true);
+        try {
+            return s.executeQuery(query);
+        } catch (SQLException e) {
+            discardStreamingStatement(s);
+            throw e;
+        }
+    }
+
+    // Like openQuery(), for a query with parameters ("?"), which are
+    // given the values in params, in order:
+    public ResultSet openQuery(String query, List<?> params)
+        throws SQLException {
+        PreparedStatement ps = prepareStreamingStatement(query);
+        try {
+            bindParameters(ps, params);
+            return ps.executeQuery();
+        } catch (SQLException e) {
+            discardStreamingStatement(ps);
+            if (!recoverConnection()) throw e;
+        }
+        ps = prepareStreamingStatement(query);
+        try {
+            bindParameters(ps, params);
+            return ps.executeQuery();
+        } catch (SQLException e) {
+            discardStreamingStatement(ps);
+            throw e;
+        }
+    }
+
+    protected static void bindParameters(PreparedStatement ps, List<?> params)
+        throws SQLException {
+        for (int i=0; i<params.size(); i++) {
+            if (params.get(i) == null) {
+                ps.setNull(i+1, Types.NULL);
+            } else {
+                ps.setObject(i+1, params.get(i));
+            }
+        }
+        return;
+    }
+
+    public void closeQuery(ResultSet rs)
+        throws SQLException {
+        Statement s = rs.getStatement();
+        try {
+            rs.close();
+        } finally {
+            closeStreamingStatement(s);
+        }
+        return;
+    }
+
+    // Runs a query only to count the rows of its result, which are
+    // all fetched, but not printed (or recorded):
+    public int countQueryRows(String query)
+        throws SQLException {
+        ResultSet rs = openQuery(query);
+        int count = 0;
+        try {
+            while (rs.next()) count++;
+        } finally {
+            closeQuery(rs);
+        }
+        return count;
+    }
+
+    // Returns the database's own plan for a query, one line per row
+    // of its EXPLAIN output (with columns separated by "|", after a
+    // heading, if there is more than one), or null if we don't know
+    // how to ask this database:
+    public List<String> explainQuery(String query)
+        throws SQLException {
+        String explainStatement = _dialect.genExplain(query);
+        if (explainStatement == null) return null;
+        List<String> lines = new ArrayList<String>();
+        Statement s = createStatement();
+        try {
+            ResultSet rs = s.executeQuery(explainStatement);
+            int numCols = rs.getMetaData().getColumnCount();
+            if (numCols > 1) {
+                String line = "";
+                for (int i=1; i<=numCols; i++) {
+                    if (i>1) line += "|";
+                    line += rs.getMetaData().getColumnName(i);
+                }
+                lines.add(line);
+            }
+            while (rs.next()) {
+                String line = "";
+                for (int i=1; i<=numCols; i++) {
+                    if (i>1) line += "|";
+                    line += rs.getString(i);
+                }
+                lines.add(line);
+            }
+            rs.close();
+        } finally {
+            closeStatement(s);
+        }
+        return lines;
+    }
+
     public ArrayList<String> getTables()
         throws SQLException {
+        ArrayList<String> cachedNames = _tablesCache.get();
+        if (cachedNames != null) {
+            _schemaCacheHits++;
+            return new ArrayList<String>(cachedNames);
+        }
+        _schemaCacheMisses++;
         ArrayList<String> tableNames = new ArrayList<String>();
-        DatabaseMetaData dbmd = _conn.getMetaData();
+        DatabaseMetaData dbmd = getConnection().getMetaData();
         ResultSet rs = dbmd.getTables(null, _schema, null, new String[] { "TABLE", "VIEW" });
         while (rs.next()) {
             String tableName = rs.getString(3);
             tableNames.add(tableName);
         }
         rs.close();
+        _tablesCache.set(new ArrayList<String>(tableNames));
         return tableNames;
     }
 
+    // Checks whether a relation is a view (as opposed to a table):
+    public boolean isView(String relationName)
+        throws SQLException {
+        DatabaseMetaData dbmd = getConnection().getMetaData();
+        ResultSet rs = dbmd.getTables(null, _schema, getStoredName(relationName), new String[] { "VIEW" });
+        try {
+            return rs.next();
+        } finally {
+            rs.close();
+        }
+    }
+
     public TableSchema getOutputSchema(String query)
+        throws SQLException {
+        // Try ways of getting the output schema without actually
+        // running the query, in order of preference; a way that does
+        // not tell the types of all columns (see hasColTypes()) is no
+        // good either.  First, most drivers can describe a statement
+        // that is only prepared, with its parameters (see
+        // SQLFragment.replaceParameters()) left unbound:
+        List<String> params = new ArrayList<String>();
+        String preparedQuery = SQLFragment.replaceParameters(query, "?", params);
+        try {
+            PreparedStatement ps = getConnection().prepareStatement(preparedQuery);
+            try {
+                ResultSetMetaData rsmd = ps.getMetaData();
+                TableSchema schema = (rsmd == null)? null : toTableSchema(rsmd);
+                if (schema != null && schema.hasColTypes()) return schema;
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            // Either the query is bad or the driver does not support
+            // this; the following will tell.
+        } catch (AbstractMethodError e) {
+            // Driver predates JDBC 3.0.
+        }
+        // Otherwise, parameters are as good as NULL for the schema:
+        if (!params.isEmpty()) {
+            query = SQLFragment.replaceParameters(query, "NULL", null);
+        }
+        // Next, run the query wrapped so that it returns nothing:
+        try {
+            TableSchema schema = executeForOutputSchema("SELECT * FROM (" + query + ") AS RA_PROBE WHERE 1=0");
+            if (schema.hasColTypes()) return schema;
+        } catch (SQLException e) {
+            // The wrapping may not be legal for some queries (e.g.,
+            // those with common table expressions on some databases).
+        }
+        // Finally, just run the query, but only look at its metadata
+        // (and, for drivers that go by the values, its first row):
+        return executeForOutputSchema(query);
+    }
+
+    protected TableSchema executeForOutputSchema(String query)
+        throws SQLException {
+        Statement s = createStatement();
+        try {
+            ResultSet rs = s.executeQuery(query);
+            TableSchema schema = toTableSchema(rs.getMetaData());
+            rs.close();
+            return schema;
+        } finally {
+            closeStatement(s);
+        }
+    }
+
+    protected TableSchema toTableSchema(ResultSetMetaData rsmd)
         throws SQLException {
         ArrayList<String> colNames = new ArrayList<String>();
         ArrayList<String> colTypes = new ArrayList<String>();
-        Statement s = _conn.createStatement();
-        ResultSet rs = s.executeQuery(query);
-        ResultSetMetaData rsmd = rs.getMetaData();
         int numCols = rsmd.getColumnCount();
         for (int i=1; i<=numCols; i++) {
             // Important: Use getColumnLabel() to get new column names specified
@@ -265,49 +1163,318 @@ public class DB {
             colNames.add(rsmd.getColumnLabel(i));
             colTypes.add(rsmd.getColumnTypeName(i));
         }
-        rs.close();
         return new TableSchema(null, colNames, colTypes);
     }
 
     public TableSchema getTableSchema(String tableName)
         throws SQLException {
-        TableSchema schema = getOutputSchema("SELECT * FROM " + tableName);
-        return new TableSchema(tableName, schema.getColNames(), schema.getColTypes());
-    }
-
-    // The following implementation does not seem to work for
-    // postgresql when tableName is a view:
-    //
-    // public TableSchema getTableSchema(String tableName)
-    //     throws SQLException {
-    //     ArrayList<String> colNames = new ArrayList<String>();
-    //     ArrayList<String> colTypes = new ArrayList<String>();
-    //     DatabaseMetaData dbmetadta = _conn.getMetaData();
-    //     ResultSet rs = dbmetadta.getColumns(null, null, tableName, null);
-    //     while (rs.next()) {
-    //         String colName = rs.getString(4);
-    //         String colType = rs.getString(6);
-    //         colNames.add(colName);
-    //         colTypes.add(colType);
-    //     }
-    //     rs.close();
-    //     if (colNames.isEmpty()) // No such table!
-    //         return null;
-    //     return new TableSchema(tableName, colNames, colTypes);
-    // }
+        long start = Metrics.start();
+        try {
+            String key = getStoredName(tableName);
+            TableSchema schema = _schemaCache.get(key);
+            if (schema != null) {
+                _schemaCacheHits++;
+            } else {
+                _schemaCacheMisses++;
+                schema = getCatalogSchema(tableName);
+                if (schema == null) {
+                    schema = getOutputSchema("SELECT * FROM " + tableName);
+                }
+                _schemaCache.put(key, schema);
+            }
+            return new TableSchema(tableName, schema.getColNames(), schema.getColTypes());
+        } finally {
+            Metrics.GET_TABLE_SCHEMA.stop(start);
+        }
+    }
+
+    // Returns the keys of a base table (each a list of column names)
+    // from its primary key and unique indexes.  Only keys whose
+    // columns are all NOT NULL count, since unique indexes (and, in
+    // sqlite, even primary keys) allow any number of NULLs.  Cached
+    // along with schemas.
+    public List<List<String>> getTableKeys(String tableName)
+        throws SQLException {
+        String storedName = getStoredName(tableName);
+        List<List<String>> keys = _keysCache.get(storedName);
+        if (keys != null) {
+            _schemaCacheHits++;
+            return keys;
+        }
+        _schemaCacheMisses++;
+        DatabaseMetaData dbmd = getConnection().getMetaData();
+        // Key columns by primary key or index name:
+        Map<String, List<String>> keyColumns = new LinkedHashMap<String, List<String>>();
+        ResultSet rs;
+        try {
+            rs = dbmd.getPrimaryKeys(null, _schema, storedName);
+            while (rs.next()) {
+                addKeyColumn(keyColumns, "", rs.getString("COLUMN_NAME"));
+            }
+            rs.close();
+        } catch (SQLException e) {
+            // Not implemented by the driver; unique indexes may still
+            // tell.
+        }
+        try {
+            rs = dbmd.getIndexInfo(null, _schema, storedName, true, true);
+            while (rs != null && rs.next()) {
+                if (rs.getBoolean("NON_UNIQUE") || rs.getString("COLUMN_NAME") == null) continue;
+                addKeyColumn(keyColumns, "INDEX " + rs.getString("INDEX_NAME"), rs.getString("COLUMN_NAME"));
+            }
+            if (rs != null) rs.close();
+        } catch (SQLException e) {
+            // Some drivers (e.g., older sqlite ones) don't implement
+            // this; primary keys will do.
+        }
+        Set<String> notNullColumns = new HashSet<String>();
+        rs = dbmd.getColumns(null, _schema, storedName, null);
+        while (rs.next()) {
+            // As in getCatalogSchema(), "_" is a wildcard here:
+            if (!storedName.equals(rs.getString("TABLE_NAME"))) continue;
+            if (rs.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls) {
+                notNullColumns.add(rs.getString("COLUMN_NAME"));
+            }
+        }
+        rs.close();
+        keys = new ArrayList<List<String>>();
+        for (List<String> columns : keyColumns.values()) {
+            if (notNullColumns.containsAll(columns) && !keys.contains(columns)) keys.add(columns);
+        }
+        _keysCache.put(storedName, keys);
+        return keys;
+    }
+
+    protected static void addKeyColumn(Map<String, List<String>> keyColumns, String keyName, String columnName) {
+        if (!keyColumns.containsKey(keyName)) {
+            keyColumns.put(keyName, new ArrayList<String>());
+        }
+        keyColumns.get(keyName).add(columnName);
+        return;
+    }
+
+    public int getSchemaCacheHits() {
+        return _schemaCacheHits;
+    }
+
+    public int getSchemaCacheMisses() {
+        return _schemaCacheMisses;
+    }
+
+    // Returns the name of a relation as the catalog would store it,
+    // given how it is referenced in SQL:
+    public String getStoredName(String name) {
+        if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+            return name.substring(1, name.length()-1);
+        } else if (_storesLowerCaseIdentifiers) {
+            return name.toLowerCase();
+        } else if (_storesUpperCaseIdentifiers) {
+            return name.toUpperCase();
+        } else {
+            return name;
+        }
+    }
+
+    // Forgets cached information about the given relations, or about
+    // everything if relationNames is null:
+    public void invalidateSchemaCache(Set<String> relationNames) {
+        if (relationNames == null) {
+            _schemaCache.clear();
+            _keysCache.clear();
+        } else {
+            for (String relationName : relationNames) {
+                _schemaCache.remove(getStoredName(relationName));
+                _keysCache.remove(getStoredName(relationName));
+            }
+        }
+        _tablesCache.set(null);
+        return;
+    }
+
+    // Relations named by the statement types below; the name is the
+    // last group, possibly qualified by a schema name and/or quoted:
+    protected static final String NAME_REGEX =
+        "((?:(?:\"[^\"]+\"|[\\w$]+)\\s*\\.\\s*)*(?:\"[^\"]+\"|[\\w$]+))";
+    protected static final Pattern[] MODIFYING_STATEMENT_PATTERNS = new Pattern[] {
+        Pattern.compile("(?:CREATE|DROP|ALTER)\\s+(?:OR\\s+REPLACE\\s+)?(?:(?:GLOBAL|LOCAL)\\s+)?(?:TEMP\\s+|TEMPORARY\\s+)?(?:TABLE|VIEW)\\s+(?:IF\\s+(?:NOT\\s+)?EXISTS\\s+)?" + NAME_REGEX, Pattern.CASE_INSENSITIVE),
+        Pattern.compile("(?:INSERT|REPLACE)\\s+(?:OR\\s+\\w+\\s+)?INTO\\s+" + NAME_REGEX, Pattern.CASE_INSENSITIVE),
+        Pattern.compile("UPDATE\\s+(?:OR\\s+\\w+\\s+)?" + NAME_REGEX, Pattern.CASE_INSENSITIVE),
+        Pattern.compile("DELETE\\s+FROM\\s+" + NAME_REGEX, Pattern.CASE_INSENSITIVE),
+        Pattern.compile("TRUNCATE\\s+(?:TABLE\\s+)?" + NAME_REGEX, Pattern.CASE_INSENSITIVE),
+    };
+    // Statements that modify nothing, except for SELECT ... INTO,
+    // which creates a table (or, in MySQL, writes into variables or
+    // files), and EXPLAIN ANALYZE, which runs the statement it
+    // explains; as these are not recognized at all, they count as
+    // modifying anything:
+    protected static final Pattern READ_ONLY_STATEMENT_PATTERN =
+        Pattern.compile("(?!(?:SELECT|VALUES)\\b.*\\bINTO\\b)(?!EXPLAIN\\b.*\\bANALY[SZ]E\\b)" +
+                        "(?:SELECT|VALUES|EXPLAIN|SHOW|DESCRIBE|CREATE\\s+(?:UNIQUE\\s+)?INDEX)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // A lightweight parse of SQL commands to find the relations whose
+    // schema or content they may modify.  Returns null if that cannot
+    // be determined (in which case everything should be considered
+    // modified).
+    public static Set<String> parseModifiedRelations(String commands) {
+        Set<String> relationNames = new HashSet<String>();
+        for (String command : splitCommands(commands)) {
+            command = command.trim();
+            if (command.length() == 0 ||
+                READ_ONLY_STATEMENT_PATTERN.matcher(command).matches()) {
+                continue;
+            }
+            boolean recognized = false;
+            for (Pattern pattern : MODIFYING_STATEMENT_PATTERNS) {
+                Matcher m = pattern.matcher(command);
+                if (m.lookingAt()) {
+                    String[] parts = m.group(1).split("\\s*\\.\\s*");
+                    relationNames.add(parts[parts.length-1]);
+                    recognized = true;
+                    break;
+                }
+            }
+            if (!recognized) return null;
+        }
+        return relationNames;
+    }
+
+    // Splits SQL commands at semicolons that are outside quotes and
+    // comments.
+    public static List<String> splitCommands(String commands) {
+        List<String> result = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        int n = commands.length();
+        for (int i=0; i<n; i++) {
+            char c = commands.charAt(i);
+            if (c == '\'' || c == '"') {
+                int j = commands.indexOf(c, i+1);
+                if (j < 0) j = n-1;
+                current.append(commands, i, j+1);
+                i = j;
+            } else if (c == '-' && i+1 < n && commands.charAt(i+1) == '-') {
+                int j = commands.indexOf('\n', i);
+                if (j < 0) j = n-1;
+                current.append(' ');
+                i = j;
+            } else if (c == '/' && i+1 < n && commands.charAt(i+1) == '*') {
+                int j = commands.indexOf("*/", i+2);
+                j = (j < 0)? n-1 : j+1;
+                current.append(' ');
+                i = j;
+            } else if (c == ';') {
+                result.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        result.add(current.toString());
+        return result;
+    }
+
+    // Looks up the schema of a table or view in the catalog; returns
+    // null if it cannot be determined unambiguously this way, or if
+    // the catalog does not know the type of some column (as for sqlite
+    // views).  This
+    // used not to work for postgresql views, because postgresql folds
+    // unquoted names to lower case, so we need to do the same here.
+    protected TableSchema getCatalogSchema(String tableName)
+        throws SQLException {
+        DatabaseMetaData dbmd = getConnection().getMetaData();
+        String storedName = tableName;
+        if (dbmd.storesLowerCaseIdentifiers()) {
+            storedName = tableName.toLowerCase();
+        } else if (dbmd.storesUpperCaseIdentifiers()) {
+            storedName = tableName.toUpperCase();
+        }
+        ArrayList<String> colNames = new ArrayList<String>();
+        ArrayList<String> colTypes = new ArrayList<String>();
+        String foundSchema = null;
+        boolean ambiguous = false;
+        ResultSet rs = dbmd.getColumns(null, _schema, storedName, null);
+        while (rs.next()) {
+            // Note that "_" in the name is a wildcard to getColumns:
+            if (!storedName.equals(rs.getString("TABLE_NAME"))) continue;
+            String tableSchema = rs.getString("TABLE_SCHEM");
+            if (colNames.isEmpty()) {
+                foundSchema = tableSchema;
+            } else if ((foundSchema == null)? tableSchema != null : !foundSchema.equals(tableSchema)) {
+                // Same name in different schemas; which one a query
+                // would see depends on the database's search path.
+                ambiguous = true;
+                break;
+            }
+            colNames.add(rs.getString("COLUMN_NAME"));
+            colTypes.add(rs.getString("TYPE_NAME"));
+        }
+        rs.close();
+        if (ambiguous || colNames.isEmpty()) return null;
+        TableSchema schema = new TableSchema(tableName, colNames, colTypes);
+        return schema.hasColTypes()? schema : null;
+    }
 
     public void createView(String createViewStatement)
         throws SQLException {
-        Statement s = _conn.createStatement();
-        s.executeUpdate(createViewStatement);
-        s.close();
+        long start = Metrics.start();
+        invalidateSchemaCache(parseModifiedRelations(createViewStatement));
+        Statement s = createStatement();
+        try {
+            s.executeUpdate(createViewStatement);
+        } finally {
+            closeStatement(s);
+            Metrics.CREATE_VIEW.stop(start);
+        }
         return;
     }
 
     public void dropView(String viewName)
         throws SQLException {
-        Statement s = _conn.createStatement();
-        s.executeUpdate("DROP VIEW " + viewName);
+        long start = Metrics.start();
+        invalidateSchemaCache(new HashSet<String>(Arrays.asList(viewName)));
+        Statement s = getConnection().createStatement();
+        try {
+            s.executeUpdate("DROP VIEW " + viewName);
+        } finally {
+            s.close();
+            Metrics.DROP_VIEW.stop(start);
+        }
+        return;
+    }
+
+    public void createTable(String createTableStatement)
+        throws SQLException {
+        invalidateSchemaCache(parseModifiedRelations(createTableStatement));
+        Statement s = createStatement();
+        try {
+            s.executeUpdate(createTableStatement);
+        } finally {
+            closeStatement(s);
+        }
+        return;
+    }
+
+    public void createIndex(String indexName, String tableName, List<String> colNames)
+        throws SQLException {
+        String createIndexStatement = "CREATE INDEX " + indexName + " ON " + tableName + "(";
+        for (int i=0; i<colNames.size(); i++) {
+            if (i>0) createIndexStatement += ", ";
+            createIndexStatement += "\"" + colNames.get(i) + "\"";
+        }
+        createIndexStatement += ")";
+        Statement s = createStatement();
+        try {
+            s.executeUpdate(createIndexStatement);
+        } finally {
+            closeStatement(s);
+        }
+        return;
+    }
+
+    public void dropTable(String tableName)
+        throws SQLException {
+        invalidateSchemaCache(new HashSet<String>(Arrays.asList(tableName)));
+        Statement s = getConnection().createStatement();
+        s.executeUpdate("DROP TABLE " + tableName);
         s.close();
         return;
     }
@@ -0,0 +1,399 @@
+package ra;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import jargs.gnu.CmdLineParser;
+
+// Generates the sample schema (Bar, Beer, Drinker, Frequents, Serves,
+// Likes; see sample.ra) with as much data as asked for, for testing
+// performance.  At scale factor 1 there are 1,000 bars, 500 beers and
+// 10,000 drinkers, who frequent 5 bars and like 4 beers on average,
+// and bars serve 20 beers on average (about 120,000 rows in all);
+// everything grows linearly with the scale factor.  Popularity is
+// skewed: the bars drinkers frequent, and the beers they like and bars
+// serve, follow Zipf distributions, so that a few bars and beers are
+// far more popular than the rest.  All foreign keys are valid.  The
+// same seed always generates the same data.  Rows are inserted in
+// JDBC batches, all in one transaction (the tables are dropped and
+// created beforehand).
+public class DataGenerator {
+
+    public static final int DEFAULT_SEED = 42;
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    protected static final double ZIPF_EXPONENT = 1.0;
+
+    protected static final String[] STREETS = {
+        "W. Main Street", "E. Main Street", "Morris Street", "S. Duke Street",
+        "N. Duke Street", "Broad Street", "Ninth Street", "Erwin Road",
+        "Campus Drive", "Hillsborough Rd"
+    };
+
+    protected static final String[] DROP_STATEMENTS = {
+        "DROP TABLE Frequents", "DROP TABLE Serves", "DROP TABLE Likes",
+        "DROP TABLE Bar", "DROP TABLE Beer", "DROP TABLE Drinker"
+    };
+
+    protected static final String[] CREATE_STATEMENTS = {
+        "CREATE TABLE Bar(name VARCHAR(20) NOT NULL PRIMARY KEY, " +
+        "address VARCHAR(20))",
+        "CREATE TABLE Beer(name VARCHAR(20) NOT NULL PRIMARY KEY, " +
+        "brewer VARCHAR(20))",
+        "CREATE TABLE Drinker(name VARCHAR(20) NOT NULL PRIMARY KEY, " +
+        "address VARCHAR(20))",
+        "CREATE TABLE Frequents(drinker VARCHAR(20) NOT NULL REFERENCES Drinker(name), " +
+        "bar VARCHAR(20) NOT NULL REFERENCES Bar(name), " +
+        "times_a_week SMALLINT CHECK(times_a_week > 0), " +
+        "PRIMARY KEY(drinker, bar))",
+        "CREATE TABLE Serves(bar VARCHAR(20) NOT NULL REFERENCES Bar(name), " +
+        "beer VARCHAR(20) NOT NULL REFERENCES Beer(name), " +
+        "price DECIMAL(5,2) CHECK(price > 0), " +
+        "PRIMARY KEY(bar, beer))",
+        "CREATE TABLE Likes(drinker VARCHAR(20) NOT NULL REFERENCES Drinker(name), " +
+        "beer VARCHAR(20) NOT NULL REFERENCES Beer(name), " +
+        "PRIMARY KEY(drinker, beer))"
+    };
+
+    // Draws 0..n-1 with probability proportional to 1/(i+1)^exponent:
+    protected static class ZipfSampler {
+        protected double[] _cdf;
+        public ZipfSampler(int n, double exponent) {
+            _cdf = new double[n];
+            double sum = 0;
+            for (int i=0; i<n; i++) {
+                sum += 1.0/Math.pow(i+1, exponent);
+                _cdf[i] = sum;
+            }
+            for (int i=0; i<n; i++) {
+                _cdf[i] /= sum;
+            }
+        }
+        public int next(Random random) {
+            int i = Arrays.binarySearch(_cdf, random.nextDouble());
+            return Math.min((i >= 0)? i : -i-1, _cdf.length-1);
+        }
+    }
+
+    protected Connection _conn;
+    protected Random _random;
+    protected int _batchSize;
+    protected int _numBars;
+    protected int _numBeers;
+    protected int _numDrinkers;
+
+    public DataGenerator(Connection conn, double scale, long seed, int batchSize) {
+        _conn = conn;
+        _random = new Random(seed);
+        _batchSize = batchSize;
+        _numBars = Math.max(1, (int)Math.round(1000*scale));
+        _numBeers = Math.max(1, (int)Math.round(500*scale));
+        _numDrinkers = Math.max(1, (int)Math.round(10000*scale));
+    }
+
+    // Names are numbered, and fit in VARCHAR(20) at any scale:
+    protected static String barName(int i) {
+        return "Bar " + (i+1);
+    }
+
+    protected static String beerName(int i) {
+        return "Beer " + (i+1);
+    }
+
+    protected static String drinkerName(int i) {
+        return "Drinker " + (i+1);
+    }
+
+    protected String randomAddress() {
+        return (1 + _random.nextInt(999)) + " " + STREETS[_random.nextInt(STREETS.length)];
+    }
+
+    // Returns how many of n items (at least 1) to pick when picking
+    // mean on average, with a long tail:
+    protected int randomCount(int mean, int n) {
+        int count = 1 + (int)(-Math.log(1 - _random.nextDouble())*(mean-1));
+        return Math.min(count, n);
+    }
+
+    public void generate()
+        throws SQLException {
+        Statement s = _conn.createStatement();
+        for (String drop : DROP_STATEMENTS) {
+            try {
+                s.executeUpdate(drop);
+            } catch (SQLException e) {
+                // Simply ignore; the table doesn't exist yet.
+            }
+        }
+        for (String create : CREATE_STATEMENTS) {
+            s.executeUpdate(create);
+        }
+        s.close();
+        _conn.setAutoCommit(false);
+        try {
+            generateBars();
+            generateBeers();
+            generateDrinkers();
+            generateFrequents();
+            generateServes();
+            generateLikes();
+            _conn.commit();
+        } catch (SQLException e) {
+            _conn.rollback();
+            throw e;
+        } finally {
+            _conn.setAutoCommit(true);
+        }
+        return;
+    }
+
+    // Inserts rows in batches, and reports progress:
+    protected class Inserter {
+        protected String _tableName;
+        protected PreparedStatement _ps;
+        protected int _pending = 0;
+        protected long _count = 0;
+        protected long _start = System.currentTimeMillis();
+        public Inserter(String tableName, int numCols)
+            throws SQLException {
+            _tableName = tableName;
+            String insert = "INSERT INTO " + tableName + " VALUES(";
+            for (int i=0; i<numCols; i++) {
+                insert += (i>0)? ", ?" : "?";
+            }
+            _ps = _conn.prepareStatement(insert + ")");
+        }
+        public PreparedStatement getStatement() {
+            return _ps;
+        }
+        // Call after setting the parameters for a row:
+        public void add()
+            throws SQLException {
+            _ps.addBatch();
+            _pending++;
+            _count++;
+            if (_pending == _batchSize) flush();
+            return;
+        }
+        protected void flush()
+            throws SQLException {
+            if (_pending > 0) _ps.executeBatch();
+            _pending = 0;
+            return;
+        }
+        public void close()
+            throws SQLException {
+            flush();
+            _ps.close();
+            long millis = Math.max(1, System.currentTimeMillis() - _start);
+            System.err.println(_tableName + ": " + _count + " row(s) in " + millis + " ms (" +
+                               (1000*_count/millis) + " rows/s)");
+            return;
+        }
+    }
+
+    protected void generateBars()
+        throws SQLException {
+        Inserter inserter = new Inserter("Bar", 2);
+        for (int i=0; i<_numBars; i++) {
+            inserter.getStatement().setString(1, barName(i));
+            inserter.getStatement().setString(2, randomAddress());
+            inserter.add();
+        }
+        inserter.close();
+        return;
+    }
+
+    protected void generateBeers()
+        throws SQLException {
+        Inserter inserter = new Inserter("Beer", 2);
+        for (int i=0; i<_numBeers; i++) {
+            inserter.getStatement().setString(1, beerName(i));
+            // Brewers make three beers each on average:
+            inserter.getStatement().setString(2, "Brewery " + (1 + _random.nextInt(Math.max(1, _numBeers/3))));
+            inserter.add();
+        }
+        inserter.close();
+        return;
+    }
+
+    protected void generateDrinkers()
+        throws SQLException {
+        Inserter inserter = new Inserter("Drinker", 2);
+        for (int i=0; i<_numDrinkers; i++) {
+            inserter.getStatement().setString(1, drinkerName(i));
+            // Some drinkers have no known address:
+            if (_random.nextInt(20) == 0) {
+                inserter.getStatement().setNull(2, java.sql.Types.VARCHAR);
+            } else {
+                inserter.getStatement().setString(2, randomAddress());
+            }
+            inserter.add();
+        }
+        inserter.close();
+        return;
+    }
+
+    protected void generateFrequents()
+        throws SQLException {
+        Inserter inserter = new Inserter("Frequents", 3);
+        ZipfSampler bars = new ZipfSampler(_numBars, ZIPF_EXPONENT);
+        for (int i=0; i<_numDrinkers; i++) {
+            for (int bar : pickDistinct(bars, randomCount(5, _numBars))) {
+                inserter.getStatement().setString(1, drinkerName(i));
+                inserter.getStatement().setString(2, barName(bar));
+                // Mostly once or twice a week:
+                inserter.getStatement().setInt(3, Math.min(7, 1 + (int)(-Math.log(1 - _random.nextDouble())*1.5)));
+                inserter.add();
+            }
+        }
+        inserter.close();
+        return;
+    }
+
+    protected void generateServes()
+        throws SQLException {
+        Inserter inserter = new Inserter("Serves", 3);
+        ZipfSampler beers = new ZipfSampler(_numBeers, ZIPF_EXPONENT);
+        for (int i=0; i<_numBars; i++) {
+            for (int beer : pickDistinct(beers, randomCount(20, _numBeers))) {
+                inserter.getStatement().setString(1, barName(i));
+                inserter.getStatement().setString(2, beerName(beer));
+                // Between 1.50 and 9.99 (as a double, since some
+                // drivers, e.g., older sqlite ones, don't implement
+                // setBigDecimal()):
+                inserter.getStatement().setDouble(3, (150 + _random.nextInt(850))/100.0);
+                inserter.add();
+            }
+        }
+        inserter.close();
+        return;
+    }
+
+    protected void generateLikes()
+        throws SQLException {
+        Inserter inserter = new Inserter("Likes", 2);
+        ZipfSampler beers = new ZipfSampler(_numBeers, ZIPF_EXPONENT);
+        for (int i=0; i<_numDrinkers; i++) {
+            for (int beer : pickDistinct(beers, randomCount(4, _numBeers))) {
+                inserter.getStatement().setString(1, drinkerName(i));
+                inserter.getStatement().setString(2, beerName(beer));
+                inserter.add();
+            }
+        }
+        inserter.close();
+        return;
+    }
+
+    // Draws count distinct values from sampler (or as many as it can
+    // within a reasonable number of tries, given the skew):
+    protected Set<Integer> pickDistinct(ZipfSampler sampler, int count) {
+        Set<Integer> picked = new HashSet<Integer>();
+        for (int tries=0; picked.size() < count && tries < 10*count; tries++) {
+            picked.add(sampler.next(_random));
+        }
+        return picked;
+    }
+
+    protected static void usage() {
+        System.out.println("Usage: java -cp ra.jar ra.DataGenerator [Options] [PROPS_FILE]");
+        System.out.println("Options:");
+        System.out.println("  -h: print this message, and exit");
+        System.out.println("  -s SCALE: scale factor (defaults to 1, for about 120,000 rows;");
+        System.out.println("    may be fractional)");
+        System.out.println("  --seed N: seed for the random number generator (defaults to " + DEFAULT_SEED + ")");
+        System.out.println("  -b N: insert N rows per JDBC batch (defaults to " + DEFAULT_BATCH_SIZE + ")");
+        System.out.println("  -l URL: use URL for JDBC database connection");
+        System.out.println("    (overriding the URL in PROPS_FILE), e.g., jdbc:sqlite:big.db");
+        System.out.println("  -p PASSWD: use PASSWD to connect to the database");
+        System.out.println("  -u USER: connect to the database as USER");
+        System.out.println("PROPS_FILE: specifies the JDBC connection URL and properties, as for ra");
+        System.out.println("The Bar, Beer, Drinker, Frequents, Serves and Likes tables are replaced.");
+        System.out.println();
+        return;
+    }
+
+    public static void main(String[] args) {
+        CmdLineParser cmdLineParser = new CmdLineParser();
+        CmdLineParser.Option helpO = cmdLineParser.addBooleanOption('h', "help");
+        CmdLineParser.Option scaleO = cmdLineParser.addDoubleOption('s', "scale");
+        CmdLineParser.Option seedO = cmdLineParser.addLongOption("seed");
+        CmdLineParser.Option batchSizeO = cmdLineParser.addIntegerOption('b', "batch-size");
+        CmdLineParser.Option urlO = cmdLineParser.addStringOption('l', "url");
+        CmdLineParser.Option passwordO = cmdLineParser.addStringOption('p', "password");
+        CmdLineParser.Option userO = cmdLineParser.addStringOption('u', "user");
+        try {
+            cmdLineParser.parse(args);
+        } catch (CmdLineParser.OptionException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+        }
+        boolean help = ((Boolean)cmdLineParser.getOptionValue(helpO, Boolean.FALSE)).booleanValue();
+        double scale = ((Double)cmdLineParser.getOptionValue(scaleO, Double.valueOf(1))).doubleValue();
+        long seed = ((Long)cmdLineParser.getOptionValue(seedO, Long.valueOf(DEFAULT_SEED))).longValue();
+        int batchSize = ((Integer)cmdLineParser.getOptionValue(batchSizeO, Integer.valueOf(DEFAULT_BATCH_SIZE))).intValue();
+        String url = (String)cmdLineParser.getOptionValue(urlO);
+        String password = (String)cmdLineParser.getOptionValue(passwordO);
+        String user = (String)cmdLineParser.getOptionValue(userO);
+        String[] otherArgs = cmdLineParser.getRemainingArgs();
+        if (help || otherArgs.length > 1 || scale <= 0 || batchSize <= 0) {
+            usage();
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        if (otherArgs.length == 1) {
+            try {
+                props.load(new FileInputStream(otherArgs[0]));
+            } catch (IOException e) {
+                System.err.println("Error loading properties from " + otherArgs[0]);
+                System.err.println(e.toString());
+                System.exit(1);
+            }
+        }
+        if (url != null)
+            props.setProperty("url", url);
+        if (user != null)
+            props.setProperty("user", user);
+        if (password != null)
+            props.setProperty("password", password);
+        if (props.getProperty("url") == null) {
+            System.err.println("No JDBC URL given (use -l or PROPS_FILE)");
+            usage();
+            System.exit(1);
+        }
+        DB db = null;
+        try {
+            db = new DB(props.getProperty("url"), props);
+        } catch (Exception e) {
+            System.err.println("Error connecting to the database");
+            System.err.println(e.toString());
+            System.exit(1);
+        }
+        try {
+            Connection conn = db.borrowConnection();
+            try {
+                new DataGenerator(conn, scale, seed, batchSize).generate();
+            } finally {
+                db.releaseConnection(conn);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error generating data");
+            DB.printSQLExceptionDetails(e, System.err, true);
+            System.exit(1);
+        }
+        try {
+            db.close();
+        } catch (SQLException e) {
+            // Simply ignore.
+        }
+        return;
+    }
+}
@@ -0,0 +1,223 @@
+package ra;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+// What SQL a database understands, so that operators (see RAXNode)
+// can pick the best translation it supports by asking about
+// capabilities, instead of checking for particular databases.  The
+// base class describes a database that follows the SQL standard; the
+// nested classes describe the databases we know about, taking their
+// versions into account.  Supporting another database only takes
+// another subclass here, and a case in forDatabase().
+public class Dialect {
+
+    protected String _databaseVersion;
+
+    public Dialect(String databaseVersion) {
+        _databaseVersion = (databaseVersion == null)? "" : databaseVersion;
+        return;
+    }
+
+    // Picks the dialect for a database, by the JDBC driver and, for
+    // drivers we don't know, the product name the database reports:
+    public static Dialect forDatabase(String driverName, DatabaseMetaData dbmd)
+        throws SQLException {
+        String version = dbmd.getDatabaseProductVersion();
+        String product = dbmd.getDatabaseProductName();
+        if (product == null) product = "";
+        if (driverName.equals("org.sqlite.JDBC") || product.equalsIgnoreCase("SQLite")) {
+            return new SQLite(version);
+        } else if (driverName.equals("org.postgresql.Driver") || product.equalsIgnoreCase("PostgreSQL")) {
+            return new PostgreSQL(version);
+        } else if (driverName.equals("com.mysql.jdbc.Driver") ||
+                   product.equalsIgnoreCase("MySQL") || product.equalsIgnoreCase("MariaDB")) {
+            return new MySQL(version);
+        } else if (driverName.equals("com.ibm.db2.jcc.DB2Driver") || product.startsWith("DB2")) {
+            return new DB2(version);
+        } else {
+            return new Dialect(version);
+        }
+    }
+
+    public String getName() {
+        return "SQL";
+    }
+
+    public String getDatabaseVersion() {
+        return _databaseVersion;
+    }
+
+    // Checks whether the database version, as reported by the
+    // driver, is at least major.minor.patch:
+    public boolean isVersionAtLeast(int major, int minor, int patch) {
+        int[] required = new int[] { major, minor, patch };
+        String[] parts = _databaseVersion.split("[^0-9]+");
+        int j = 0;
+        for (int i=0; i<required.length; i++) {
+            while (j < parts.length && parts[j].length() == 0) j++;
+            int actual = (j < parts.length)? Integer.parseInt(parts[j++]) : 0;
+            if (actual != required[i]) return actual > required[i];
+        }
+        return true;
+    }
+
+    public boolean supportsExcept() {
+        return true;
+    }
+
+    public boolean supportsIntersect() {
+        return true;
+    }
+
+    // WITH ... AS (...) SELECT ... (see RAXNode.compile()):
+    public boolean supportsCommonTableExpressions() {
+        return true;
+    }
+
+    // CREATE VIEW name(columns) AS ...:
+    public boolean supportsViewColumnLists() {
+        return true;
+    }
+
+    // Whether views can be defined on temporary tables (as temporary
+    // views), so that materialized results (see RAXNode.validate())
+    // can go into temporary tables:
+    public boolean supportsTemporaryViews() {
+        return false;
+    }
+
+    // Whether all values in a column of a query result have the type
+    // that the driver reports for the column:
+    public boolean hasStaticColumnTypes() {
+        return true;
+    }
+
+    // Returns a statement that stores the result of query in a new
+    // table, or null if the database cannot do that:
+    public String genCreateTableAs(String tableName, String query) {
+        return null;
+    }
+
+    // Returns a statement that shows the database's plan for query,
+    // or null if we don't know how to ask this database:
+    public String genExplain(String query) {
+        return null;
+    }
+
+    // Returns query with its result cut off after limit rows:
+    public String genLimit(String query, long limit) {
+        return query + " FETCH FIRST " + limit + " ROWS ONLY";
+    }
+
+    // Returns a condition that holds if a and b are equal or both
+    // NULL, as set operations compare rows:
+    public String genNullSafeEquals(String a, String b) {
+        return "(" + a + " = " + b + " OR (" + a + " IS NULL AND " + b + " IS NULL))";
+    }
+
+    public String toString() {
+        return getName() + " " + _databaseVersion;
+    }
+
+    public static class SQLite extends Dialect {
+        public SQLite(String databaseVersion) {
+            super(databaseVersion);
+        }
+        public String getName() {
+            return "SQLite";
+        }
+        public boolean supportsCommonTableExpressions() {
+            return isVersionAtLeast(3, 8, 3);
+        }
+        public boolean supportsViewColumnLists() {
+            return isVersionAtLeast(3, 9, 0);
+        }
+        public boolean supportsTemporaryViews() {
+            return true;
+        }
+        // Values have types, but columns don't really; the drivers
+        // report the types of the values in the first row:
+        public boolean hasStaticColumnTypes() {
+            return false;
+        }
+        public String genCreateTableAs(String tableName, String query) {
+            return "CREATE TEMPORARY TABLE " + tableName + " AS " + query;
+        }
+        public String genExplain(String query) {
+            return "EXPLAIN QUERY PLAN " + query;
+        }
+        public String genLimit(String query, long limit) {
+            return query + " LIMIT " + limit;
+        }
+    }
+
+    public static class PostgreSQL extends Dialect {
+        public PostgreSQL(String databaseVersion) {
+            super(databaseVersion);
+        }
+        public String getName() {
+            return "PostgreSQL";
+        }
+        public boolean supportsTemporaryViews() {
+            return true;
+        }
+        public String genCreateTableAs(String tableName, String query) {
+            return "CREATE TEMPORARY TABLE " + tableName + " AS " + query;
+        }
+        public String genExplain(String query) {
+            return "EXPLAIN " + query;
+        }
+        public String genLimit(String query, long limit) {
+            return query + " LIMIT " + limit;
+        }
+        public String genNullSafeEquals(String a, String b) {
+            return a + " IS NOT DISTINCT FROM " + b;
+        }
+    }
+
+    // MySQL views cannot reference temporary tables at all, so
+    // materialized results go into ordinary tables (which are
+    // dropped just the same when the query is done).
+    public static class MySQL extends Dialect {
+        public MySQL(String databaseVersion) {
+            super(databaseVersion);
+        }
+        public String getName() {
+            return "MySQL";
+        }
+        public boolean supportsExcept() {
+            return isVersionAtLeast(8, 0, 31);
+        }
+        public boolean supportsIntersect() {
+            return isVersionAtLeast(8, 0, 31);
+        }
+        public boolean supportsCommonTableExpressions() {
+            return isVersionAtLeast(8, 0, 0);
+        }
+        public String genCreateTableAs(String tableName, String query) {
+            return "CREATE TABLE " + tableName + " AS " + query;
+        }
+        public String genExplain(String query) {
+            return "EXPLAIN " + query;
+        }
+        public String genLimit(String query, long limit) {
+            return query + " LIMIT " + limit;
+        }
+        public String genNullSafeEquals(String a, String b) {
+            return a + " <=> " + b;
+        }
+    }
+
+    public static class DB2 extends Dialect {
+        public DB2(String databaseVersion) {
+            super(databaseVersion);
+        }
+        public String getName() {
+            return "DB2";
+        }
+        public String genCreateTableAs(String tableName, String query) {
+            return "CREATE TABLE " + tableName + " AS (" + query + ") WITH DATA";
+        }
+    }
+}
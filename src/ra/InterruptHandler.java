@@ -0,0 +1,81 @@
+package ra;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+// Handles Ctrl-C (SIGINT) while a statement is being evaluated:
+// instead of killing the JVM, and leaving behind the views the
+// statement created, it cancels the statement (see DB.cancel()),
+// which then fails and is cleaned up after as usual.  Interactively,
+// the session carries on at the prompt; reading from a file, the rest
+// of the input is skipped.  Ctrl-C at the prompt, or again before the
+// database gives up on the statement, exits right away, as before.
+// sun.misc.Signal isn't a standard API, so it is only used through
+// reflection (with a proxy standing for the sun.misc.SignalHandler);
+// where it is missing, install() does nothing and Ctrl-C just exits.
+public class InterruptHandler implements InvocationHandler {
+
+    protected DB _db;
+    protected boolean _interactive;
+    protected PrintStream _err;
+    // Set (reading from a file) once Ctrl-C was pressed:
+    protected volatile boolean _interrupted = false;
+
+    protected InterruptHandler(DB db, boolean interactive, PrintStream err) {
+        _db = db;
+        _interactive = interactive;
+        _err = err;
+    }
+
+    // Returns the installed handler, or null if it cannot be:
+    public static InterruptHandler install(DB db, boolean interactive, PrintStream err) {
+        InterruptHandler handler = new InterruptHandler(db, interactive, err);
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> signalHandlerClass = Class.forName("sun.misc.SignalHandler");
+            Object signal = signalClass.getConstructor(String.class).newInstance("INT");
+            Object signalHandler = Proxy.newProxyInstance(InterruptHandler.class.getClassLoader(),
+                                                          new Class<?>[] { signalHandlerClass }, handler);
+            signalClass.getMethod("handle", signalClass, signalHandlerClass).invoke(null, signal, signalHandler);
+        } catch (Throwable t) {
+            // Not supported by this JVM or platform.
+            return null;
+        }
+        return handler;
+    }
+
+    public boolean isInterrupted() {
+        return _interrupted;
+    }
+
+    // Called for the methods of the sun.misc.SignalHandler proxy:
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+        if (method.getName().equals("handle")) {
+            interrupt();
+            return null;
+        }
+        // equals(), hashCode() and toString():
+        if (method.getName().equals("equals")) return proxy == args[0];
+        if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+        return toString();
+    }
+
+    protected void interrupt() {
+        if (_interactive) {
+            if (!_db.isInStatement() || _db.isCancelled()) {
+                // The conventional exit code for death by SIGINT:
+                System.exit(130);
+            }
+        } else {
+            if (_interrupted) System.exit(130);
+            _interrupted = true;
+            _err.println();
+            _err.println("Interrupted; skipping the rest of the input");
+        }
+        _db.cancel();
+        return;
+    }
+}
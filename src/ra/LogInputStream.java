@@ -10,6 +10,14 @@ public class LogInputStream extends InputStream {
         _in = in;
         return;
     }
+    // Sends the input logged from now on to out instead:
+    public void setLog(OutputStream out) {
+        _out = out;
+        return;
+    }
+    public OutputStream getLog() {
+        return _out;
+    }
     public int available() throws IOException {
         return _in.available();
     }
@@ -24,8 +32,10 @@ public class LogInputStream extends InputStream {
     }
     public int read() throws IOException {
         int b = _in.read();
-        _out.write(b);
-        _out.flush();
+        if (b >= 0) {
+            _out.write(b);
+            _out.flush();
+        }
         return b;
     }
     public int read(byte[] b) throws IOException {
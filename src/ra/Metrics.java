@@ -0,0 +1,255 @@
+package ra;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counters and latency histograms for the hot paths of RA, turned on
+// by --metrics, published as JMX MBeans (named "ra:type=Timer,name=..."
+// and "ra:type=Counter,name=...") and printed by \stats.  Metrics are
+// off by default, in which case start() and add() only check a flag.
+// Histograms are lock-free: each power of two is split into
+// SUB_BUCKETS buckets, so percentiles are accurate to within about
+// 1/SUB_BUCKETS of the value.
+public class Metrics {
+
+    public interface TimerMBean {
+        public long getCount();
+        public double getTotalMillis();
+        public double getMeanMillis();
+        public double getP50Millis();
+        public double getP95Millis();
+        public double getP99Millis();
+        public double getMaxMillis();
+    }
+
+    public interface CounterMBean {
+        public long getValue();
+    }
+
+    protected static final int SUB_BUCKET_BITS = 3;
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    public static class Timer implements TimerMBean {
+        protected String _name;
+        protected AtomicLong _count = new AtomicLong();
+        protected AtomicLong _totalNanos = new AtomicLong();
+        protected AtomicLong _maxNanos = new AtomicLong();
+        protected AtomicLongArray _buckets = new AtomicLongArray(64*SUB_BUCKETS);
+        protected Timer(String name) {
+            _name = name;
+        }
+        public String getName() {
+            return _name;
+        }
+        // Records the time since start, which came from Metrics.start():
+        public void stop(long start) {
+            if (start == 0) return;
+            record(System.nanoTime() - start);
+            return;
+        }
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            _count.incrementAndGet();
+            _totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = _maxNanos.get()) && !_maxNanos.compareAndSet(max, nanos));
+            _buckets.incrementAndGet(bucketOf(nanos));
+            return;
+        }
+        public long getCount() {
+            return _count.get();
+        }
+        public double getTotalMillis() {
+            return _totalNanos.get()/1000000.0;
+        }
+        public double getMeanMillis() {
+            long count = _count.get();
+            return (count == 0)? 0 : getTotalMillis()/count;
+        }
+        public double getP50Millis() {
+            return getPercentileNanos(0.50)/1000000.0;
+        }
+        public double getP95Millis() {
+            return getPercentileNanos(0.95)/1000000.0;
+        }
+        public double getP99Millis() {
+            return getPercentileNanos(0.99)/1000000.0;
+        }
+        public double getMaxMillis() {
+            return _maxNanos.get()/1000000.0;
+        }
+        // Returns the midpoint of the bucket holding the given
+        // percentile (but no more than the maximum seen):
+        public long getPercentileNanos(double percentile) {
+            long count = 0;
+            for (int i=0; i<_buckets.length(); i++) {
+                count += _buckets.get(i);
+            }
+            if (count == 0) return 0;
+            long rank = (long)Math.ceil(percentile*count);
+            long seen = 0;
+            for (int i=0; i<_buckets.length(); i++) {
+                seen += _buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((bucketLowerBound(i) + bucketLowerBound(i+1))/2, _maxNanos.get());
+                }
+            }
+            return _maxNanos.get();
+        }
+    }
+
+    public static class Counter implements CounterMBean {
+        protected String _name;
+        protected AtomicLong _value = new AtomicLong();
+        protected Counter(String name) {
+            _name = name;
+        }
+        public String getName() {
+            return _name;
+        }
+        public void add(long n) {
+            if (_enabled) _value.addAndGet(n);
+            return;
+        }
+        public long getValue() {
+            return _value.get();
+        }
+    }
+
+    // Counts the bytes written through it:
+    protected static class CountingOutputStream extends FilterOutputStream {
+        protected Counter _counter;
+        public CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            _counter = counter;
+        }
+        public void write(int b)
+            throws IOException {
+            out.write(b);
+            _counter.add(1);
+        }
+        public void write(byte[] b, int off, int len)
+            throws IOException {
+            out.write(b, off, len);
+            _counter.add(len);
+        }
+    }
+
+    protected static volatile boolean _enabled = false;
+    protected static List<Timer> _timers = new ArrayList<Timer>();
+    protected static List<Counter> _counters = new ArrayList<Counter>();
+
+    // Parsing a statement (see RAScriptParser):
+    public static final Timer PARSE = newTimer("parse");
+    // Validating one node (see RAXNode.validate()), not counting the
+    // time spent on its inputs:
+    public static final Timer VALIDATE = newTimer("validate");
+    public static final Timer CREATE_VIEW = newTimer("createView");
+    public static final Timer DROP_VIEW = newTimer("dropView");
+    public static final Timer GET_TABLE_SCHEMA = newTimer("getTableSchema");
+    // Running a query and printing or exporting its result (see
+    // DB.execQueryAndOutputResult() and execQueryAndExportResult()),
+    // and the printing or exporting part only:
+    public static final Timer EXEC_QUERY = newTimer("execQuery");
+    public static final Timer PRINT_RESULT_SET = newTimer("printResultSet");
+    public static final Timer EXPORT_RESULT_SET = newTimer("exportResultSet");
+    // Rows read from the database and printed by DB.printResultSet()
+    // or written by ResultExporter:
+    public static final Counter ROWS_STREAMED = newCounter("rowsStreamed");
+    // Bytes of output written (see countBytes()):
+    public static final Counter BYTES_WRITTEN = newCounter("bytesWritten");
+
+    protected static Timer newTimer(String name) {
+        Timer timer = new Timer(name);
+        _timers.add(timer);
+        return timer;
+    }
+
+    protected static Counter newCounter(String name) {
+        Counter counter = new Counter(name);
+        _counters.add(counter);
+        return counter;
+    }
+
+    public static boolean isEnabled() {
+        return _enabled;
+    }
+
+    // Turns metrics on, and registers the MBeans with the platform
+    // MBean server:
+    public static void enable()
+        throws JMException {
+        _enabled = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Timer timer : _timers) {
+            server.registerMBean(new StandardMBean(timer, TimerMBean.class),
+                                 new ObjectName("ra:type=Timer,name=" + timer.getName()));
+        }
+        for (Counter counter : _counters) {
+            server.registerMBean(new StandardMBean(counter, CounterMBean.class),
+                                 new ObjectName("ra:type=Counter,name=" + counter.getName()));
+        }
+        return;
+    }
+
+    // Returns the start time to pass to Timer.stop(), or 0 if metrics
+    // are off:
+    public static long start() {
+        return _enabled? System.nanoTime() : 0;
+    }
+
+    // Wraps out so that what is written to it counts toward
+    // BYTES_WRITTEN:
+    public static PrintStream countBytes(PrintStream out) {
+        return new PrintStream(new CountingOutputStream(out, BYTES_WRITTEN), true);
+    }
+
+    // Buckets for values below SUB_BUCKETS hold one value each; above
+    // that, bucket i covers [bucketLowerBound(i), bucketLowerBound(i+1)).
+    protected static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int)nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        return (exponent+1)*SUB_BUCKETS + (int)((nanos >> exponent) & (SUB_BUCKETS-1));
+    }
+
+    protected static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket/SUB_BUCKETS - 1;
+        return (long)(SUB_BUCKETS + bucket%SUB_BUCKETS) << exponent;
+    }
+
+    public static void print(PrintStream out) {
+        if (!_enabled) {
+            out.println("Metrics are off; start ra with --metrics to collect them");
+            out.println();
+            return;
+        }
+        out.println("-----");
+        out.println(String.format("%-16s %8s %12s %10s %10s %10s %10s %10s",
+                                  "Timer (ms)", "count", "total", "mean", "p50", "p95", "p99", "max"));
+        for (Timer timer : _timers) {
+            out.println(String.format("%-16s %8d %12.3f %10.3f %10.3f %10.3f %10.3f %10.3f",
+                                      timer.getName(), timer.getCount(), timer.getTotalMillis(),
+                                      timer.getMeanMillis(), timer.getP50Millis(),
+                                      timer.getP95Millis(), timer.getP99Millis(),
+                                      timer.getMaxMillis()));
+        }
+        out.println("-----");
+        for (Counter counter : _counters) {
+            out.println(counter.getName() + ": " + counter.getValue());
+        }
+        out.println();
+        return;
+    }
+}
@@ -2,6 +2,8 @@ package ra;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.sql.*;
 import jargs.gnu.CmdLineParser;
@@ -12,94 +14,235 @@ import antlr.collections.AST;
 import jline.console.ConsoleReader;
 import jline.console.completer.StringsCompleter;
 
+// The interpreter, and one session of it: the input it reads
+// statements from, where their results go, the database session it
+// evaluates them in, and how.  main() runs a session on the command
+// line; RAServer runs many at once, one for each client.
 public class RA {
 
-    protected static PrintStream out = System.out;
-    protected static PrintStream err = System.err;
-    protected static InputStream in = null;
-    protected static ConsoleReader reader = null;
-    protected static DB db = null;
+    protected PrintStream _out = System.out;
+    protected PrintStream _err = System.err;
+    protected InputStream _in = null;
+    protected ConsoleReader _reader = null;
+    // Whether to write prompts to _out (for interactive sessions
+    // without a console; see RAServer):
+    protected boolean _showPrompt = false;
+    protected DB _db = null;
+    protected boolean _verbose = false;
+    protected String _mode = "views";
+    protected boolean _optimize = false;
+    protected boolean _materialize = false;
+    protected TranscriptWriter _transcript = null;
+    // Where query results go instead of being printed (--export):
+    protected ResultExporter _exporter = null;
+    // Whether \export may write files; not for clients of an RAServer,
+    // who would otherwise write wherever the server may:
+    protected boolean _allowExport = true;
+    // Cancels the statement being evaluated on Ctrl-C (null if it
+    // cannot be installed):
+    protected InterruptHandler _interruptHandler = null;
+    // Set by \quit or at the end of input:
+    protected boolean _done = false;
 
-    protected static void exit(int code) {
+    protected RA() {
+    }
+
+    // A session in db with the default options (e.g., as the template
+    // for the sessions of an RAServer):
+    public RA(DB db) {
+        _db = db;
+    }
+
+    // A session that evaluates statements the same way as other, but
+    // in db, reading statements from in and writing to out and err:
+    public RA(RA other, DB db, InputStream in, PrintStream out, PrintStream err) {
+        _db = db;
+        _in = in;
+        _out = out;
+        _err = err;
+        _verbose = other._verbose;
+        _mode = other._mode;
+        _optimize = other._optimize;
+        _materialize = other._materialize;
+    }
+
+    // Closes everything that belongs to the session:
+    public void close() {
         try {
-            if (db != null) db.close();
+            if (_db != null) _db.close();
         } catch (SQLException e) {
             // Simply ignore.
         }
+        if (_exporter != null) {
+            try {
+                _exporter.close();
+            } catch (IOException e) {
+                System.err.println("Error writing " + _exporter.getPath() + ":");
+                System.err.println(e.toString());
+            }
+        }
+        if (_transcript != null) {
+            try {
+                _transcript.close();
+            } catch (IOException e) {
+                System.err.println("Error writing transcript:");
+                System.err.println(e.toString());
+            }
+        }
+        return;
+    }
+
+    protected void exit(int code) {
+        close();
         System.exit(code);
     }
 
-    protected static void welcome() {
-        out.println();
-        out.println("RA: an interactive relational algebra interpreter");
-        out.println("Version " + RA.class.getPackage().getImplementationVersion() +
-                    " by Jun Yang (junyang@cs.duke.edu)");
-        out.println("http://www.cs.duke.edu/~junyang/ra/");
-        out.println("Type \"\\help;\" for help");
-        out.println();
+    protected void welcome() {
+        _out.println();
+        _out.println("RA: an interactive relational algebra interpreter");
+        _out.println("Version " + RA.class.getPackage().getImplementationVersion() +
+                     " by Jun Yang (junyang@cs.duke.edu)");
+        _out.println("http://www.cs.duke.edu/~junyang/ra/");
+        _out.println("Type \"\\help;\" for help");
+        _out.println();
         return;
     }
 
-    protected static void usage() {
-        out.println("Usage: ra [Options] [PROPS_FILE]");
-        out.println("Options:");
-        out.println("  -h: print this message, and exit");
-        out.println("  -i FILE: read commands from FILE instead of standard input");
-        out.println("  -o FILE: save a transcript of the session in FILE");
-        out.println("  -v: turn on verbose output");
-        out.println("  -l URL: use URL for JDBC database connection");
-        out.println("    (overriding the URL in PROPS_FILE)");
-        out.println("  -p PASSWD: use PASSWD to connect to the database");
-        out.println("    (overriding any password in PROPS_FILE)");
-        out.println("  -P: prompt for database password");
-        out.println("    (overriding any password in PROPS_FILE)");
-        out.println("  -u USER: connect to the database as USER");
-        out.println("    (overriding any user in PROPS_FILE)");
-        out.println("PROPS_FILE: specifies the JDBC connection URL and properties");
-        out.println("    (defaults to /ra/ra.properties packaged in ra.jar)");
-        out.println();
+    protected void usage() {
+        _out.println("Usage: ra [Options] [PROPS_FILE]");
+        _out.println("Options:");
+        _out.println("  -h: print this message, and exit");
+        _out.println("  -i FILE: read commands from FILE instead of standard input");
+        _out.println("  -o FILE: save a transcript of the session in FILE");
+        _out.println("  --parallel N: with -i (where all commands in FILE are parsed first),");
+        _out.println("    evaluate queries between \\sqlexec and \\list commands concurrently,");
+        _out.println("    using N extra database connections (output stays in order)");
+        _out.println("  --export FORMAT,PATH: write the results of queries to the file PATH,");
+        _out.println("    instead of printing them, as csv, jsonl (JSON Lines) or binary");
+        _out.println("  --server PORT: instead of reading commands, accept sessions from");
+        _out.println("    clients on this machine connecting to TCP port PORT; sessions share");
+        _out.println("    the database connections (at most poolMaxSize in PROPS_FILE at once)");
+        _out.println("  -t SECONDS: cancel queries (and \\sqlexec commands) that run for more");
+        _out.println("    than SECONDS seconds; Ctrl-C cancels them at any time");
+        _out.println("  -v: turn on verbose output");
+        _out.println("  --metrics: collect timings and counters for parsing, validation,");
+        _out.println("    and query evaluation, printed by \\stats and published through JMX");
+        _out.println("  -m MODE: evaluate queries in MODE, which is one of");
+        _out.println("    views: create one database view per operator (default)");
+        _out.println("    compile: compile each query into a single SQL statement");
+        _out.println("    native: evaluate each query inside ra, reading only base tables");
+        _out.println("      from the database (no views are created)");
+        _out.println("  -F N: fetch query results from the database N rows at a time");
+        _out.println("    (defaults to " + DB.DEFAULT_FETCH_SIZE + "; 0 leaves it to the JDBC driver, which may");
+        _out.println("    fetch entire results into memory)");
+        _out.println("  -C MB: cache up to MB megabytes of query results in memory, and");
+        _out.println("    reuse them when the same query is evaluated again (until a");
+        _out.println("    \\sqlexec command modifies the relations it reads)");
+        _out.println("  -O: rewrite queries (e.g., push selections and projections down)");
+        _out.println("    before evaluating them");
+        _out.println("  -M: in views mode, store the results of subqueries that are used");
+        _out.println("    more than once, or joined after joins, in (indexed) temporary tables");
+        _out.println("    instead of views");
+        _out.println("  -l URL: use URL for JDBC database connection");
+        _out.println("    (overriding the URL in PROPS_FILE)");
+        _out.println("  -p PASSWD: use PASSWD to connect to the database");
+        _out.println("    (overriding any password in PROPS_FILE)");
+        _out.println("  -P: prompt for database password");
+        _out.println("    (overriding any password in PROPS_FILE)");
+        _out.println("  -u USER: connect to the database as USER");
+        _out.println("    (overriding any user in PROPS_FILE)");
+        _out.println("PROPS_FILE: specifies the JDBC connection URL and properties");
+        _out.println("    (defaults to /ra/ra.properties packaged in ra.jar)");
+        _out.println();
         return;
     }
 
-    protected static void prompt(int line) {
-        if (reader == null) return;
-        reader.setPrompt((line == 1)? "ra> " : "" + line + "> ");
+    // Called by the lexer (see RAScriptParser) whenever it needs a
+    // new line of input:
+    protected void prompt(int line) {
+        if (_reader != null) {
+            _reader.setPrompt((line == 1)? "ra> " : "" + line + "> ");
+        } else if (_showPrompt && line == 1) {
+            _out.print("ra> ");
+            _out.flush();
+        }
         return;
     }
 
-    protected static void exit() {
+    protected void quit(PrintStream out) {
         out.println("Bye!");
         out.println();
-        exit(0);
+        _done = true;
         return;
     }
 
-    protected static String getPassword(ConsoleReader reader) {
+    public boolean isDone() {
+        return _done;
+    }
+
+    protected String getPassword(ConsoleReader reader) {
         String password = null;
         try {
             password = reader.readLine("Password: ", new Character((char)0));
         } catch (IOException e) {
         }
         if (password == null) {
-            err.println("Error reading password input");
-            err.println();
+            _err.println("Error reading password input");
+            _err.println();
             exit(1);
         }
         return password;
     }
 
-    protected static void skipInput() {
+    // Called after each statement; this is when the transcript is
+    // brought up to date, and when a pooled database session gives
+    // its connection back (see DB.releaseIdleConnection()).
+    protected void endStatement() {
+        _out.flush();
+        _db.releaseIdleConnection();
+        if (_transcript == null) return;
         try {
-            (new BufferedReader(new InputStreamReader(in))).readLine();
+            _transcript.flushBuffered();
         } catch (IOException e) {
-            err.println("Unexceptected I/O error:");
-            err.println(e.toString());
-            err.println();
-            exit(1);
+            // Output to the transcript is discarded from now on.
+            _transcript = null;
+            _err.println("Error writing transcript; transcript stopped:");
+            _err.println(e.toString());
+            _err.println();
         }
+        return;
+    }
+
+    // Reads and evaluates statements one at a time, until \quit or
+    // the end of input:
+    public void run() {
+        RAScriptParser parser = new RAScriptParser(_in, this);
+        while (!_done) {
+            try {
+                CommonAST ast = parser.next();
+                evaluate(_verbose, _db, ast);
+            } catch (TokenStreamException e) {
+                _err.println("Error tokenizing input:");
+                _err.println(e.toString());
+                _err.println("Rest of statement skipped");
+                _err.println();
+            } catch (RecognitionException e) {
+                _err.println("Error parsing input:");
+                _err.println(e.toString());
+                _err.println("Rest of statement skipped");
+                _err.println();
+            }
+            endStatement();
+        }
+        return;
     }
 
     public static void main(String[] args) {
+        new RA().start(args);
+        return;
+    }
+
+    protected void start(String[] args) {
 
         welcome();
         CmdLineParser cmdLineParser = new CmdLineParser();
@@ -112,10 +255,20 @@ public class RA {
         CmdLineParser.Option urlO = cmdLineParser.addStringOption('l', "url");
         CmdLineParser.Option userO = cmdLineParser.addStringOption('u', "user");
         CmdLineParser.Option verboseO = cmdLineParser.addBooleanOption('v', "verbose");
+        CmdLineParser.Option modeO = cmdLineParser.addStringOption('m', "mode");
+        CmdLineParser.Option optimizeO = cmdLineParser.addBooleanOption('O', "optimize");
+        CmdLineParser.Option materializeO = cmdLineParser.addBooleanOption('M', "materialize");
+        CmdLineParser.Option fetchSizeO = cmdLineParser.addIntegerOption('F', "fetch-size");
+        CmdLineParser.Option parallelO = cmdLineParser.addIntegerOption("parallel");
+        CmdLineParser.Option resultCacheO = cmdLineParser.addIntegerOption('C', "result-cache");
+        CmdLineParser.Option metricsO = cmdLineParser.addBooleanOption("metrics");
+        CmdLineParser.Option exportO = cmdLineParser.addStringOption("export");
+        CmdLineParser.Option timeoutO = cmdLineParser.addIntegerOption('t', "timeout");
+        CmdLineParser.Option serverO = cmdLineParser.addIntegerOption("server");
         try {
             cmdLineParser.parse(args);
         } catch (CmdLineParser.OptionException e) {
-            err.println(e.getMessage());
+            _err.println(e.getMessage());
             usage();
             exit(1);
         }
@@ -127,7 +280,66 @@ public class RA {
         String schema = (String)cmdLineParser.getOptionValue(schemaO);
         String url = (String)cmdLineParser.getOptionValue(urlO);
         String user = (String)cmdLineParser.getOptionValue(userO);
-        boolean verbose = ((Boolean)cmdLineParser.getOptionValue(verboseO, Boolean.FALSE)).booleanValue();
+        _verbose = ((Boolean)cmdLineParser.getOptionValue(verboseO, Boolean.FALSE)).booleanValue();
+        _mode = (String)cmdLineParser.getOptionValue(modeO, "views");
+        _optimize = ((Boolean)cmdLineParser.getOptionValue(optimizeO, Boolean.FALSE)).booleanValue();
+        _materialize = ((Boolean)cmdLineParser.getOptionValue(materializeO, Boolean.FALSE)).booleanValue();
+        int fetchSize = ((Integer)cmdLineParser.getOptionValue(fetchSizeO, Integer.valueOf(DB.DEFAULT_FETCH_SIZE))).intValue();
+        int parallel = ((Integer)cmdLineParser.getOptionValue(parallelO, Integer.valueOf(0))).intValue();
+        int resultCacheSize = ((Integer)cmdLineParser.getOptionValue(resultCacheO, Integer.valueOf(0))).intValue();
+        boolean metrics = ((Boolean)cmdLineParser.getOptionValue(metricsO, Boolean.FALSE)).booleanValue();
+        String exportOption = (String)cmdLineParser.getOptionValue(exportO);
+        String[] export = (exportOption == null)? null : parseExportOption(exportOption);
+        int timeout = ((Integer)cmdLineParser.getOptionValue(timeoutO, Integer.valueOf(0))).intValue();
+        Integer serverPort = (Integer)cmdLineParser.getOptionValue(serverO);
+        if (!_mode.equals("views") && !_mode.equals("compile") && !_mode.equals("native")) {
+            _err.println("Unknown evaluation mode '" + _mode + "'");
+            usage();
+            exit(1);
+        }
+        if (_materialize && !_mode.equals("views")) {
+            _err.println("-M only applies to the views mode");
+            usage();
+            exit(1);
+        }
+        if (fetchSize < 0) {
+            _err.println("Fetch size must not be negative");
+            usage();
+            exit(1);
+        }
+        if (resultCacheSize < 0) {
+            _err.println("Result cache size must not be negative");
+            usage();
+            exit(1);
+        }
+        if (timeout < 0) {
+            _err.println("Timeout must not be negative");
+            usage();
+            exit(1);
+        }
+        if (serverPort != null &&
+            (serverPort.intValue() < 0 || inFileName != null || outFileName != null || exportOption != null)) {
+            _err.println("--server requires a port number, and cannot be used with -i, -o or --export");
+            usage();
+            exit(1);
+        }
+        if (parallel < 0 || (parallel > 0 && inFileName == null)) {
+            _err.println("--parallel requires -i and a positive number of connections");
+            usage();
+            exit(1);
+        }
+        if (exportOption != null) {
+            if (export == null) {
+                _err.println("--export requires a format (csv, jsonl or binary) and a path, e.g., csv,out.csv");
+                usage();
+                exit(1);
+            }
+            if (parallel > 0 || _mode.equals("native")) {
+                _err.println("--export cannot be used with --parallel or in the native mode");
+                usage();
+                exit(1);
+            }
+        }
         if (help) {
             usage();
             exit(1);
@@ -142,34 +354,70 @@ public class RA {
         }
         if (inFileName != null) {
             try {
-                in = new FileInputStream(inFileName);
+                // Only ever read by one parser (see RAScriptParser), so
+                // buffering can't lose any input:
+                _in = new BufferedInputStream(new FileInputStream(inFileName));
             } catch (FileNotFoundException e) {
-                err.println("Error opening input file '" + inFileName + "'");
-                err.println();
+                _err.println("Error opening input file '" + inFileName + "'");
+                _err.println();
                 exit(1);
             }
-        } else {
+        } else if (serverPort == null) {
             try {
-                reader = new ConsoleReader();
+                _reader = new ConsoleReader();
                 // Make sure ConsoleReader doesn't do funny things with backslashes:
-                reader.setExpandEvents(false);
-                in = new ConsoleReaderInputStream(reader);
+                _reader.setExpandEvents(false);
+                _in = new ConsoleReaderInputStream(_reader);
             } catch (IOException e) {
-                err.println("Unexceptected I/O error:");
-                err.println(e.toString());
-                err.println();
+                _err.println("Unexceptected I/O error:");
+                _err.println(e.toString());
+                _err.println();
                 exit(1);
             }
         }
+        if (metrics) {
+            try {
+                Metrics.enable();
+            } catch (javax.management.JMException e) {
+                _err.println("Error publishing metrics through JMX; metrics still available through \\stats");
+                _err.println(e.toString());
+                _err.println();
+            }
+            _out = Metrics.countBytes(_out);
+        }
         if (outFileName != null) {
             try {
-                OutputStream log = new FileOutputStream(outFileName, true);
-                out = new TeePrintStream(out, log);
-                err = new TeePrintStream(err, log);
-                in = new LogInputStream(in, log);
+                _transcript = new TranscriptWriter(new FileOutputStream(outFileName, true));
+                // Ctrl-C exits (see InterruptHandler) don't go through
+                // exit(), but what is buffered still belongs in the
+                // transcript; closing it again does nothing.
+                final TranscriptWriter transcript = _transcript;
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            try {
+                                transcript.close();
+                            } catch (IOException e) {
+                                // Too late to report.
+                            }
+                        }
+                    });
+                OutputStream log = _transcript;
+                _out = new TeePrintStream(_out, log);
+                _err = new TeePrintStream(_err, log);
+                _in = new LogInputStream(_in, log);
             } catch (FileNotFoundException e) {
-                err.println("Error opening output file '" + outFileName + "'");
-                err.println();
+                _err.println("Error opening output file '" + outFileName + "'");
+                _err.println();
+                exit(1);
+            }
+        }
+        if (export != null) {
+            try {
+                _exporter = ResultExporter.open(export[0], export[1]);
+            } catch (IOException e) {
+                _err.println("Error opening export file '" + export[1] + "'");
+                _err.println(e.toString());
+                _err.println();
                 exit(1);
             }
         }
@@ -178,24 +426,24 @@ public class RA {
         if (propsFileName == null) {
             propsIn = RA.class.getResourceAsStream("ra.properties");
             if (propsIn == null) {
-                err.println("Error loading properties from /ra/ra.properties in the jar file");
+                _err.println("Error loading properties from /ra/ra.properties in the jar file");
                 exit(1);
             }
             try {
                 props.load(propsIn);
             } catch (IOException e) {
-                err.println("Error loading properties from /ra/ra.properties in the jar file");
-                err.println(e.toString());
-                err.println();
+                _err.println("Error loading properties from /ra/ra.properties in the jar file");
+                _err.println(e.toString());
+                _err.println();
                 exit(1);
             }
         } else {
             try {
                 props.load(new FileInputStream(propsFileName));
             } catch (IOException e) {
-                err.println("Error loading properties from " + propsFileName);
-                err.println(e.toString());
-                err.println();
+                _err.println("Error loading properties from " + propsFileName);
+                _err.println(e.toString());
+                _err.println();
                 exit(1);
             }
         }
@@ -208,67 +456,110 @@ public class RA {
         if (promptPassword) {
             try {
                 props.setProperty("password",
-                                  getPassword((reader == null)?
+                                  getPassword((_reader == null)?
                                               new ConsoleReader() :
-                                              reader));
+                                              _reader));
             } catch (IOException e) {
-                err.println("Unexceptected I/O error:");
-                err.println(e.toString());
-                err.println();
+                _err.println("Unexceptected I/O error:");
+                _err.println(e.toString());
+                _err.println();
                 exit(1);
             }
         }
         try {
-            db = new DB(props.getProperty("url"), props);
+            _db = new DB(props.getProperty("url"), props);
+            _db.setFetchSize(fetchSize);
+            _db.setQueryTimeout(timeout);
+            if (resultCacheSize > 0) {
+                _db.setResultCache(new ResultCache(1024L*1024L*resultCacheSize));
+            }
         } catch (Exception e) {
-            err.println("Error connecting to the database");
-            err.println(e.toString());
-            err.println();
+            _err.println("Error connecting to the database");
+            _err.println(e.toString());
+            _err.println();
             exit(1);
         }
         if (schema != null)
             props.setProperty("schema", schema);
 
-        if (reader != null) {
-            reader.addCompleter(new StringsCompleter(new String [] {
-                "\\help;", "\\quit;", "\\list;", "\\sqlexec_{",
+        if (serverPort != null) {
+            try {
+                RAServer server = new RAServer(this, serverPort.intValue());
+                _out.println("Accepting sessions on port " + server.getPort());
+                _out.println();
+                server.serve();
+            } catch (IOException e) {
+                _err.println("Error accepting sessions on port " + serverPort);
+                _err.println(e.toString());
+                _err.println();
+                exit(1);
+            }
+            exit(0);
+        }
+
+        _interruptHandler = InterruptHandler.install(_db, _reader != null, _err);
+
+        if (_reader != null) {
+            _reader.addCompleter(new StringsCompleter(new String [] {
+                "\\help;", "\\quit;", "\\list;", "\\stats;", "\\sqlexec_{", "\\explain", "analyze", "\\export_{",
                 "\\select_{", "\\project_{", "\\join", "\\join_{", "\\rename_{",
-                "\\cross", "\\union", "\\diff", "\\intersect"
+                "\\cross", "\\union", "\\diff", "\\intersect", "\\sort_{", "\\limit_{"
             }));
         }
 
-        DataInputStream din = new DataInputStream(in);
-        while (true) {
-            // Clean start every time.
-            prompt(1);
-            RALexer lexer = new RALexer(din);
-            RAParser parser = new RAParser(lexer);
+        if (inFileName != null) {
+            // Sessions for --parallel workers, if any:
+            ArrayList<DB> workerDbs = new ArrayList<DB>();
+            // One connection for each worker plus the main one:
+            if (parallel > 0) {
+                _db.getPool().setMaxSize(Math.max(_db.getPool().getMaxSize(), parallel+1));
+            }
             try {
-                parser.start();
-                CommonAST ast = (CommonAST)parser.getAST();
-                evaluate(verbose, db, ast);
-            } catch (TokenStreamException e) {
-                skipInput();
-                err.println("Error tokenizing input:");
-                err.println(e.toString());
-                err.println("Rest of input skipped");
-                err.println();
-                continue;
-            } catch (RecognitionException e) {
-                skipInput();
-                err.println("Error parsing input:");
-                err.println(e.toString());
-                err.println("Rest of input skipped");
-                err.println();
-                continue;
+                for (int i=0; i<parallel; i++) {
+                    workerDbs.add(_db.newSession());
+                }
+            } catch (SQLException e) {
+                _err.println("Error connecting to the database");
+                _err.println(e.toString());
+                _err.println();
+                exit(1);
             }
+            RABatch batch = new RABatch(this, workerDbs);
+            CommonAST last = batch.run(_in, (_in instanceof LogInputStream)? (LogInputStream)_in : null);
+            evaluate(_verbose, _db, last);
+            exit(0);
         }
+
+        run();
+        exit(0);
+    }
+
+    // Splits "FORMAT, PATH" (for --export or \export) into the format
+    // and the path; returns null if either is missing or the format
+    // is unknown:
+    protected static String[] parseExportOption(String option) {
+        int comma = option.indexOf(',');
+        if (comma < 0) return null;
+        String format = option.substring(0, comma).trim();
+        String path = option.substring(comma+1).trim();
+        if (!ResultExporter.isFormat(format) || path.length() == 0) return null;
+        return new String[] { format, path };
     }
 
-    protected static void evaluate(boolean verbose, DB db, CommonAST ast) {
+    protected void evaluate(boolean verbose, DB db, CommonAST ast) {
+        evaluate(verbose, db, ast, _out, _err);
+        return;
+    }
+
+    // Evaluates a statement, writing to the given streams instead of
+    // _out and _err (see RABatch):
+    protected void evaluate(boolean verbose, DB db, CommonAST ast,
+                            PrintStream out, PrintStream err) {
         if (ast.getType() == RALexerTokenTypes.QUIT ||
             ast.getType() == RALexerTokenTypes.EOF) {
-            exit();
+            quit(out);
+        } else if (_interruptHandler != null && _interruptHandler.isInterrupted()) {
+            // Skipping the rest of the input (see InterruptHandler).
         } else if (ast.getType() == RALexerTokenTypes.HELP) {
             out.println("Terminate your commands or expressions by \";\"");
             out.println();
@@ -276,7 +567,13 @@ public class RA {
             out.println("\\help: print this message");
             out.println("\\quit: exit ra");
             out.println("\\list: list all relations in the database");
+            out.println("\\stats: print timings and counters collected with --metrics");
             out.println("\\sqlexec_{STATEMENT}: execute SQL in the database");
+            out.println("\\explain EXP: show how an expression is evaluated (the SQL and");
+            out.println("    database plan for each operator, and where the time goes)");
+            out.println("\\explain analyze EXP: also evaluate each operator, counting rows");
+            out.println("\\export_{FORMAT, PATH} EXP: write the result of an expression to the");
+            out.println("    file PATH, as csv, jsonl (JSON Lines) or binary");
             out.println();
             out.println("Relational algebra expressions:");
             out.println("R: relation named by R");
@@ -289,7 +586,13 @@ public class RA {
             out.println("EXP_1 \\diff EXP_2: difference between two expressions");
             out.println("EXP_1 \\intersect EXP_2: intersection between two expressions");
             out.println("\\rename_{NEW_ATTR_NAME_LIST} EXP: rename all attributes of an expression");
+            out.println("\\sort_{ORDER_BY_LIST} EXP: sort the result of an expression (the order");
+            out.println("    is kept only in the final result, and by \\limit)");
+            out.println("\\limit_{N} EXP: the first N rows of an expression (any N rows, unless");
+            out.println("    it is sorted)");
             out.println();
+        } else if (ast.getType() == RALexerTokenTypes.STATS) {
+            Metrics.print(out);
         } else if (ast.getType() == RALexerTokenTypes.LIST) {
             try {
                 ArrayList<String> tables = db.getTables();
@@ -306,33 +609,176 @@ public class RA {
                 err.println();
             }
         } else if (ast.getType() == RALexerTokenTypes.SQLEXEC) {
+            db.beginStatement();
             try {
                 assert(ast.getFirstChild().getType() == RALexerTokenTypes.OPERATOR_OPTION);
                 String sqlCommands = ast.getFirstChild().getText();
                 db.execCommands(out, sqlCommands);
+                // Errors in the commands themselves are printed with
+                // the results:
+                reportCancelled(db, err);
             } catch (SQLException e) {
-                err.println("Error executing SQL commands");
-                db.printSQLExceptionDetails(e, err, verbose);
-                err.println();
+                if (!reportCancelled(db, err)) {
+                    err.println("Error executing SQL commands");
+                    db.printSQLExceptionDetails(e, err, verbose);
+                    err.println();
+                }
+            } finally {
+                db.endStatement();
             }
         } else {
+            // A query, or \explain [analyze] or \export followed by one:
+            boolean explain = (ast.getType() == RALexerTokenTypes.EXPLAIN);
+            boolean analyze = false;
+            String[] export = null;
+            AST exprAST = ast;
+            if (explain) {
+                exprAST = ast.getFirstChild();
+                if (exprAST.getType() == RALexerTokenTypes.ANALYZE) {
+                    analyze = true;
+                    exprAST = exprAST.getNextSibling();
+                }
+                if (_mode.equals("native")) {
+                    err.println("\\explain is not supported in the native mode");
+                    err.println();
+                    return;
+                }
+            } else if (ast.getType() == RALexerTokenTypes.EXPORT) {
+                assert(ast.getFirstChild().getType() == RALexerTokenTypes.OPERATOR_OPTION);
+                export = parseExportOption(ast.getFirstChild().getText());
+                exprAST = ast.getFirstChild().getNextSibling();
+                if (!_allowExport) {
+                    err.println("\\export is not allowed in server sessions");
+                    err.println();
+                    return;
+                }
+                if (export == null) {
+                    err.println("\\export needs a format (csv, jsonl or binary) and a path, e.g., \\export_{csv, out.csv}");
+                    err.println();
+                    return;
+                }
+                if (_mode.equals("native")) {
+                    err.println("\\export is not supported in the native mode");
+                    err.println();
+                    return;
+                }
+            }
             RAXNode rax = null;
+            RAXEvaluator evaluator = null;
+            RAXExplainer explainer = null;
+            String cacheKey = null;
+            ResultCache.Recorder recorder = null;
+            db.beginStatement();
             try {
                 RAXConstructor constructor = new RAXConstructor();
-                RAXNode.resetViewNameGenerator();
-                rax = constructor.expr(ast);
+                db.resetViewNames();
+                rax = constructor.expr(exprAST);
                 if (verbose) {
                     out.println("Parsed query:");
                     rax.print(verbose, 0, out);
                     out.println("=====");
                 }
-                rax.validate(db);
+                // There is nothing to bind parameters to here:
+                if (!rax.getParameterNames().isEmpty()) {
+                    throw new RAXNode.ValidateException("Parameters (such as :" + rax.getParameterNames().get(0) +
+                                                        ") can only be used in queries prepared through RAEngine", rax);
+                }
+                // Explaining a query is all about evaluating it, and
+                // exporting reads the database's values, not ours:
+                ResultCache resultCache = (explain || export != null || _exporter != null)?
+                    null : db.getResultCache();
+                if (resultCache != null) {
+                    cacheKey = rax.genCacheKey(db);
+                    ResultCache.Result result = resultCache.lookup(db, cacheKey);
+                    if (result != null) {
+                        // Nothing was validated, so nothing to clean:
+                        if (verbose) {
+                            out.println("Result found in cache");
+                            out.println("=====");
+                        }
+                        db.printResult(out, result);
+                        db.endStatement();
+                        return;
+                    }
+                    recorder = resultCache.newRecorder();
+                    db.setResultRecorder(recorder);
+                }
+                if (_optimize) {
+                    rax = new RAXOptimizer(db).optimize(rax);
+                    if (verbose) {
+                        out.println("Optimized query:");
+                        rax.print(verbose, 0, out);
+                        out.println("=====");
+                    }
+                }
+                rax = rax.shareCommonSubexpressions(db, new HashMap<String, RAXNode>());
+                if (verbose) {
+                    Map<RAXNode, Integer> sharedNodes = rax.getSharedNodes();
+                    if (!sharedNodes.isEmpty()) {
+                        out.println("Common subexpressions (each evaluated once):");
+                        for (Map.Entry<RAXNode, Integer> sharedNode : sharedNodes.entrySet()) {
+                            out.println("Merged " + sharedNode.getValue() + " occurrences of:");
+                            sharedNode.getKey().print(false, 4, out);
+                        }
+                        out.println("=====");
+                    }
+                }
+                if (_mode.equals("compile")) {
+                    rax.compile(db);
+                } else if (_mode.equals("native")) {
+                    evaluator = new RAXEvaluator(db, rax);
+                    evaluator.validate();
+                } else {
+                    if (_materialize) rax.chooseMaterializedNodes();
+                    rax.validate(db);
+                }
                 if (verbose) {
                     out.println("Validated query:");
                     rax.print(verbose, 0, out);
+                    if (_mode.equals("compile")) {
+                        out.println("Compiled query:");
+                        out.println(rax.genQuery(db));
+                    }
                     out.println("=====");
                 }
-                rax.execute(db, out);
+                if (explain) {
+                    RAXExplainer e = new RAXExplainer(db, rax, _mode.equals("compile"), analyze);
+                    e.explain();
+                    explainer = e;
+                } else if (evaluator != null) {
+                    evaluator.execute(out);
+                } else if (export != null || _exporter != null) {
+                    ResultExporter target = (export != null)?
+                        ResultExporter.open(export[0], export[1]) : _exporter;
+                    long start = System.nanoTime();
+                    long count;
+                    try {
+                        count = rax.export(db, target);
+                    } finally {
+                        if (target != _exporter) target.close();
+                    }
+                    double seconds = (System.nanoTime() - start)/1e9;
+                    out.println("Exported " + count + " row(s) to " + target.getPath() + " in " +
+                                String.format("%.3f", 1000*seconds) + " ms (" +
+                                String.format("%.0f", count/seconds) + " rows/s)");
+                    out.println();
+                } else {
+                    rax.execute(db, out);
+                }
+                if (recorder != null) {
+                    db.getResultCache().put(db, cacheKey, rax, recorder);
+                }
+                if (verbose) {
+                    out.println("Schema cache: " + db.getSchemaCacheHits() + " hit(s), " +
+                                db.getSchemaCacheMisses() + " miss(es) so far");
+                    if (resultCache != null) {
+                        out.println("Result cache: " + resultCache.getHits() + " hit(s), " +
+                                    resultCache.getMisses() + " miss(es) so far; " +
+                                    resultCache.getNumEntries() + " result(s) using " +
+                                    resultCache.getBytes() + " byte(s)");
+                    }
+                    out.println();
+                }
             } catch (RecognitionException e) {
                 // From constructor.expr():
                 err.println("Unexpected error constructing queries from parse tree:");
@@ -340,21 +786,33 @@ public class RA {
                 err.println();
             } catch (RAXNode.ValidateException e) {
                 // From rax.validate():
-                err.println("Error validating subquery:");
-                e.getErrorNode().print(true, 0, err);
-                if (e.getMessage() != null) {
-                    err.println(e.getMessage());
+                if (!reportCancelled(db, err)) {
+                    err.println("Error validating subquery:");
+                    e.getErrorNode().print(true, 0, err);
+                    if (e.getMessage() != null) {
+                        err.println(e.getMessage());
+                    }
+                    if (e.getSQLException() != null) {
+                        db.printSQLExceptionDetails(e.getSQLException(), err, verbose);
+                    }
+                    err.println();
                 }
-                if (e.getSQLException() != null) {
-                    db.printSQLExceptionDetails(e.getSQLException(), err, verbose);
-                }
-                err.println();
             } catch (SQLException e) {
                 // From rax.execute():
-                err.println("Unexpected error executing validated query:");
-                db.printSQLExceptionDetails(e, err, verbose);
+                if (!reportCancelled(db, err)) {
+                    err.println("Unexpected error executing validated query:");
+                    db.printSQLExceptionDetails(e, err, verbose);
+                    err.println();
+                }
+            } catch (IOException e) {
+                // From rax.export():
+                err.println("Error writing exported result:");
+                err.println(e.toString());
                 err.println();
             }
+            db.setResultRecorder(null);
+            // Cleaning up is never cancelled (see DB.cancel()):
+            db.endStatement();
             // Remember to clean up the views created by rax:
             try {
                 if (rax != null) rax.clean(db);
@@ -363,7 +821,20 @@ public class RA {
                 db.printSQLExceptionDetails(e, err, verbose);
                 err.println();
             }
+            // Printed only now that the time spent cleaning up is known:
+            if (explainer != null) explainer.print(out);
         }
         return;
     }
+
+    // Reports that the statement being evaluated was cancelled, with
+    // Ctrl-C or by the timeout, if it was; whatever error it failed
+    // with then is just a consequence, and not worth reporting:
+    protected static boolean reportCancelled(DB db, PrintStream err) {
+        String message = db.getCancelMessage();
+        if (message == null) return false;
+        err.println(message);
+        err.println();
+        return true;
+    }
 }
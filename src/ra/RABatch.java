@@ -0,0 +1,279 @@
+package ra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import antlr.RecognitionException;
+import antlr.TokenStreamException;
+import antlr.CommonAST;
+
+// Runs a whole input script (-i).  The script is parsed completely
+// first, in one pass (see RAScriptParser).  Without worker sessions,
+// the statements are then simply evaluated in order.  With --parallel
+// N, independent statements are evaluated concurrently on N sessions
+// of their own (see DB.newSession()).  \sqlexec and \list statements are
+// barriers: everything before one finishes before it runs (on the
+// main connection), and nothing after it starts until it is done.
+// Everything else (queries and \help) is read-only, and since each
+// connection uses its own prefix for the views it creates, the
+// statements between two barriers can run in any order.  Output,
+// including the transcript, still appears in script order: each
+// statement's output is recorded and replayed once all statements
+// before it have been replayed.  \stats is a barrier too, so that it
+// accounts for everything before it.
+public class RABatch {
+
+    protected static class Statement {
+        protected CommonAST _ast;
+        // The input that the statement was parsed from, for the
+        // transcript (if there is one):
+        protected byte[] _input;
+        protected Recording _output;
+        public Statement(CommonAST ast, byte[] input, Recording output) {
+            _ast = ast;
+            _input = input;
+            _output = output;
+        }
+        public boolean isEnd() {
+            return _ast != null &&
+                (_ast.getType() == RALexerTokenTypes.QUIT ||
+                 _ast.getType() == RALexerTokenTypes.EOF);
+        }
+        public boolean isBarrier() {
+            return _ast != null &&
+                (_ast.getType() == RALexerTokenTypes.SQLEXEC ||
+                 _ast.getType() == RALexerTokenTypes.LIST ||
+                 _ast.getType() == RALexerTokenTypes.STATS);
+        }
+    }
+
+    // Output and error streams whose contents are recorded, in the
+    // order written, for replaying later.  The streams are only set
+    // up when first asked for, since a long script has many
+    // statements waiting their turn.
+    protected static class Recording {
+        protected List<byte[]> _chunks = new ArrayList<byte[]>();
+        protected List<Boolean> _isError = new ArrayList<Boolean>();
+        protected PrintStream _out;
+        protected PrintStream _err;
+        public synchronized PrintStream getOut() {
+            if (_out == null) _out = new PrintStream(new Recorder(false));
+            return _out;
+        }
+        public synchronized PrintStream getErr() {
+            if (_err == null) _err = new PrintStream(new Recorder(true));
+            return _err;
+        }
+        protected class Recorder extends OutputStream {
+            protected boolean _error;
+            public Recorder(boolean error) {
+                _error = error;
+            }
+            public void write(int b) {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+            public void write(byte[] b, int off, int len) {
+                byte[] chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+                synchronized (Recording.this) {
+                    _chunks.add(chunk);
+                    _isError.add(_error);
+                }
+            }
+        }
+        public synchronized void replay(PrintStream out, PrintStream err) {
+            for (int i=0; i<_chunks.size(); i++) {
+                (_isError.get(i)? err : out).write(_chunks.get(i), 0, _chunks.get(i).length);
+            }
+            out.flush();
+            err.flush();
+            return;
+        }
+    }
+
+    protected RA _session;
+    protected boolean _verbose;
+    protected DB _db;
+    // Sessions for the workers, and the indexes of those not in use:
+    protected List<DB> _workerDbs;
+    protected BlockingQueue<Integer> _freeWorkerDbs;
+    protected ExecutorService _executor;
+
+    public RABatch(RA session, List<DB> workerDbs) {
+        _session = session;
+        _verbose = session._verbose;
+        _db = session._db;
+        _workerDbs = workerDbs;
+        if (!workerDbs.isEmpty()) {
+            _freeWorkerDbs = new ArrayBlockingQueue<Integer>(workerDbs.size());
+            for (int i=0; i<workerDbs.size(); i++) {
+                _freeWorkerDbs.add(i);
+                workerDbs.get(i).setViewNamePrefix(DB.DEFAULT_VIEW_NAME_PREFIX + (i+1) + "_");
+            }
+            _executor = Executors.newFixedThreadPool(workerDbs.size());
+        }
+    }
+
+    // Parses and evaluates everything in in.  If the input is being
+    // logged to the transcript, logIn should be given, so that each
+    // statement's input can go into the transcript together with its
+    // output.  Returns the statement that ended the script (\quit or
+    // end of input) without evaluating it.
+    public CommonAST run(InputStream in, LogInputStream logIn) {
+        List<Statement> statements = parse(in, logIn);
+        int i = 0;
+        while (i < statements.size() && !statements.get(i).isEnd()) {
+            if (_workerDbs.isEmpty()) {
+                // No need to record the output:
+                Statement statement = statements.get(i);
+                writeInput(statement);
+                statement._output.replay(_session._out, _session._err);
+                if (statement._ast != null) {
+                    _session.evaluate(_verbose, _db, statement._ast);
+                }
+                _session.endStatement();
+                i++;
+                continue;
+            }
+            if (statements.get(i).isBarrier()) {
+                Statement statement = statements.get(i);
+                _session.evaluate(_verbose, _db, statement._ast, statement._output.getOut(), statement._output.getErr());
+                invalidateWorkerDbs(statement._ast);
+                replay(statement);
+                i++;
+                continue;
+            }
+            // Start everything up to the next barrier:
+            int j = i;
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            while (j < statements.size() &&
+                   !statements.get(j).isBarrier() && !statements.get(j).isEnd()) {
+                Statement statement = statements.get(j);
+                results.add((statement._ast == null)? null : _executor.submit(evaluation(statement)));
+                j++;
+            }
+            for (int k=i; k<j; k++) {
+                Future<Void> result = results.get(k-i);
+                if (result != null) {
+                    try {
+                        result.get();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+                replay(statements.get(k));
+            }
+            i = j;
+        }
+        if (_executor != null) _executor.shutdown();
+        for (DB workerDb : _workerDbs) {
+            try {
+                workerDb.close();
+            } catch (SQLException e) {
+                // Simply ignore, as RA.close() does.
+            }
+        }
+        Statement last = statements.get(statements.size()-1);
+        writeInput(last);
+        return last._ast;
+    }
+
+    protected List<Statement> parse(InputStream in, LogInputStream logIn) {
+        List<Statement> statements = new ArrayList<Statement>();
+        RAScriptParser parser = new RAScriptParser(in, null);
+        // Each statement's input is logged on its own, and the input
+        // that follows the batch goes to the transcript again:
+        OutputStream previousLog = (logIn == null)? null : logIn.getLog();
+        try {
+            while (true) {
+                ByteArrayOutputStream input = new ByteArrayOutputStream();
+                if (logIn != null) logIn.setLog(input);
+                Recording output = new Recording();
+                CommonAST ast = null;
+                try {
+                    ast = parser.next();
+                } catch (TokenStreamException e) {
+                    output.getErr().println("Error tokenizing input:");
+                    output.getErr().println(e.toString());
+                    output.getErr().println("Rest of statement skipped");
+                    output.getErr().println();
+                } catch (RecognitionException e) {
+                    output.getErr().println("Error parsing input:");
+                    output.getErr().println(e.toString());
+                    output.getErr().println("Rest of statement skipped");
+                    output.getErr().println();
+                }
+                Statement statement = new Statement(ast, input.toByteArray(), output);
+                statements.add(statement);
+                if (statement.isEnd()) break;
+            }
+        } finally {
+            if (logIn != null) logIn.setLog(previousLog);
+        }
+        if (_verbose) {
+            _session._out.println("Parsed " + parser.getNumStatements() + " statement(s) in " +
+                                  String.format("%.3f", parser.getParseNanos()/1e6) + " ms (" +
+                                  String.format("%.0f", parser.getStatementsPerSecond()) + " statements/s)");
+            _session._out.println("=====");
+        }
+        return statements;
+    }
+
+    protected Callable<Void> evaluation(final Statement statement) {
+        return new Callable<Void>() {
+            public Void call()
+                throws InterruptedException {
+                int k = _freeWorkerDbs.take();
+                try {
+                    _session.evaluate(_verbose, _workerDbs.get(k), statement._ast,
+                                      statement._output.getOut(), statement._output.getErr());
+                } finally {
+                    _freeWorkerDbs.put(k);
+                }
+                return null;
+            }
+        };
+    }
+
+    // After a barrier, makes sure the workers won't use schemas that
+    // it might have changed:
+    protected void invalidateWorkerDbs(CommonAST ast) {
+        if (ast.getType() != RALexerTokenTypes.SQLEXEC) return;
+        String sqlCommands = ast.getFirstChild().getText();
+        for (DB workerDb : _workerDbs) {
+            workerDb.invalidateSchemaCache(DB.parseModifiedRelations(sqlCommands));
+        }
+        return;
+    }
+
+    protected void replay(Statement statement) {
+        writeInput(statement);
+        statement._output.replay(_session._out, _session._err);
+        _session.endStatement();
+        return;
+    }
+
+    protected void writeInput(Statement statement) {
+        if (_session._transcript == null) return;
+        try {
+            _session._transcript.write(statement._input);
+        } catch (IOException e) {
+            // Reported by RA.endStatement().
+        }
+        return;
+    }
+}
@@ -0,0 +1,305 @@
+package ra;
+
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import antlr.ANTLRException;
+import antlr.collections.AST;
+
+// Evaluates relational algebra for other Java code, which gets the
+// rows of results as Java objects instead of printed text.  A query
+// is prepared once (see prepare()): it is parsed, validated, and
+// compiled into a single SQL query (as in the compile mode), which
+// needs no views, so nothing has to be created or cleaned up when
+// it is executed.  Prepared queries can then be executed any number
+// of times, by any number of threads at once; each execution borrows
+// one of the pool's connections (see DB.newPooledSession()) until
+// its rows are read or it is closed.  Conditions may contain
+// parameters, like \select_{price > :p} Serves, which become
+// parameters ("?") of a JDBC PreparedStatement, and are given values
+// each time the query is executed; the SQL is then the same every
+// time, so that the database can reuse its plan for it (where the
+// driver caches prepared statements), and values never need quoting.
+// A prepared query does not notice changes to the schemas of the
+// relations it references; it simply fails when executed, and needs
+// to be prepared again.
+public class RAEngine {
+
+    // Called with each row of a result (see Query.execute()):
+    public interface RowHandler {
+        public void row(Object[] row)
+            throws SQLException;
+    }
+
+    protected DB _db;
+    protected boolean _ownsDB;
+    protected boolean _optimize;
+
+    // Queries are evaluated in sessions created from db, which is
+    // left open by close():
+    public RAEngine(DB db) {
+        _db = db;
+        _ownsDB = false;
+        _optimize = false;
+        return;
+    }
+
+    public RAEngine(String connURL, Properties connProperties)
+        throws Exception {
+        this(new DB(connURL, connProperties));
+        _ownsDB = true;
+        return;
+    }
+
+    public DB getDB() {
+        return _db;
+    }
+
+    // Whether to rewrite queries as with -O (see RAXOptimizer) when
+    // preparing them:
+    public void setOptimize(boolean optimize) {
+        _optimize = optimize;
+    }
+
+    public boolean getOptimize() {
+        return _optimize;
+    }
+
+    // Prepares the query expr (a relational algebra expression, with
+    // or without the terminating ";"); throws ANTLRException if expr
+    // cannot be parsed, and ValidateException if it is not a valid
+    // query over the database.
+    public Query prepare(String expr)
+        throws ANTLRException, RAXNode.ValidateException {
+        long metricsStart = Metrics.start();
+        // A ";" only ends a statement at the end of a line:
+        RAParser parser = new RAParser(new RALexer(new StringReader(expr + "\n")));
+        parser.query();
+        AST ast = parser.getAST();
+        Metrics.PARSE.stop(metricsStart);
+        RAXNode rax = new RAXConstructor().expr(ast);
+        DB session = _db.newPooledSession();
+        session.beginStatement();
+        try {
+            if (_optimize) {
+                rax = new RAXOptimizer(session).optimize(rax);
+            }
+            rax = rax.shareCommonSubexpressions(session, new HashMap<String, RAXNode>());
+            rax.compile(session);
+            List<String> paramNames = new ArrayList<String>();
+            String sql = SQLFragment.replaceParameters(rax.genQuery(session), "?", paramNames);
+            return new Query(this, expr, sql, paramNames, rax._outputSchema);
+        } finally {
+            // Compiled queries leave no views to clean up:
+            session.endStatement();
+            try {
+                session.close();
+            } catch (SQLException e) {
+                // Simply ignore.
+            }
+        }
+    }
+
+    // Cancels all executions of queries prepared by this engine that
+    // are running right now (from any thread):
+    public void cancel() {
+        _db.cancel();
+        return;
+    }
+
+    public void close()
+        throws SQLException {
+        if (_ownsDB) _db.close();
+        return;
+    }
+
+    // A query prepared by RAEngine.prepare(), which keeps nothing but
+    // the SQL it was compiled into, and can therefore be executed by
+    // many threads at once.
+    public static class Query {
+        protected RAEngine _engine;
+        protected String _expr;
+        protected String _sql;
+        // The name of the parameter for each "?" in _sql, in order (a
+        // parameter may occur more than once):
+        protected List<String> _paramNames;
+        protected List<String> _colNames;
+        protected List<String> _colTypes;
+        protected Query(RAEngine engine, String expr, String sql, List<String> paramNames,
+                        DB.TableSchema schema) {
+            _engine = engine;
+            _expr = expr;
+            _sql = sql;
+            _paramNames = paramNames;
+            _colNames = Collections.unmodifiableList(new ArrayList<String>(schema.getColNames()));
+            _colTypes = Collections.unmodifiableList(new ArrayList<String>(schema.getColTypes()));
+        }
+        public String getExpr() {
+            return _expr;
+        }
+        public String getSQL() {
+            return _sql;
+        }
+        // The names of the parameters that need values, each once:
+        public List<String> getParameterNames() {
+            return new ArrayList<String>(new LinkedHashSet<String>(_paramNames));
+        }
+        public List<String> getColNames() {
+            return _colNames;
+        }
+        // Type names as the database reports them when the query is
+        // prepared (null for those it only knows once it has rows,
+        // e.g., with sqlite):
+        public List<String> getColTypes() {
+            return _colTypes;
+        }
+        // Runs the query and returns its rows, which are fetched as
+        // they are read; the caller must close them unless they are
+        // read to the end.
+        public Rows execute()
+            throws SQLException {
+            return execute(new HashMap<String, Object>());
+        }
+        // The same, with params giving the values of the parameters by
+        // name (without the ":"), e.g., Double or String objects, as
+        // for PreparedStatement.setObject():
+        public Rows execute(Map<String, ?> params)
+            throws SQLException {
+            for (String name : params.keySet()) {
+                if (!_paramNames.contains(name)) {
+                    throw new SQLException("Query has no parameter :" + name);
+                }
+            }
+            List<Object> values = new ArrayList<Object>();
+            for (String name : _paramNames) {
+                if (!params.containsKey(name)) {
+                    throw new SQLException("No value given for parameter :" + name);
+                }
+                values.add(params.get(name));
+            }
+            return new Rows(_engine._db.newPooledSession(), _sql, values);
+        }
+        // Runs the query and passes each row of its result to
+        // handler; returns the number of rows:
+        public long execute(RowHandler handler)
+            throws SQLException {
+            return execute(new HashMap<String, Object>(), handler);
+        }
+        public long execute(Map<String, ?> params, RowHandler handler)
+            throws SQLException {
+            Rows rows = execute(params);
+            try {
+                Object[] row;
+                while ((row = rows.next()) != null) {
+                    handler.row(row);
+                }
+                return rows.getCount();
+            } finally {
+                rows.close();
+            }
+        }
+        public String toString() {
+            return _expr;
+        }
+    }
+
+    // The rows of a query result, read one at a time with next().
+    // Values are Java objects of the classes the driver uses for the
+    // column types (e.g., Integer, Double, BigDecimal, String, Date),
+    // or null for NULL; where the database's columns don't really
+    // have types (see Dialect.hasStaticColumnTypes()), the class goes
+    // with each value instead.  Only to be used by one thread at a
+    // time, except for cancel().
+    public static class Rows {
+        protected volatile DB _session;
+        protected ResultSet _rs;
+        protected int _numCols;
+        // JDBC types of the columns, or null if values are read as
+        // whatever objects the driver returns:
+        protected int[] _types;
+        protected long _count;
+        protected long _metricsStart;
+        protected Rows(DB session, String sql, List<Object> params)
+            throws SQLException {
+            _session = session;
+            _count = 0;
+            _metricsStart = Metrics.start();
+            session.beginStatement();
+            try {
+                _rs = params.isEmpty()? session.openQuery(sql) : session.openQuery(sql, params);
+                ResultSetMetaData rsmd = _rs.getMetaData();
+                _numCols = rsmd.getColumnCount();
+                if (session.getDialect().hasStaticColumnTypes()) {
+                    _types = new int[_numCols];
+                    for (int i=1; i<=_numCols; i++) {
+                        _types[i-1] = rsmd.getColumnType(i);
+                    }
+                }
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+        // Returns the next row (in a new array), or null after the
+        // last one, by which time the rows are closed:
+        public Object[] next()
+            throws SQLException {
+            if (_rs == null) return null;
+            if (!_rs.next()) {
+                close();
+                return null;
+            }
+            // Drivers that cannot stop a query in the middle of a
+            // row (see DB.cancelStatement()) stop here:
+            _session.checkCancelled();
+            Object[] row = new Object[_numCols];
+            for (int i=1; i<=_numCols; i++) {
+                if (_types != null && DB.isSupportedType(_types[i-1])) {
+                    row[i-1] = DB.getColumnValue(_rs, i, _types[i-1]);
+                } else {
+                    row[i-1] = _rs.getObject(i);
+                }
+            }
+            _count++;
+            return row;
+        }
+        // The number of rows read so far:
+        public long getCount() {
+            return _count;
+        }
+        // Stops the query from any thread; next() then throws an
+        // exception (see DB.checkCancelled()):
+        public void cancel() {
+            DB session = _session;
+            if (session != null) session.cancel();
+            return;
+        }
+        // Gives the connection back to the pool; does nothing if the
+        // rows are closed already:
+        public void close()
+            throws SQLException {
+            if (_session == null) return;
+            DB session = _session;
+            ResultSet rs = _rs;
+            _session = null;
+            _rs = null;
+            try {
+                if (rs != null) session.closeQuery(rs);
+            } finally {
+                session.endStatement();
+                session.close();
+                Metrics.ROWS_STREAMED.add(_count);
+                Metrics.EXEC_QUERY.stop(_metricsStart);
+            }
+            return;
+        }
+    }
+}
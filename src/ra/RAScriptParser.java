@@ -0,0 +1,109 @@
+package ra;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import antlr.CharStreamException;
+import antlr.CommonAST;
+import antlr.RecognitionException;
+import antlr.TokenStreamException;
+import antlr.TokenStreamRecognitionException;
+
+// Parses statements one after another with a single lexer and parser
+// over the whole input, instead of setting up new ones for each
+// statement.  The lexer reads no further than the end of the
+// statement being parsed, so whatever logs the input (see
+// LogInputStream) sees exactly the input of each statement in turn.
+// After a syntax error, the rest of the statement is skipped, up to
+// and including the next ";" that ends a line, and parsing carries
+// on from there.
+public class RAScriptParser {
+
+    protected RALexer _lexer;
+    protected RAParser _parser;
+    // The session to prompt for input through, if the input is
+    // interactive; line numbers then start over with each statement
+    // (for the prompt), rather than count through the whole input (so
+    // that errors point at lines of the script):
+    protected RA _session;
+    protected int _numStatements;
+    protected long _parseNanos;
+
+    public RAScriptParser(InputStream in, RA session) {
+        _lexer = new RALexer(new DataInputStream(in));
+        _lexer.setSession(session);
+        _parser = new RAParser(_lexer);
+        _session = session;
+        _numStatements = 0;
+        _parseNanos = 0;
+        return;
+    }
+
+    // Returns the next statement (or EOF at the end of input).  On a
+    // syntax error, the rest of the statement is skipped before the
+    // error is thrown.
+    public CommonAST next()
+        throws RecognitionException, TokenStreamException {
+        if (_session != null) {
+            _lexer.setLine(1);
+            _session.prompt(1);
+        }
+        long start = System.nanoTime();
+        long metricsStart = Metrics.start();
+        try {
+            _parser.start();
+            CommonAST ast = (CommonAST)_parser.getAST();
+            Metrics.PARSE.stop(metricsStart);
+            if (ast.getType() != RALexerTokenTypes.EOF) _numStatements++;
+            return ast;
+        } catch (RecognitionException e) {
+            _numStatements++;
+            skipStatement();
+            throw e;
+        } catch (TokenStreamException e) {
+            _numStatements++;
+            skipStatement();
+            throw e;
+        } finally {
+            _parseNanos += System.nanoTime() - start;
+        }
+    }
+
+    // Skips tokens up to and including the next statement terminator,
+    // or up to the end of input.  Input the lexer cannot make sense
+    // of is skipped a character at a time, up to the next ";".
+    protected void skipStatement()
+        throws TokenStreamException {
+        while (true) {
+            try {
+                _parser.consumeUntil(RALexerTokenTypes.STATEMENT_TERMINATOR);
+                if (_parser.LA(1) == RALexerTokenTypes.STATEMENT_TERMINATOR) {
+                    _parser.consume();
+                }
+                return;
+            } catch (TokenStreamRecognitionException e) {
+                try {
+                    while (_lexer.LA(1) != RALexer.EOF_CHAR && _lexer.LA(1) != ';') {
+                        _lexer.consume();
+                    }
+                } catch (CharStreamException ce) {
+                    throw new TokenStreamException(ce.toString());
+                }
+            }
+        }
+    }
+
+    // The number of statements parsed so far, with or without errors:
+    public int getNumStatements() {
+        return _numStatements;
+    }
+
+    // The time spent parsing so far, in nanoseconds:
+    public long getParseNanos() {
+        return _parseNanos;
+    }
+
+    public double getStatementsPerSecond() {
+        if (_parseNanos == 0) return 0;
+        return _numStatements / (_parseNanos / 1e9);
+    }
+}
@@ -0,0 +1,152 @@
+package ra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves RA sessions to clients connecting over TCP on the local
+// machine (--server PORT), instead of each user running a JVM with
+// connections of their own.  Each client gets a session (see RA) that
+// runs the same statement loop as the command line on a thread of its
+// own, with both output and errors going back to the client.  All
+// sessions evaluate statements in pooled database sessions (see
+// DB.newPooledSession()), which share the schema cache and borrow one
+// of the pool's connections only for the duration of a statement, so
+// the pool size (poolMaxSize in the properties file) bounds the
+// number of connections however many sessions there are.  Each
+// session names its views with a prefix of its own.  At most
+// getMaxSessions() sessions run at once; clients beyond that are
+// turned away.  Anyone on this machine may connect, so sessions
+// cannot \export results to files (as the server's user).
+public class RAServer {
+
+    public static final int DEFAULT_MAX_SESSIONS = 1024;
+
+    protected RA _template;
+    protected DB _db;
+    protected ServerSocket _serverSocket;
+    protected ExecutorService _executor;
+    protected int _maxSessions;
+    protected AtomicInteger _numSessions = new AtomicInteger(0);
+    protected int _numSessionsStarted = 0;
+
+    // Sessions evaluate statements the way template does, in sessions
+    // created from its database; port 0 picks any free port (see
+    // getPort()).
+    public RAServer(RA template, int port)
+        throws IOException {
+        _template = template;
+        _db = template._db;
+        _maxSessions = DEFAULT_MAX_SESSIONS;
+        // Only clients on this machine may connect:
+        _serverSocket = new ServerSocket(port, _maxSessions, InetAddress.getByName(null));
+        _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                protected int _count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ra-session-" + (++_count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    public int getMaxSessions() {
+        return _maxSessions;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        _maxSessions = maxSessions;
+    }
+
+    public int getNumSessions() {
+        return _numSessions.get();
+    }
+
+    // Accepts clients until close() is called:
+    public void serve()
+        throws IOException {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = _serverSocket.accept();
+            } catch (SocketException e) {
+                if (_serverSocket.isClosed()) break;
+                throw e;
+            }
+            if (_numSessions.incrementAndGet() > _maxSessions) {
+                _numSessions.decrementAndGet();
+                refuse(socket);
+                continue;
+            }
+            final int number = ++_numSessionsStarted;
+            _executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            runSession(socket, number);
+                        } finally {
+                            _numSessions.decrementAndGet();
+                        }
+                        return;
+                    }
+                });
+        }
+        return;
+    }
+
+    protected void refuse(Socket socket) {
+        try {
+            PrintStream out = new PrintStream(socket.getOutputStream(), true);
+            out.println("Too many sessions (" + _maxSessions + "); try again later");
+            socket.close();
+        } catch (IOException e) {
+            // The client is gone anyway.
+        }
+        return;
+    }
+
+    protected void runSession(Socket socket, int number) {
+        RA session = null;
+        try {
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
+            DB db = _db.newPooledSession();
+            db.setViewNamePrefix(DB.DEFAULT_VIEW_NAME_PREFIX + number + "_");
+            session = new RA(_template, db, new BufferedInputStream(socket.getInputStream()), out, out);
+            session._showPrompt = true;
+            session._allowExport = false;
+            session.welcome();
+            session.run();
+        } catch (IOException e) {
+            // The client is gone; nothing to report it to.
+        } finally {
+            if (session != null) session.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Simply ignore.
+            }
+        }
+        return;
+    }
+
+    // Stops accepting clients; sessions already running carry on
+    // until their clients are done.
+    public void close()
+        throws IOException {
+        _serverSocket.close();
+        _executor.shutdown();
+        return;
+    }
+}
@@ -0,0 +1,718 @@
+package ra;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+// Evaluates a RAXNode tree inside the JVM instead of in the database,
+// which is only asked for the contents of base tables.  This needs no
+// views (so it works with read-only connections), and does not depend
+// on the database supporting EXCEPT or INTERSECT.
+// Each operator is a pull-based iterator: selection and projection
+// stream their input; sorting is done in memory (keeping only the
+// first rows, in a heap, under \limit); joins and cross products
+// build a hash table (on the equality conditions, if any) over their
+// second input and then stream the first; duplicates are eliminated
+// and set operations done with hash sets.  Because second inputs are
+// consumed before first inputs are opened, at most one base table is
+// being read from the database at any time.  Base tables referenced
+// more than once are read once and kept in memory.
+// Conditions and projection lists are evaluated by SQLExpression; a
+// query using SQL it does not support fails validation, and can still
+// be evaluated by the database in the other modes.
+public class RAXEvaluator {
+
+    // next() returns null when there are no more rows:
+    public interface RowIterator {
+        public Object[] next()
+            throws SQLException;
+        public void close()
+            throws SQLException;
+    }
+
+    protected DB _db;
+    protected RAXNode _root;
+    protected Operator _rootOperator;
+    // Number of references to each base table (by stored name), and
+    // the contents of those referenced more than once, once read:
+    protected Map<String, Integer> _tableReferences = new HashMap<String, Integer>();
+    protected Map<String, List<Object[]>> _tableContents = new HashMap<String, List<Object[]>>();
+    // Operators planned so far, so that nodes shared by several
+    // parents (see RAXNode.shareCommonSubexpressions()) are planned
+    // only once; operators can be opened any number of times.
+    protected Map<RAXNode, Operator> _operators = new IdentityHashMap<RAXNode, Operator>();
+
+    public RAXEvaluator(DB db, RAXNode root) {
+        _db = db;
+        _root = root;
+        _rootOperator = null;
+    }
+
+    // Checks the tree and works out the output schema of every node,
+    // without reading any data:
+    public void validate()
+        throws RAXNode.ValidateException {
+        countTableReferences(_root);
+        _rootOperator = plan(_root);
+        return;
+    }
+
+    public void execute(PrintStream out)
+        throws SQLException {
+        assert(_rootOperator != null);
+        RowIterator rows = _rootOperator.open();
+        int count = 0;
+        try {
+            _db.printResultHeading(out, _rootOperator._colNames, _rootOperator._colTypes);
+            Object[] row;
+            while ((row = rows.next()) != null) {
+                _db.checkCancelled();
+                _db.printResultRow(out, row);
+                count++;
+            }
+        } finally {
+            rows.close();
+        }
+        _db.printResultSummary(out, count);
+        return;
+    }
+
+    protected void countTableReferences(RAXNode node) {
+        if (node instanceof RAXNode.TABLE) {
+            String key = _db.getStoredName(((RAXNode.TABLE)node)._tableName);
+            Integer count = _tableReferences.get(key);
+            _tableReferences.put(key, (count == null)? 1 : count+1);
+        }
+        for (int i=0; i<node.getNumChildren(); i++) {
+            countTableReferences(node.getChild(i));
+        }
+        return;
+    }
+
+    protected Operator plan(RAXNode node)
+        throws RAXNode.ValidateException {
+        if (_operators.containsKey(node)) return _operators.get(node);
+        List<Operator> inputs = new ArrayList<Operator>();
+        for (int i=0; i<node.getNumChildren(); i++) {
+            inputs.add(plan(node.getChild(i)));
+        }
+        node.nameView(_db);
+        try {
+            Operator operator = planNode(node, inputs);
+            node._native = true;
+            node._outputSchema = _db.new TableSchema(node.getViewName(),
+                                                     new ArrayList<String>(operator._colNames),
+                                                     new ArrayList<String>(operator._colTypes));
+            node._status = RAXNode.Status.CORRECT;
+            _operators.put(node, operator);
+            return operator;
+        } catch (SQLException e) {
+            node._status = RAXNode.Status.ERROR;
+            throw new RAXNode.ValidateException(e, node);
+        } catch (SQLExpression.ParseException e) {
+            node._status = RAXNode.Status.ERROR;
+            throw new RAXNode.ValidateException(e.getMessage(), node);
+        } catch (RAXNode.ValidateException e) {
+            node._status = RAXNode.Status.ERROR;
+            throw e;
+        }
+    }
+
+    protected Operator planNode(RAXNode node, List<Operator> inputs)
+        throws SQLException, SQLExpression.ParseException, RAXNode.ValidateException {
+        if (node instanceof RAXNode.TABLE) {
+            String tableName = ((RAXNode.TABLE)node)._tableName;
+            DB.TableSchema schema = _db.getTableSchema(tableName);
+            return new TableScan(tableName, schema.getColNames(), schema.getColTypes());
+        } else if (node instanceof RAXNode.SELECT) {
+            Operator input = inputs.get(0);
+            SQLExpression condition = SQLExpression.parse(((RAXNode.SELECT)node)._condition,
+                                                          input._colNames, input._colTypes);
+            return new Filter(input, condition);
+        } else if (node instanceof RAXNode.PROJECT) {
+            Operator input = inputs.get(0);
+            List<String> colNames = new ArrayList<String>();
+            List<SQLExpression> exprs = SQLExpression.parseList(((RAXNode.PROJECT)node)._columns,
+                                                                input._colNames, input._colTypes,
+                                                                colNames);
+            return new Project(input, exprs, colNames);
+        } else if (node instanceof RAXNode.RENAME) {
+            Operator input = inputs.get(0);
+            List<String> colNames = new ArrayList<String>();
+            for (String colName : RAXNode.parseColumnNames(((RAXNode.RENAME)node)._columns.trim())) {
+                if (!SQLFragment.isSimpleIdentifier(colName)) {
+                    throw new RAXNode.ValidateException("cannot rename a column to " + colName, node);
+                }
+                colNames.add(colName);
+            }
+            if (colNames.size() != input._colNames.size()) {
+                throw new RAXNode.ValidateException("renaming an incorrect number of columns", node);
+            }
+            return new Rename(input, colNames);
+        } else if (node instanceof RAXNode.SORT) {
+            Operator input = inputs.get(0);
+            List<Boolean> descending = new ArrayList<Boolean>();
+            List<SQLExpression> exprs = SQLExpression.parseOrderBy(((RAXNode.SORT)node)._columns,
+                                                                   input._colNames, input._colTypes,
+                                                                   descending);
+            return new Sort(input, exprs, descending, -1);
+        } else if (node instanceof RAXNode.LIMIT) {
+            Operator input = inputs.get(0);
+            long limit = ((RAXNode.LIMIT)node).getCheckedLimit();
+            // Top-k, if the input is sorted:
+            if (input instanceof Sort) return ((Sort)input).withLimit(limit);
+            return new Limit(input, limit);
+        } else if (node instanceof RAXNode.JOIN || node instanceof RAXNode.CROSS) {
+            String condition = (node instanceof RAXNode.JOIN)? ((RAXNode.JOIN)node)._condition : "";
+            return planJoin(inputs.get(0), inputs.get(1), condition);
+        } else {
+            Operator input1 = inputs.get(0);
+            Operator input2 = inputs.get(1);
+            if (input1._colNames.size() != input2._colNames.size()) {
+                String what = (node instanceof RAXNode.UNION)? "taking the union of" :
+                    (node instanceof RAXNode.DIFF)? "taking the difference between" : "intersecting";
+                throw new RAXNode.ValidateException(what + " relations with different numbers of columns", node);
+            }
+            return new SetOperation(node, input1, input2);
+        }
+    }
+
+    // condition is null for natural joins, and empty for cross
+    // products:
+    protected Operator planJoin(Operator input1, Operator input2, String condition)
+        throws SQLExpression.ParseException {
+        int width1 = input1._colNames.size();
+        List<String> colNames = new ArrayList<String>(input1._colNames);
+        List<String> colTypes = new ArrayList<String>(input1._colTypes);
+        List<Integer> keys1 = new ArrayList<Integer>();
+        List<Integer> keys2 = new ArrayList<Integer>();
+        List<SQLExpression> residual = new ArrayList<SQLExpression>();
+        List<Integer> output = new ArrayList<Integer>();
+        for (int i=0; i<width1; i++) output.add(i);
+        if (condition == null) {
+            // Natural join; match names exactly, as RAXNode.JOIN does:
+            for (int j=0; j<input2._colNames.size(); j++) {
+                int i = input1._colNames.indexOf(input2._colNames.get(j));
+                if (i >= 0) {
+                    keys1.add(i);
+                    keys2.add(j);
+                } else {
+                    colNames.add(input2._colNames.get(j));
+                    colTypes.add(input2._colTypes.get(j));
+                    output.add(width1+j);
+                }
+            }
+        } else {
+            colNames.addAll(input2._colNames);
+            colTypes.addAll(input2._colTypes);
+            for (int j=0; j<input2._colNames.size(); j++) output.add(width1+j);
+            if (condition.trim().length() > 0) {
+                // Equalities between a column of each input become
+                // hash keys; everything else is checked afterwards:
+                for (String conjunct : SQLFragment.splitConjuncts(condition)) {
+                    SQLExpression e = SQLExpression.parse(conjunct, colNames, colTypes);
+                    int[] columns = e.getEqualityColumns();
+                    if (columns != null && columns[0] < width1 && columns[1] >= width1) {
+                        keys1.add(columns[0]);
+                        keys2.add(columns[1]-width1);
+                    } else if (columns != null && columns[1] < width1 && columns[0] >= width1) {
+                        keys1.add(columns[1]);
+                        keys2.add(columns[0]-width1);
+                    } else {
+                        residual.add(e);
+                    }
+                }
+            }
+        }
+        return new HashJoin(input1, input2, toArray(keys1), toArray(keys2), residual,
+                            toArray(output), colNames, colTypes);
+    }
+
+    protected static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i=0; i<array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+    // Returns a hashable key for the given columns of a row (all of
+    // them if columns is null), or null if it has a NULL in any of
+    // them and nullsMatch is false.
+    protected static List<Object> makeKey(Object[] row, int[] columns, boolean nullsMatch) {
+        int n = (columns == null)? row.length : columns.length;
+        Object[] key = new Object[n];
+        for (int i=0; i<n; i++) {
+            Object value = row[(columns == null)? i : columns[i]];
+            if (value == null && !nullsMatch) return null;
+            key[i] = SQLExpression.normalize(value);
+        }
+        return Arrays.asList(key);
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    protected abstract class Operator {
+        protected List<String> _colNames;
+        protected List<String> _colTypes;
+        protected Operator(List<String> colNames, List<String> colTypes) {
+            _colNames = colNames;
+            _colTypes = colTypes;
+        }
+        public abstract RowIterator open()
+            throws SQLException;
+    }
+
+    protected static class ListIterator implements RowIterator {
+        protected List<Object[]> _rows;
+        protected int _next = 0;
+        public ListIterator(List<Object[]> rows) {
+            _rows = rows;
+        }
+        public Object[] next() {
+            return (_next < _rows.size())? _rows.get(_next++) : null;
+        }
+        public void close() {
+        }
+    }
+
+    // Removes duplicates from its input; NULLs are considered equal
+    // here, as in SELECT DISTINCT.
+    protected static class DistinctIterator implements RowIterator {
+        protected RowIterator _input;
+        protected Set<List<Object>> _seen = new HashSet<List<Object>>();
+        public DistinctIterator(RowIterator input) {
+            _input = input;
+        }
+        public Object[] next()
+            throws SQLException {
+            Object[] row;
+            while ((row = _input.next()) != null) {
+                if (_seen.add(makeKey(row, null, true))) return row;
+            }
+            return null;
+        }
+        public void close()
+            throws SQLException {
+            _input.close();
+        }
+    }
+
+    protected class TableScan extends Operator {
+        protected String _tableName;
+        public TableScan(String tableName, List<String> colNames, List<String> colTypes) {
+            super(colNames, colTypes);
+            _tableName = tableName;
+        }
+        public RowIterator open()
+            throws SQLException {
+            String key = _db.getStoredName(_tableName);
+            if (_tableContents.containsKey(key)) {
+                return new ListIterator(_tableContents.get(key));
+            }
+            RowIterator rows = new ScanIterator(_db.openQuery("SELECT * FROM " + _tableName));
+            // A table with a key has no duplicates to eliminate:
+            if (_db.getTableKeys(_tableName).isEmpty()) {
+                rows = new DistinctIterator(rows);
+            }
+            if (_tableReferences.get(key) > 1) {
+                List<Object[]> contents = new ArrayList<Object[]>();
+                try {
+                    Object[] row;
+                    while ((row = rows.next()) != null) contents.add(row);
+                } finally {
+                    rows.close();
+                }
+                _tableContents.put(key, contents);
+                return new ListIterator(contents);
+            }
+            return rows;
+        }
+    }
+
+    protected class ScanIterator implements RowIterator {
+        protected ResultSet _rs;
+        protected ResultSetMetaData _rsmd;
+        protected int[] _types;
+        // Whether _types hold for all rows, or need to be read again
+        // for each row (see Dialect.hasStaticColumnTypes()):
+        protected boolean _staticTypes;
+        public ScanIterator(ResultSet rs)
+            throws SQLException {
+            _rs = rs;
+            _rsmd = rs.getMetaData();
+            _types = new int[_rsmd.getColumnCount()];
+            for (int i=0; i<_types.length; i++) {
+                _types[i] = _rsmd.getColumnType(i+1);
+            }
+            _staticTypes = _db.getDialect().hasStaticColumnTypes();
+        }
+        public Object[] next()
+            throws SQLException {
+            if (_rs == null || !_rs.next()) return null;
+            _db.checkCancelled();
+            Object[] row = new Object[_types.length];
+            for (int i=0; i<row.length; i++) {
+                if (!_staticTypes) _types[i] = _rsmd.getColumnType(i+1);
+                row[i] = DB.getColumnValue(_rs, i+1, _types[i]);
+            }
+            return row;
+        }
+        public void close()
+            throws SQLException {
+            if (_rs != null) _db.closeQuery(_rs);
+            _rs = null;
+        }
+    }
+
+    protected class Filter extends Operator {
+        protected Operator _input;
+        protected SQLExpression _condition;
+        public Filter(Operator input, SQLExpression condition) {
+            super(input._colNames, input._colTypes);
+            _input = input;
+            _condition = condition;
+        }
+        public RowIterator open()
+            throws SQLException {
+            final RowIterator input = _input.open();
+            return new RowIterator() {
+                public Object[] next()
+                    throws SQLException {
+                    Object[] row;
+                    while ((row = input.next()) != null) {
+                        if (SQLExpression.isTrue(_condition.evaluate(row))) return row;
+                    }
+                    return null;
+                }
+                public void close()
+                    throws SQLException {
+                    input.close();
+                }
+            };
+        }
+    }
+
+    protected class Project extends Operator {
+        protected Operator _input;
+        protected List<SQLExpression> _exprs;
+        public Project(Operator input, List<SQLExpression> exprs, List<String> colNames) {
+            super(colNames, new ArrayList<String>());
+            for (SQLExpression e : exprs) _colTypes.add(e.getTypeName());
+            _input = input;
+            _exprs = exprs;
+        }
+        public RowIterator open()
+            throws SQLException {
+            final RowIterator input = _input.open();
+            return new DistinctIterator(new RowIterator() {
+                public Object[] next()
+                    throws SQLException {
+                    Object[] row = input.next();
+                    if (row == null) return null;
+                    Object[] result = new Object[_exprs.size()];
+                    for (int i=0; i<result.length; i++) {
+                        result[i] = _exprs.get(i).evaluate(row);
+                    }
+                    return result;
+                }
+                public void close()
+                    throws SQLException {
+                    input.close();
+                }
+            });
+        }
+    }
+
+    protected class Rename extends Operator {
+        protected Operator _input;
+        public Rename(Operator input, List<String> colNames) {
+            super(colNames, input._colTypes);
+            _input = input;
+        }
+        public RowIterator open()
+            throws SQLException {
+            return _input.open();
+        }
+    }
+
+    // Thrown by a Comparator, which cannot throw SQLException itself:
+    protected static class ComparisonException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public ComparisonException(SQLException e) {
+            super(e);
+        }
+        public SQLException getSQLException() {
+            return (SQLException)getCause();
+        }
+    }
+
+    // Sorts its input in memory, with NULLs first (as in SQLite).
+    // With a limit, only that many rows are kept, in a heap whose
+    // root is the last row kept so far, so that the input need not
+    // be held all at once.
+    protected class Sort extends Operator {
+        protected Operator _input;
+        protected List<SQLExpression> _exprs;
+        protected List<Boolean> _descending;
+        protected long _limit;
+        public Sort(Operator input, List<SQLExpression> exprs, List<Boolean> descending, long limit) {
+            super(input._colNames, input._colTypes);
+            _input = input;
+            _exprs = exprs;
+            _descending = descending;
+            _limit = limit;
+        }
+        public Sort withLimit(long limit) {
+            return new Sort(_input, _exprs, _descending, (_limit < 0)? limit : Math.min(_limit, limit));
+        }
+        // Compares the values of _exprs for two rows:
+        protected int compareKeys(Object[] a, Object[] b) {
+            for (int i=0; i<_exprs.size(); i++) {
+                int result;
+                if (a[i] == null || b[i] == null) {
+                    result = (a[i] == null)? ((b[i] == null)? 0 : -1) : 1;
+                } else {
+                    try {
+                        result = SQLExpression.compare(a[i], b[i]);
+                    } catch (SQLException e) {
+                        throw new ComparisonException(e);
+                    }
+                }
+                if (result != 0) return _descending.get(i)? -result : result;
+            }
+            return 0;
+        }
+        public RowIterator open()
+            throws SQLException {
+            // Each entry holds the values to sort on, and the row:
+            final Comparator<Object[][]> order = new Comparator<Object[][]>() {
+                public int compare(Object[][] a, Object[][] b) {
+                    return compareKeys(a[0], b[0]);
+                }
+            };
+            List<Object[][]> sorted = new ArrayList<Object[][]>();
+            PriorityQueue<Object[][]> heap = (_limit < 0)? null :
+                new PriorityQueue<Object[][]>(11, Collections.reverseOrder(order));
+            RowIterator input = _input.open();
+            try {
+                Object[] row;
+                while (_limit != 0 && (row = input.next()) != null) {
+                    Object[] key = new Object[_exprs.size()];
+                    for (int i=0; i<key.length; i++) {
+                        key[i] = _exprs.get(i).evaluate(row);
+                    }
+                    Object[][] entry = new Object[][] { key, row };
+                    if (heap == null) {
+                        sorted.add(entry);
+                    } else if (heap.size() < _limit) {
+                        heap.add(entry);
+                    } else if (order.compare(entry, heap.peek()) < 0) {
+                        heap.poll();
+                        heap.add(entry);
+                    }
+                }
+                if (heap != null) sorted.addAll(heap);
+                Collections.sort(sorted, order);
+            } catch (ComparisonException e) {
+                throw e.getSQLException();
+            } finally {
+                input.close();
+            }
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Object[][] entry : sorted) rows.add(entry[1]);
+            return new ListIterator(rows);
+        }
+    }
+
+    // Any limit rows of its input:
+    protected class Limit extends Operator {
+        protected Operator _input;
+        protected long _limit;
+        public Limit(Operator input, long limit) {
+            super(input._colNames, input._colTypes);
+            _input = input;
+            _limit = limit;
+        }
+        public RowIterator open()
+            throws SQLException {
+            final RowIterator input = _input.open();
+            return new RowIterator() {
+                protected long _count = 0;
+                public Object[] next()
+                    throws SQLException {
+                    if (_count >= _limit) return null;
+                    Object[] row = input.next();
+                    if (row != null) _count++;
+                    return row;
+                }
+                public void close()
+                    throws SQLException {
+                    input.close();
+                }
+            };
+        }
+    }
+
+    protected class HashJoin extends Operator {
+        protected Operator _input1;
+        protected Operator _input2;
+        protected int[] _keys1;
+        protected int[] _keys2;
+        protected List<SQLExpression> _residual;
+        protected int[] _output;
+        public HashJoin(Operator input1, Operator input2, int[] keys1, int[] keys2,
+                        List<SQLExpression> residual, int[] output,
+                        List<String> colNames, List<String> colTypes) {
+            super(colNames, colTypes);
+            _input1 = input1;
+            _input2 = input2;
+            _keys1 = keys1;
+            _keys2 = keys2;
+            _residual = residual;
+            _output = output;
+        }
+        public RowIterator open()
+            throws SQLException {
+            // Build the hash table over the second input; rows with
+            // NULL keys never join, so they are left out:
+            final Map<List<Object>, List<Object[]>> table = new HashMap<List<Object>, List<Object[]>>();
+            RowIterator rows2 = _input2.open();
+            try {
+                Object[] row2;
+                while ((row2 = rows2.next()) != null) {
+                    List<Object> key = makeKey(row2, _keys2, false);
+                    if (key == null) continue;
+                    List<Object[]> bucket = table.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Object[]>();
+                        table.put(key, bucket);
+                    }
+                    bucket.add(row2);
+                }
+            } finally {
+                rows2.close();
+            }
+            final RowIterator rows1 = _input1.open();
+            final int width1 = _input1._colNames.size();
+            final int width2 = _input2._colNames.size();
+            return new RowIterator() {
+                protected Object[] _row1 = null;
+                protected List<Object[]> _matches = Collections.emptyList();
+                protected int _next = 0;
+                public Object[] next()
+                    throws SQLException {
+                    while (true) {
+                        // Joins (cross products in particular) may run
+                        // for a long time without producing any rows:
+                        _db.checkCancelled();
+                        while (_next >= _matches.size()) {
+                            if (table.isEmpty()) return null;
+                            _row1 = rows1.next();
+                            if (_row1 == null) return null;
+                            List<Object> key = makeKey(_row1, _keys1, false);
+                            _matches = (key == null)? null : table.get(key);
+                            if (_matches == null) _matches = Collections.emptyList();
+                            _next = 0;
+                        }
+                        Object[] row2 = _matches.get(_next++);
+                        Object[] joined = new Object[width1+width2];
+                        System.arraycopy(_row1, 0, joined, 0, width1);
+                        System.arraycopy(row2, 0, joined, width1, width2);
+                        boolean ok = true;
+                        for (SQLExpression e : _residual) {
+                            if (!SQLExpression.isTrue(e.evaluate(joined))) {
+                                ok = false;
+                                break;
+                            }
+                        }
+                        if (!ok) continue;
+                        if (_output.length == joined.length) return joined;
+                        Object[] result = new Object[_output.length];
+                        for (int i=0; i<result.length; i++) {
+                            result[i] = joined[_output[i]];
+                        }
+                        return result;
+                    }
+                }
+                public void close()
+                    throws SQLException {
+                    rows1.close();
+                }
+            };
+        }
+    }
+
+    protected class SetOperation extends Operator {
+        protected RAXNode _node;
+        protected Operator _input1;
+        protected Operator _input2;
+        public SetOperation(RAXNode node, Operator input1, Operator input2) {
+            // Output column names come from the first input, as in SQL:
+            super(input1._colNames, input1._colTypes);
+            _node = node;
+            _input1 = input1;
+            _input2 = input2;
+        }
+        public RowIterator open()
+            throws SQLException {
+            if (_node instanceof RAXNode.UNION) {
+                return new DistinctIterator(new RowIterator() {
+                    protected RowIterator _rows = _input1.open();
+                    protected boolean _second = false;
+                    public Object[] next()
+                        throws SQLException {
+                        Object[] row = _rows.next();
+                        if (row == null && !_second) {
+                            _rows.close();
+                            _rows = _input2.open();
+                            _second = true;
+                            row = _rows.next();
+                        }
+                        return row;
+                    }
+                    public void close()
+                        throws SQLException {
+                        _rows.close();
+                    }
+                });
+            }
+            final Set<List<Object>> rows2 = new HashSet<List<Object>>();
+            RowIterator input2 = _input2.open();
+            try {
+                Object[] row;
+                while ((row = input2.next()) != null) {
+                    rows2.add(makeKey(row, null, true));
+                }
+            } finally {
+                input2.close();
+            }
+            final boolean keep = (_node instanceof RAXNode.INTERSECT);
+            final RowIterator input1 = new DistinctIterator(_input1.open());
+            return new RowIterator() {
+                public Object[] next()
+                    throws SQLException {
+                    Object[] row;
+                    while ((row = input1.next()) != null) {
+                        if (rows2.contains(makeKey(row, null, true)) == keep) return row;
+                    }
+                    return null;
+                }
+                public void close()
+                    throws SQLException {
+                    input1.close();
+                }
+            };
+        }
+    }
+}
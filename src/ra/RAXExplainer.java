@@ -0,0 +1,144 @@
+package ra;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.io.PrintStream;
+import java.sql.SQLException;
+
+// Explains how a query is evaluated (\explain), in the views or the
+// compile mode: prints the tree, annotated for each node with the SQL
+// generated for it, the database's own plan for the node's query
+// (EXPLAIN QUERY PLAN on SQLite, EXPLAIN on PostgreSQL and MySQL),
+// and the wall-clock time spent creating its view, probing its schema,
+// and dropping the view again.  With \explain analyze, each node's
+// query is also run (but the result not printed) to count its rows
+// and time it; since the database evaluates each such query from
+// scratch, the time for a node includes that for its inputs.
+// explain() is called after the tree is validated (or compiled), while
+// the views are still around, and print() after RAXNode.clean(), so
+// that the time spent dropping the views is known.
+public class RAXExplainer {
+
+    protected DB _db;
+    protected RAXNode _root;
+    protected boolean _compiled;
+    protected boolean _analyze;
+    // For each node (some are shared; see
+    // RAXNode.shareCommonSubexpressions()):
+    protected Map<RAXNode, String> _sql = new IdentityHashMap<RAXNode, String>();
+    protected Map<RAXNode, List<String>> _plans = new IdentityHashMap<RAXNode, List<String>>();
+    protected Map<RAXNode, Integer> _rowCounts = new IdentityHashMap<RAXNode, Integer>();
+    protected Map<RAXNode, Long> _executeNanos = new IdentityHashMap<RAXNode, Long>();
+
+    public RAXExplainer(DB db, RAXNode root, boolean compiled, boolean analyze) {
+        _db = db;
+        _root = root;
+        _compiled = compiled;
+        _analyze = analyze;
+    }
+
+    public void explain()
+        throws SQLException, RAXNode.ValidateException {
+        List<RAXNode> nodes = new ArrayList<RAXNode>();
+        _root.collectPostOrder(nodes);
+        for (RAXNode node : nodes) {
+            _sql.put(node, genSQL(node));
+            String query = node.genQuery(_db);
+            _plans.put(node, _db.explainQuery(query));
+            if (_analyze) {
+                long start = System.nanoTime();
+                _rowCounts.put(node, _db.countQueryRows(query));
+                _executeNanos.put(node, System.nanoTime() - start);
+            }
+        }
+        return;
+    }
+
+    // Returns the SQL that was used for a node:
+    protected String genSQL(RAXNode node)
+        throws SQLException, RAXNode.ValidateException {
+        if (_compiled) {
+            return node._compiledDef;
+        } else if (node._materialized) {
+            return _db.getDialect().genCreateTableAs(node.getViewName(), node.genViewDef(_db));
+        } else {
+            return node.genViewCreateStatement(_db);
+        }
+    }
+
+    public void print(PrintStream out) {
+        out.println("Query plan:");
+        print(_root, 0, out, new IdentityHashMap<RAXNode, Boolean>());
+        out.println("-----");
+        long createNanos = 0;
+        long probeNanos = 0;
+        long dropNanos = 0;
+        for (RAXNode node : _sql.keySet()) {
+            createNanos += node._createNanos;
+            probeNanos += node._probeNanos;
+            dropNanos += node._dropNanos;
+        }
+        out.print("Total time: ");
+        if (!_compiled) {
+            out.print("create " + formatNanos(createNanos) + ", ");
+        }
+        out.print("probe " + formatNanos(probeNanos));
+        if (!_compiled) {
+            out.print(", drop " + formatNanos(dropNanos));
+        }
+        if (_analyze) {
+            out.print("; query executed in " + formatNanos(_executeNanos.get(_root)) +
+                      ", returning " + _rowCounts.get(_root) + " row(s)");
+        }
+        out.println();
+        out.println();
+        return;
+    }
+
+    protected void print(RAXNode node, int indent, PrintStream out, Map<RAXNode, Boolean> printed) {
+        String prefix = "";
+        for (int i=0; i<indent; i++) prefix += " ";
+        out.print(prefix + node.toPrintString());
+        if (node._outputSchema != null) {
+            out.print(" <- output schema: " + node._outputSchema.toPrintString());
+            if (node._materialized) out.print(" (materialized)");
+        }
+        out.println();
+        if (printed.containsKey(node)) {
+            out.println(prefix + "  (shared with an earlier occurrence; evaluated once)");
+            return;
+        }
+        printed.put(node, true);
+        out.println(prefix + "  SQL: " + _sql.get(node));
+        List<String> plan = _plans.get(node);
+        if (plan == null) {
+            out.println(prefix + "  Plan: not available for this database");
+        } else {
+            out.println(prefix + "  Plan:");
+            for (String line : plan) {
+                out.println(prefix + "    " + line);
+            }
+        }
+        if (_analyze) {
+            out.println(prefix + "  Rows: " + _rowCounts.get(node) +
+                        " (query executed in " + formatNanos(_executeNanos.get(node)) + ")");
+        }
+        if (_compiled) {
+            out.println(prefix + "  Time: probe " + formatNanos(node._probeNanos));
+        } else {
+            out.println(prefix + "  Time: create " + formatNanos(node._createNanos) +
+                        ", probe " + formatNanos(node._probeNanos) +
+                        ", drop " + formatNanos(node._dropNanos));
+        }
+        for (int i=0; i<node.getNumChildren(); i++) {
+            print(node.getChild(i), indent+4, out, printed);
+        }
+        return;
+    }
+
+    protected static String formatNanos(long nanos) {
+        return String.format("%.3f ms", nanos/1000000.0);
+    }
+}
@@ -3,35 +3,81 @@ package ra;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.sql.SQLException;
 
 public abstract class RAXNode {
 
-    protected static int _viewGeneratedCount = 0;
-    public static String generateViewName() {
-        _viewGeneratedCount++;
-        return "RA_TMP_VIEW_" + _viewGeneratedCount;
-    }
-    public static void resetViewNameGenerator() {
-        _viewGeneratedCount = 0;
-    }
-
     public enum Status { ERROR, UNCHECKED, CORRECT }
 
     protected Status _status;
+    // Given by the session (see DB.generateViewName()) the first time
+    // the node is validated, compiled, or evaluated, inputs first, so
+    // that sessions evaluating statements concurrently never step on
+    // each other's views:
     protected String _viewName;
     protected DB.TableSchema _outputSchema;
     protected ArrayList<RAXNode> _children;
+    // The following are only set when the tree is compiled into a
+    // single statement (see compile(DB)) instead of a stack of views:
+    protected String _compiledDef;
+    protected boolean _derived;
+    // Set when the tree is evaluated inside the JVM instead (see
+    // RAXEvaluator), in which case no views are involved either:
+    protected boolean _native;
+    // Set for nodes chosen to be materialized (see
+    // chooseMaterializedNodes()); _materialized is set once the
+    // table is actually created instead of a view, and _temporary if
+    // the view or table is temporary: always where the database
+    // supports temporary views, so that they go away with the
+    // connection even if we never get to clean up (e.g., when a
+    // statement cannot be cancelled and ra is killed), and otherwise
+    // if it depends on temporary tables.  _indexes lists the columns
+    // of the indexes created on the table so far.
+    protected boolean _materialize;
+    protected boolean _materialized;
+    protected boolean _temporary;
+    protected List<List<String>> _indexes;
+    // Keys of the output (each a set of lower-cased column names), or
+    // null if the output may contain duplicates (see deriveKeys()):
+    protected List<Set<String>> _keys;
+    // Wall-clock time (in nanoseconds) spent creating the view (or
+    // table) for this node, probing its output schema, and dropping
+    // it again, for \explain (see RAXExplainer):
+    protected long _createNanos;
+    protected long _probeNanos;
+    protected long _dropNanos;
     protected RAXNode(ArrayList<RAXNode> children) {
         _status = Status.UNCHECKED;
-        _viewName = generateViewName();
+        _viewName = null;
         _outputSchema = null;
         _children = children;
+        _compiledDef = null;
+        _derived = false;
+        _native = false;
+        _materialize = false;
+        _materialized = false;
+        _temporary = false;
+        _indexes = new ArrayList<List<String>>();
+        _keys = null;
+        _createNanos = 0;
+        _probeNanos = 0;
+        _dropNanos = 0;
     }
     public String getViewName() {
         return _viewName;
     }
+    protected void nameView(DB db) {
+        if (_viewName == null) _viewName = db.generateViewName();
+        return;
+    }
     public int getNumChildren() {
         return _children.size();
     }
@@ -40,17 +86,296 @@ public abstract class RAXNode {
     }
     public abstract String genViewDef(DB db)
         throws SQLException, ValidateException;
+    // Returns the list of column names to be given to the view, or
+    // null if the column names should come from the view definition.
+    public String genViewColumns(DB db) {
+        return null;
+    }
     public String genViewCreateStatement(DB db)
         throws SQLException, ValidateException {
-        return "CREATE VIEW " + _viewName + " AS " + genViewDef(db);
+        return genViewCreateStatement(db, _viewName);
+    }
+    protected String genViewCreateStatement(DB db, String viewName)
+        throws SQLException, ValidateException {
+        String viewDef = genViewDef(db);
+        String viewColumns = genViewColumns(db);
+        return "CREATE " + (_temporary? "TEMPORARY " : "") + "VIEW " + viewName +
+            ((viewColumns == null)? "" : "(" + viewColumns + ")") +
+            " AS " + viewDef;
+    }
+    // Returns the name by which the view definition refers to the
+    // i-th input; this is normally the input's view name, but when
+    // the same (shared) node is more than one input, the later
+    // references need different names:
+    protected String getFromItemName(int i) {
+        RAXNode child = getChild(i);
+        for (int j=0; j<i; j++) {
+            if (getChild(j) == child) return child.getViewName() + "_" + (i+1);
+        }
+        return child.getViewName();
+    }
+    // Returns what should go into the FROM clause of the view
+    // definition in order to reference the i-th input:
+    protected String genFromItem(int i) {
+        RAXNode child = getChild(i);
+        if (child._derived || needsDistinct(i) ||
+            !getFromItemName(i).equals(child.getViewName())) {
+            return genFromItem(i, getFromItemName(i));
+        } else {
+            return child.getViewName();
+        }
+    }
+    protected String genFromItem(int i, String alias) {
+        RAXNode child = getChild(i);
+        String fromItem;
+        if (child._derived) {
+            fromItem = "(" + child._compiledDef + ") AS " + alias;
+        } else {
+            fromItem = child.getViewName() + " AS " + alias;
+        }
+        if (needsDistinct(i)) {
+            fromItem = "(SELECT DISTINCT * FROM " + fromItem + ") AS " + alias;
+        }
+        return fromItem;
+    }
+    // Works out _keys from those of the inputs, which must have been
+    // validated or compiled already, before the view definition is
+    // generated.  Instead of eliminating duplicates at every node,
+    // nodes whose output has duplicates only if their inputs do (or
+    // not even then, e.g., for a projection that keeps a key) leave
+    // out DISTINCT, and duplicates are eliminated only where they
+    // matter: in the inputs to joins (see needsDuplicateFreeInputs()),
+    // and in the final result (see genQuery()).  That is safe because
+    // selections, projections and renaming commute with duplicate
+    // elimination, and SQL set operations eliminate duplicates anyway.
+    // By default, the output is duplicate-free, with no known keys
+    // other than all columns.
+    protected void deriveKeys(DB db)
+        throws SQLException, ValidateException {
+        _keys = new ArrayList<Set<String>>();
+        return;
+    }
+    public boolean isDuplicateFree() {
+        return _keys != null;
+    }
+    // Whether this node needs its inputs to be duplicate-free:
+    protected boolean needsDuplicateFreeInputs() {
+        return false;
+    }
+    protected boolean needsDistinct(int i) {
+        return needsDuplicateFreeInputs() && !getChild(i).isDuplicateFree();
+    }
+    // Returns the keys of the i-th input, which is known to be
+    // duplicate-free (at least once needsDistinct(i) is taken care
+    // of):
+    protected List<Set<String>> getInputKeys(int i) {
+        List<Set<String>> keys = getChild(i)._keys;
+        return (keys == null)? new ArrayList<Set<String>>() : keys;
+    }
+    // Returns all unions of a key from keys1 and a key from keys2:
+    protected static List<Set<String>> combineKeys(List<Set<String>> keys1, List<Set<String>> keys2) {
+        List<Set<String>> keys = new ArrayList<Set<String>>();
+        for (Set<String> key1 : keys1) {
+            for (Set<String> key2 : keys2) {
+                Set<String> key = new HashSet<String>(key1);
+                key.addAll(key2);
+                if (!keys.contains(key)) keys.add(key);
+            }
+        }
+        return keys;
+    }
+    // For cross products and theta-joins, whose output has all columns
+    // of both inputs; keys are only tracked when the column names
+    // don't clash, and the input schemas are known without probing:
+    protected static List<Set<String>> combineDisjointKeys(RAXNode node,
+                                                           List<Set<String>> keys1,
+                                                           List<Set<String>> keys2) {
+        DB.TableSchema schema1 = node.getChild(0)._outputSchema;
+        DB.TableSchema schema2 = node.getChild(1)._outputSchema;
+        if (schema1 == null || schema2 == null) return new ArrayList<Set<String>>();
+        Set<String> colNames = toLowerCase(schema1.getColNames());
+        colNames.retainAll(toLowerCase(schema2.getColNames()));
+        if (!colNames.isEmpty()) return new ArrayList<Set<String>>();
+        return combineKeys(keys1, keys2);
+    }
+    protected static void addKeys(List<Set<String>> keys, List<Set<String>> moreKeys) {
+        for (Set<String> key : moreKeys) {
+            if (!keys.contains(key)) keys.add(key);
+        }
+        return;
+    }
+    protected static Set<String> toLowerCase(List<String> colNames) {
+        Set<String> lowerCaseNames = new HashSet<String>();
+        for (String colName : colNames) {
+            lowerCaseNames.add(colName.toLowerCase());
+        }
+        return lowerCaseNames;
+    }
+    // Returns the output schema of this node if it can be determined
+    // without looking at the view for this node, or null otherwise:
+    protected DB.TableSchema getKnownOutputSchema(DB db)
+        throws SQLException {
+        return null;
+    }
+    // Returns the output schema of the i-th input, which must have
+    // been validated or compiled already:
+    protected DB.TableSchema getInputSchema(DB db, int i)
+        throws ValidateException {
+        RAXNode child = getChild(i);
+        if (child._outputSchema == null) {
+            assert(child._compiledDef != null);
+            try {
+                child.probeOutputSchema(db);
+            } catch (SQLException e) {
+                throw child.locateError(db, e);
+            }
+        }
+        return child._outputSchema;
+    }
+    // Returns a standalone query that produces the output of this
+    // node, assuming that it has been validated or compiled:
+    public String genQuery(DB db) {
+        // Duplicates left in along the way are eliminated here (see
+        // deriveKeys()):
+        String select = isDuplicateFree()? "SELECT * FROM " : "SELECT DISTINCT * FROM ";
+        // Views and common table expressions don't keep the order of
+        // their rows, so that is imposed again at the end:
+        String orderBy = (getOrderBy() == null)? "" : " ORDER BY " + getOrderBy();
+        if (_compiledDef == null) {
+            return select + _viewName + orderBy;
+        } else if (_derived) {
+            return isDuplicateFree()? _compiledDef : select + "(" + _compiledDef + ") AS " + _viewName;
+        } else {
+            // One common table expression per node, in an order such
+            // that each one is defined before it is referenced:
+            ArrayList<RAXNode> nodes = new ArrayList<RAXNode>();
+            collectPostOrder(nodes);
+            String query = "WITH ";
+            for (int i=0; i<nodes.size(); i++) {
+                RAXNode node = nodes.get(i);
+                String viewColumns = node.genViewColumns(db);
+                if (i>0) query += ", ";
+                query += node.getViewName() +
+                    ((viewColumns == null)? "" : "(" + viewColumns + ")") +
+                    " AS (" + node._compiledDef + ")";
+            }
+            query += " " + select + _viewName + orderBy;
+            return query;
+        }
+    }
+    // Returns the ORDER BY list by which the output of this node is
+    // sorted, or null if its order doesn't matter (see SORT):
+    public String getOrderBy() {
+        return null;
+    }
+    // Obtains the output schema of a compiled node by probing its
+    // standalone query:
+    protected void probeOutputSchema(DB db)
+        throws SQLException {
+        long start = System.nanoTime();
+        DB.TableSchema schema;
+        try {
+            schema = db.getOutputSchema(genQuery(db));
+        } finally {
+            _probeNanos += System.nanoTime() - start;
+        }
+        _outputSchema = db.new TableSchema(_viewName, schema.getColNames(), schema.getColTypes());
+        _status = Status.CORRECT;
+        return;
+    }
+    // Collects the nodes of the tree rooted at this node, each one
+    // once (even if shared), with each node after all its inputs:
+    protected void collectPostOrder(List<RAXNode> nodes) {
+        if (nodes.contains(this)) return;
+        for (int i=0; i<getNumChildren(); i++) {
+            getChild(i).collectPostOrder(nodes);
+        }
+        nodes.add(this);
+        return;
+    }
+    // Merges structurally identical subtrees of the tree rooted at
+    // this node (those with the same genCacheKey()), so that each
+    // distinct subexpression is validated, compiled, or evaluated
+    // only once; the tree becomes a DAG whose shared nodes have more
+    // than one parent.  nodes maps keys to the nodes kept so far.
+    // Returns the node that should replace this one.
+    public RAXNode shareCommonSubexpressions(DB db, Map<String, RAXNode> nodes) {
+        // Inputs have already been merged, so their view names
+        // identify them:
+        String key;
+        if (getNumChildren() == 0) {
+            key = genCacheKey(db);
+        } else {
+            key = SQLFragment.normalizeWhiteSpace(toPrintString()) + "(";
+            for (int i=0; i<getNumChildren(); i++) {
+                _children.set(i, getChild(i).shareCommonSubexpressions(db, nodes));
+                if (i>0) key += ",";
+                key += getChild(i).getViewName();
+            }
+            key += ")";
+        }
+        RAXNode existing = nodes.get(key);
+        if (existing != null) return existing;
+        nameView(db);
+        nodes.put(key, this);
+        return this;
+    }
+    // Returns, for each node in the DAG rooted at this node that is
+    // referenced more than once, the number of references, with the
+    // nodes in post order:
+    public Map<RAXNode, Integer> getSharedNodes() {
+        List<RAXNode> nodes = new ArrayList<RAXNode>();
+        collectPostOrder(nodes);
+        Map<RAXNode, Integer> counts = new IdentityHashMap<RAXNode, Integer>();
+        for (RAXNode node : nodes) {
+            for (int i=0; i<node.getNumChildren(); i++) {
+                Integer count = counts.get(node.getChild(i));
+                counts.put(node.getChild(i), (count == null)? 1 : count+1);
+            }
+        }
+        Map<RAXNode, Integer> shared = new LinkedHashMap<RAXNode, Integer>();
+        for (RAXNode node : nodes) {
+            Integer count = counts.get(node);
+            if (count != null && count > 1) shared.put(node, count);
+        }
+        return shared;
     }
     public abstract String toPrintString();
+    // Returns the names of the parameters (e.g., :price, whose values
+    // are only given when a query prepared by RAEngine is executed)
+    // in the operator options of the tree rooted at this node, each
+    // one once:
+    public List<String> getParameterNames() {
+        List<RAXNode> nodes = new ArrayList<RAXNode>();
+        collectPostOrder(nodes);
+        Set<String> names = new LinkedHashSet<String>();
+        for (RAXNode node : nodes) {
+            names.addAll(SQLFragment.getParameterNames(node.toPrintString()));
+        }
+        return new ArrayList<String>(names);
+    }
+    // Returns a canonical form of the tree rooted at this node, which
+    // is the same for trees that differ only in white space (see
+    // ResultCache):
+    public String genCacheKey(DB db) {
+        String key = SQLFragment.normalizeWhiteSpace(toPrintString());
+        if (getNumChildren() > 0) {
+            key += "(";
+            for (int i=0; i<getNumChildren(); i++) {
+                if (i>0) key += ",";
+                key += getChild(i).genCacheKey(db);
+            }
+            key += ")";
+        }
+        return key;
+    }
     public void print(boolean verbose, int indent, PrintStream out) {
         for (int i=0; i<indent; i++) out.print(" ");
         out.print(toPrintString());
         if (verbose) {
-            if (_status == Status.CORRECT) {
+            if (_status == Status.CORRECT && _outputSchema != null) {
                 out.print(" <- output schema: " + _outputSchema.toPrintString());
+                if (_materialized) out.print(" (materialized)");
             } else if (_status == Status.ERROR) {
                 out.print(" <- ERROR!");
             }
@@ -61,13 +386,82 @@ public abstract class RAXNode {
         }
         return;
     }
+    // Picks the nodes of the DAG rooted at this node to materialize
+    // when validating (-M).  Views are cheap to create, but the
+    // database recomputes a view every time it is used; that gets
+    // expensive for nodes used more than once (see
+    // shareCommonSubexpressions()) and for inputs to joins that
+    // involve joins themselves, which a join may end up recomputing
+    // for every row of its other input.  Base tables are never worth
+    // copying.
+    public void chooseMaterializedNodes() {
+        Map<RAXNode, Integer> sharedNodes = getSharedNodes();
+        List<RAXNode> nodes = new ArrayList<RAXNode>();
+        collectPostOrder(nodes);
+        for (RAXNode node : nodes) {
+            if (sharedNodes.containsKey(node)) node._materialize = true;
+            if (node instanceof JOIN || node instanceof CROSS) {
+                for (int i=0; i<node.getNumChildren(); i++) {
+                    if (node.getChild(i).containsJoin()) node.getChild(i)._materialize = true;
+                }
+            }
+        }
+        for (RAXNode node : nodes) {
+            if (node instanceof TABLE) node._materialize = false;
+        }
+        return;
+    }
+    protected boolean containsJoin() {
+        if (this instanceof JOIN || this instanceof CROSS) return true;
+        for (int i=0; i<getNumChildren(); i++) {
+            if (getChild(i).containsJoin()) return true;
+        }
+        return false;
+    }
+    // Returns the columns of the i-th input by which this node looks
+    // up its rows (e.g., join columns), which would be worth
+    // indexing if the input is materialized, or null if none:
+    protected List<String> getLookupColumns(DB db, int i)
+        throws ValidateException {
+        return null;
+    }
+    // Returns those columns of the i-th input that are referenced by
+    // condition, with names as in the input schema:
+    protected List<String> getInputColumnsReferenced(DB db, int i, String condition)
+        throws ValidateException {
+        Set<String> referenced = SQLFragment.getReferencedColumns(condition);
+        if (referenced == null) return null;
+        List<String> columns = new ArrayList<String>();
+        for (String col : getInputSchema(db, i).getColNames()) {
+            if (referenced.contains(col.toLowerCase())) columns.add(col);
+        }
+        return columns;
+    }
+    protected void createIndex(DB db, List<String> columns)
+        throws SQLException {
+        if (columns == null || columns.isEmpty() || _indexes.contains(columns)) return;
+        _indexes.add(columns);
+        db.createIndex(_viewName + "_IDX" + _indexes.size(), _viewName, columns);
+        return;
+    }
+    // Creates the view for this node, after validating its inputs,
+    // and works out the output schema.  With chooseMaterializedNodes(),
+    // some nodes get a table holding their result instead (where the
+    // database supports that), indexed on the columns that their
+    // parents look them up by.
     public void validate(DB db)
         throws ValidateException {
+        // A shared node (see shareCommonSubexpressions()) may have
+        // been validated through another parent already:
+        if (_status == Status.CORRECT) return;
         // Validate children first; any exception thrown there
         // will shortcut the call.
         for (int i=0; i<getNumChildren(); i++) {
             getChild(i).validate(db);
         }
+        nameView(db);
+        long validateStart = Metrics.start();
+        _temporary = db.getDialect().supportsTemporaryViews();
         try {
             // Drop the view, just in case it is left over from
             // a previous run (shouldn't have happened if it was
@@ -81,39 +475,181 @@ public abstract class RAXNode {
             // robust solution seems nasty.
         }
         try {
-            db.createView(genViewCreateStatement(db));
-            _outputSchema = db.getTableSchema(_viewName);
+            deriveKeys(db);
+            // Index the materialized inputs for the lookups this node
+            // will do:
+            for (int i=0; i<getNumChildren(); i++) {
+                if (getChild(i)._materialized) {
+                    try {
+                        getChild(i).createIndex(db, getLookupColumns(db, i));
+                    } catch (SQLException e) {
+                        // Simply go without; the index only speeds
+                        // things up.
+                    }
+                }
+                if (getChild(i)._temporary) _temporary = true;
+            }
+            // The table is filled from a view, which takes care of
+            // naming the columns (see RENAME) the same way either way:
+            String defViewName = _viewName + "_DEF";
+            String createTableStatement = _materialize?
+                db.getDialect().genCreateTableAs(_viewName, "SELECT * FROM " + defViewName) : null;
+            long start = System.nanoTime();
+            if (createTableStatement != null) {
+                // Just in case they are left over, as above:
+                try {
+                    db.dropTable(_viewName);
+                } catch (SQLException e) {
+                    // Simply ignore.
+                }
+                try {
+                    db.dropView(defViewName);
+                } catch (SQLException e) {
+                    // Simply ignore.
+                }
+                db.createView(genViewCreateStatement(db, defViewName));
+                try {
+                    db.createTable(createTableStatement);
+                } finally {
+                    db.dropView(defViewName);
+                }
+                _materialized = true;
+                _temporary = db.getDialect().supportsTemporaryViews();
+            } else {
+                db.createView(genViewCreateStatement(db));
+            }
+            _createNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            _outputSchema = getKnownOutputSchema(db);
+            if (_outputSchema == null) {
+                _outputSchema = db.getTableSchema(_viewName);
+            }
+            _probeNanos += System.nanoTime() - start;
             assert(_outputSchema != null);
         } catch (SQLException e) {
             _status = Status.ERROR;
             // Wrap and re-throw the exception for caller to handle.
             throw new ValidateException(e, this);
+        } finally {
+            Metrics.VALIDATE.stop(validateStart);
         }
         // Everything rooted at this node went smoothly.
         _status = Status.CORRECT;
         return;
     }
+    // An alternative to validate() that compiles the entire tree
+    // into a single SQL statement (using common table expressions
+    // if the database supports them, or nested derived tables
+    // otherwise), so no views need to be created or dropped.
+    // Subqueries are only probed individually when their output
+    // schemas are needed, or when the whole statement fails and we
+    // need to find out which node is at fault.
+    public void compile(DB db)
+        throws ValidateException {
+        compileTree(db, !db.getDialect().supportsCommonTableExpressions());
+        if (_outputSchema == null) {
+            try {
+                probeOutputSchema(db);
+            } catch (SQLException e) {
+                throw locateError(db, e);
+            }
+        }
+        return;
+    }
+    protected void compileTree(DB db, boolean derived)
+        throws ValidateException {
+        if (_compiledDef != null) return;
+        for (int i=0; i<getNumChildren(); i++) {
+            getChild(i).compileTree(db, derived);
+        }
+        nameView(db);
+        try {
+            // Set _derived first, since it affects how the definition
+            // itself is generated (see RENAME):
+            _derived = derived;
+            deriveKeys(db);
+            _compiledDef = genViewDef(db);
+            _outputSchema = getKnownOutputSchema(db);
+            if (_outputSchema != null) {
+                _status = Status.CORRECT;
+            }
+        } catch (SQLException e) {
+            _status = Status.ERROR;
+            throw new ValidateException(e, this);
+        }
+        return;
+    }
+    // Given that the query for this node failed with e, finds the
+    // lowest node responsible by probing the inputs bottom up.
+    protected ValidateException locateError(DB db, SQLException e) {
+        for (int i=0; i<getNumChildren(); i++) {
+            RAXNode child = getChild(i);
+            if (child._status == Status.CORRECT) continue;
+            try {
+                child.probeOutputSchema(db);
+            } catch (SQLException childException) {
+                return child.locateError(db, childException);
+            }
+        }
+        _status = Status.ERROR;
+        return new ValidateException(e, this);
+    }
     public void execute(DB db, PrintStream out)
         throws SQLException {
         assert(_status == Status.CORRECT);
-        db.execQueryAndOutputResult(out, "SELECT * FROM " + _viewName);
+        db.execQueryAndOutputResult(out, genQuery(db));
         return;
     }
+    // Like execute(), but writes the result to exporter; returns the
+    // number of rows:
+    public long export(DB db, ResultExporter exporter)
+        throws SQLException, IOException {
+        assert(_status == Status.CORRECT);
+        return db.execQueryAndExportResult(exporter, genQuery(db));
+    }
     public void clean(DB db) 
+        throws SQLException {
+        // Views must be dropped before the views they are defined
+        // on, and a shared node only after all its parents, so go
+        // through the nodes in reverse post order:
+        List<RAXNode> nodes = new ArrayList<RAXNode>();
+        collectPostOrder(nodes);
+        for (int i=nodes.size()-1; i>=0; i--) {
+            RAXNode node = nodes.get(i);
+            long start = System.nanoTime();
+            try {
+                node.cleanNode(db);
+            } finally {
+                node._dropNanos += System.nanoTime() - start;
+            }
+        }
+        return;
+    }
+    protected void cleanNode(DB db)
         throws SQLException {
         if (_status == Status.UNCHECKED) {
             // Should be the case that the view wasn't actually created.
         } else if (_status == Status.CORRECT) {
-            db.dropView(_viewName);
+            if (_materialized) {
+                db.dropTable(_viewName);
+                _materialized = false;
+            } else if (_compiledDef == null && !_native) {
+                db.dropView(_viewName);
+            } else {
+                // Compiled and natively evaluated nodes never have
+                // their views created.
+            }
             _status = Status.UNCHECKED;
         } else if (_status == Status.ERROR) {
             // The view shouldn't have been created successfully; no
-            // need to drop.
+            // need to drop.  A table may have been, though, if
+            // getting its schema failed afterwards:
+            if (_materialized) {
+                db.dropTable(_viewName);
+                _materialized = false;
+            }
             _status = Status.UNCHECKED;
         }
-        for (int i=0; i<getNumChildren(); i++) {
-            getChild(i).clean(db);
-        }
         return;
     }
 
@@ -145,7 +681,27 @@ public abstract class RAXNode {
         }
         public String genViewDef(DB db)
             throws SQLException {
-            return "SELECT DISTINCT * FROM " + _tableName;
+            // Without a key, duplicates are left for later (see
+            // deriveKeys()):
+            return "SELECT * FROM " + _tableName;
+        }
+        protected void deriveKeys(DB db)
+            throws SQLException {
+            _keys = new ArrayList<Set<String>>();
+            for (List<String> key : db.getTableKeys(_tableName)) {
+                _keys.add(toLowerCase(key));
+            }
+            if (_keys.isEmpty()) _keys = null;
+            return;
+        }
+        protected DB.TableSchema getKnownOutputSchema(DB db)
+            throws SQLException {
+            // Same as the base table, whose schema db may have cached:
+            DB.TableSchema tableSchema = db.getTableSchema(_tableName);
+            return db.new TableSchema(_viewName, tableSchema.getColNames(), tableSchema.getColTypes());
+        }
+        public String genCacheKey(DB db) {
+            return db.getStoredName(_tableName);
         }
         public String toPrintString() {
             return _tableName;
@@ -160,9 +716,17 @@ public abstract class RAXNode {
         }
         public String genViewDef(DB db)
             throws SQLException {
-            return "SELECT * FROM " + getChild(0).getViewName() +
+            return "SELECT * FROM " + genFromItem(0) +
                 " WHERE " + _condition;
         }
+        protected void deriveKeys(DB db) {
+            _keys = getChild(0)._keys;
+            return;
+        }
+        protected List<String> getLookupColumns(DB db, int i)
+            throws ValidateException {
+            return getInputColumnsReferenced(db, i, _condition);
+        }
         public String toPrintString() {
             return "\\select_{" + _condition + "}";
         }
@@ -176,7 +740,22 @@ public abstract class RAXNode {
         }
         public String genViewDef(DB db)
             throws SQLException {
-            return "SELECT DISTINCT " + _columns + " FROM " + getChild(0).getViewName();
+            // Duplicates are left for later (see deriveKeys()):
+            return "SELECT " + _columns + " FROM " + genFromItem(0);
+        }
+        protected void deriveKeys(DB db) {
+            // The input's keys that are kept, if any, ensure that no
+            // duplicates are produced:
+            _keys = null;
+            List<String> colNames = SQLFragment.getSimpleColumnNames(_columns);
+            if (getChild(0)._keys == null || colNames == null) return;
+            Set<String> kept = toLowerCase(colNames);
+            List<Set<String>> keys = new ArrayList<Set<String>>();
+            for (Set<String> key : getChild(0)._keys) {
+                if (kept.containsAll(key)) keys.add(key);
+            }
+            if (!keys.isEmpty()) _keys = keys;
+            return;
         }
         public String toPrintString() {
             return "\\project_{" + _columns + "}";
@@ -190,11 +769,11 @@ public abstract class RAXNode {
             _condition = condition;
         }
         public String genViewDef(DB db)
-            throws SQLException {
+            throws SQLException, ValidateException {
             if (_condition == null) {
                 // Natural join:
-                DB.TableSchema input1Schema = db.getTableSchema(getChild(0).getViewName());
-                DB.TableSchema input2Schema = db.getTableSchema(getChild(1).getViewName());
+                DB.TableSchema input1Schema = getInputSchema(db, 0);
+                DB.TableSchema input2Schema = getInputSchema(db, 1);
                 List<String> input1ColumnNames = input1Schema.getColNames();
                 List<String> input2ColumnNames = input2Schema.getColNames();
                 List<String> joinColumnNames = new ArrayList<String>();
@@ -209,19 +788,23 @@ public abstract class RAXNode {
                 if (joinColumnNames.isEmpty()) {
                     // Basically a cross product:
                     return "SELECT * FROM " +
-                        getChild(0).getViewName() + ", " + getChild(1).getViewName();
+                        genFromItem(0) + ", " + genFromItem(1);
                 } else {
+                    // Name the output columns explicitly; some
+                    // databases (e.g., older sqlite) would otherwise
+                    // name derived table columns like V1."A":
                     String viewDef = "SELECT ";
                     for (int i=0; i<input1ColumnNames.size(); i++) {
                         if (i > 0) viewDef += ", ";
-                        viewDef += "V1.\"" + input1ColumnNames.get(i) + "\"";
+                        viewDef += "V1.\"" + input1ColumnNames.get(i) + "\" AS \"" +
+                            input1ColumnNames.get(i) + "\"";
                     }
                     for (String col : moreColumnNames) {
-                        viewDef += ", V2.\"" + col + "\"";
+                        viewDef += ", V2.\"" + col + "\" AS \"" + col + "\"";
                     }
                     viewDef += " FROM " +
-                        getChild(0).getViewName() + " AS V1, " +
-                        getChild(1).getViewName() + " AS V2 WHERE ";
+                        genFromItem(0, "V1") + ", " +
+                        genFromItem(1, "V2") + " WHERE ";
                     for (int i=0; i<joinColumnNames.size(); i++) {
                         if (i > 0) viewDef += " AND ";
                         viewDef += "V1.\"" + joinColumnNames.get(i) +
@@ -232,10 +815,48 @@ public abstract class RAXNode {
             } else {
                 // Theta-join:
                 return "SELECT * FROM " +
-                    getChild(0).getViewName() + ", " + getChild(1).getViewName() +
+                    genFromItem(0) + ", " + genFromItem(1) +
                     " WHERE " + _condition;
             }
         }
+        protected boolean needsDuplicateFreeInputs() {
+            return true;
+        }
+        protected void deriveKeys(DB db)
+            throws ValidateException {
+            List<Set<String>> keys1 = getInputKeys(0);
+            List<Set<String>> keys2 = getInputKeys(1);
+            if (_condition != null) {
+                _keys = combineDisjointKeys(this, keys1, keys2);
+                return;
+            }
+            // Natural join: columns of the same name are merged, and
+            // a key of one input among the join columns means each of
+            // its rows joins with at most one row of the other:
+            Set<String> joinColumns = toLowerCase(getInputSchema(db, 0).getColNames());
+            joinColumns.retainAll(toLowerCase(getInputSchema(db, 1).getColNames()));
+            _keys = combineKeys(keys1, keys2);
+            for (Set<String> key2 : keys2) {
+                if (joinColumns.containsAll(key2)) addKeys(_keys, keys1);
+            }
+            for (Set<String> key1 : keys1) {
+                if (joinColumns.containsAll(key1)) addKeys(_keys, keys2);
+            }
+            return;
+        }
+        protected List<String> getLookupColumns(DB db, int i)
+            throws ValidateException {
+            if (_condition != null) {
+                return getInputColumnsReferenced(db, i, _condition);
+            }
+            // Natural join:
+            List<String> otherColumnNames = getInputSchema(db, 1-i).getColNames();
+            List<String> joinColumnNames = new ArrayList<String>();
+            for (String col : getInputSchema(db, i).getColNames()) {
+                if (otherColumnNames.contains(col)) joinColumnNames.add(col);
+            }
+            return joinColumnNames;
+        }
         public String toPrintString() {
             return "\\join_{" + _condition + "}";
         }
@@ -248,7 +869,14 @@ public abstract class RAXNode {
         public String genViewDef(DB db)
             throws SQLException {
             return "SELECT * FROM " +
-                getChild(0).getViewName() + ", " + getChild(1).getViewName();
+                genFromItem(0) + ", " + genFromItem(1);
+        }
+        protected boolean needsDuplicateFreeInputs() {
+            return true;
+        }
+        protected void deriveKeys(DB db) {
+            _keys = combineDisjointKeys(this, getInputKeys(0), getInputKeys(1));
+            return;
         }
         public String toPrintString() {
             return "\\cross";
@@ -261,47 +889,72 @@ public abstract class RAXNode {
         }
         public String genViewDef(DB db)
             throws SQLException {
-            return "SELECT * FROM " + getChild(0).getViewName() +
-                " UNION SELECT * FROM " + getChild(1).getViewName();
+            return "SELECT * FROM " + genFromItem(0) +
+                " UNION SELECT * FROM " + genFromItem(1);
         }
         public String toPrintString() {
             return "\\union";
         }
     }
 
+    // Returns the condition under which a row of the first input (as
+    // alias1) and one of the second (as alias2) are the same, as set
+    // operations see them: comparing columns by position, with NULLs
+    // equal to each other.  The inputs should have been validated (or
+    // compiled) already, and have the same numbers of columns.
+    protected String genSameRowCondition(DB db, String alias1, String alias2)
+        throws SQLException, ValidateException {
+        DB.TableSchema input1Schema = getInputSchema(db, 0);
+        DB.TableSchema input2Schema = getInputSchema(db, 1);
+        String condition = "";
+        for (int i=0; i<input1Schema.getColNames().size(); i++) {
+            if (i>0) condition += " AND ";
+            condition += db.getDialect().genNullSafeEquals(alias1 + ".\"" + input1Schema.getColNames().get(i) + "\"",
+                                                           alias2 + ".\"" + input2Schema.getColNames().get(i) + "\"");
+        }
+        return condition;
+    }
+    protected boolean haveSameNumberOfColumns(DB db)
+        throws SQLException, ValidateException {
+        return getInputSchema(db, 0).getColNames().size() ==
+            getInputSchema(db, 1).getColNames().size();
+    }
+
     public static class DIFF extends RAXNode {
+        // Marks the rows of the second input in an anti-join, since
+        // the columns being matched may be NULL themselves:
+        protected static final String MATCH_COLUMN = "RA_MATCH";
         public DIFF(RAXNode input1, RAXNode input2) {
             super(new ArrayList<RAXNode>(Arrays.asList(input1, input2)));
         }
         public String genViewDef(DB db)
             throws SQLException, ValidateException {
-            if (db.getDriverName().equals("com.mysql.jdbc.Driver")) {
-                // MySQL doesn't support EXCEPT, so we need a workaround.
-                // First, get the input schema of the children, which
-                // should have already been validated so their views
-                // have been created at this point:
-                DB.TableSchema input1Schema = db.getTableSchema(getChild(0).getViewName());
-                DB.TableSchema input2Schema = db.getTableSchema(getChild(1).getViewName());
-                if (input1Schema.getColNames().size() !=
-                    input2Schema.getColNames().size()) {
-                    throw new ValidateException("taking the difference between relations with different numbers of columns", this);
-                }
-                String viewDef = "SELECT * FROM " + getChild(0).getViewName() +
-                    " WHERE NOT EXISTS (SELECT * FROM " + getChild(1).getViewName() +
-                    " WHERE ";
-                for (int i=0; i<input1Schema.getColNames().size(); i++) {
-                    if (i>0) viewDef += " AND ";
-                    viewDef += getChild(0).getViewName() + ".\"" +
-                        input1Schema.getColNames().get(i) + "\"=" +
-                        getChild(1).getViewName() + ".\"" +
-                        input2Schema.getColNames().get(i) + "\"";
-                }
-                viewDef += ")";
-                return viewDef;
+            if (db.getDialect().supportsExcept()) {
+                return "SELECT * FROM " + genFromItem(0) +
+                    " EXCEPT SELECT * FROM " + genFromItem(1);
+            }
+            // Otherwise, the rows of the first input that don't join
+            // with any in the second, which the database can do with
+            // a hash or merge join, rather than a subquery per row:
+            if (!haveSameNumberOfColumns(db)) {
+                throw new ValidateException("taking the difference between relations with different numbers of columns", this);
+            }
+            String alias1 = getFromItemName(0);
+            String alias2 = getFromItemName(1);
+            return "SELECT " + alias1 + ".* FROM " + genFromItem(0) +
+                " LEFT JOIN (SELECT 1 AS " + MATCH_COLUMN + ", " + alias2 + ".* FROM " + genFromItem(1) +
+                ") AS " + alias2 + " ON " + genSameRowCondition(db, alias1, alias2) +
+                " WHERE " + alias2 + "." + MATCH_COLUMN + " IS NULL";
+        }
+        protected void deriveKeys(DB db) {
+            // The output is a subset of the first input, which EXCEPT
+            // makes duplicate-free (but not the anti-join):
+            if (db.getDialect().supportsExcept()) {
+                _keys = getInputKeys(0);
             } else {
-                return "SELECT * FROM " + getChild(0).getViewName() +
-                    " EXCEPT SELECT * FROM " + getChild(1).getViewName();
+                _keys = getChild(0)._keys;
             }
+            return;
         }
         public String toPrintString() {
             return "\\diff";
@@ -314,33 +967,32 @@ public abstract class RAXNode {
         }
         public String genViewDef(DB db)
             throws SQLException, ValidateException {
-            if (db.getDriverName().equals("com.mysql.jdbc.Driver")) {
-                // MySQL doesn't support INTERSECT, so we need a workaround.
-                // First, get the input schema of the children, which
-                // should have already been validated so their views
-                // have been created at this point:
-                DB.TableSchema input1Schema = db.getTableSchema(getChild(0).getViewName());
-                DB.TableSchema input2Schema = db.getTableSchema(getChild(1).getViewName());
-                if (input1Schema.getColNames().size() !=
-                    input2Schema.getColNames().size()) {
-                    throw new ValidateException("intersecting relations with different numbers of columns", this);
-                }
-                String viewDef = "SELECT DISTINCT * FROM " + getChild(0).getViewName() +
-                    " WHERE EXISTS (SELECT * FROM " + getChild(1).getViewName() +
-                    " WHERE ";
-                for (int i=0; i<input1Schema.getColNames().size(); i++) {
-                    if (i>0) viewDef += " AND ";
-                    viewDef += getChild(0).getViewName() + ".\"" +
-                        input1Schema.getColNames().get(i) + "\"=" +
-                        getChild(1).getViewName() + ".\"" +
-                        input2Schema.getColNames().get(i) + "\"";
-                }
-                viewDef += ")";
-                return viewDef;
+            if (db.getDialect().supportsIntersect()) {
+                return "SELECT * FROM " + genFromItem(0) +
+                    " INTERSECT SELECT * FROM " + genFromItem(1);
+            }
+            // Otherwise, the rows of the first input that join with
+            // one in the second, made duplicate-free so that each
+            // row joins with at most one:
+            if (!haveSameNumberOfColumns(db)) {
+                throw new ValidateException("intersecting relations with different numbers of columns", this);
+            }
+            String alias1 = getFromItemName(0);
+            String alias2 = getFromItemName(1);
+            String fromItem2 = getChild(1).isDuplicateFree()? genFromItem(1) :
+                "(SELECT DISTINCT * FROM " + genFromItem(1, alias2) + ") AS " + alias2;
+            return "SELECT " + alias1 + ".* FROM " + genFromItem(0) +
+                " JOIN " + fromItem2 + " ON " + genSameRowCondition(db, alias1, alias2);
+        }
+        protected void deriveKeys(DB db) {
+            // A subset of the first input, which INTERSECT makes
+            // duplicate-free (but not the join):
+            if (db.getDialect().supportsIntersect()) {
+                _keys = getInputKeys(0);
             } else {
-                return "SELECT * FROM " + getChild(0).getViewName() +
-                    " INTERSECT SELECT * FROM " + getChild(1).getViewName();
+                _keys = getChild(0)._keys;
             }
+            return;
         }
         public String toPrintString() {
             return "\\intersect";
@@ -353,16 +1005,20 @@ public abstract class RAXNode {
             super(new ArrayList<RAXNode>(Arrays.asList(input)));
             _columns = columns;
         }
+        protected boolean canUseViewColumns(DB db) {
+            // Older SQLite doesn't allow view column names to be
+            // specified, and neither do derived tables on some
+            // databases:
+            return db.getDialect().supportsViewColumnLists() && !_derived;
+        }
         public String genViewDef(DB db)
             throws SQLException, ValidateException {
-            if (db.getDriverName().equals("org.sqlite.JDBC")) {
-                // SQLite doesn't allows view column names to be
-                // specified, so we have to dissect the list of new
-                // column names and build the SELECT clause.
+            if (!canUseViewColumns(db)) {
+                // We have to dissect the list of new column names and
+                // build the SELECT clause.
                 // First, get the input schema of the child, which
-                // should have already been validated so its view 
-                // has been created at this point:
-                DB.TableSchema inputSchema = db.getTableSchema(getChild(0).getViewName());
+                // should have already been validated at this point:
+                DB.TableSchema inputSchema = getInputSchema(db, 0);
                 // Next, parse the list of new column names:
                 List<String> columnNames = parseColumnNames(_columns);
                 if (inputSchema.getColNames().size() != columnNames.size()) {
@@ -374,24 +1030,149 @@ public abstract class RAXNode {
                     viewDef += "\"" + inputSchema.getColNames().get(i) +
                         "\" AS " + columnNames.get(i);
                 }
-                viewDef += " FROM " + getChild(0).getViewName();
+                viewDef += " FROM " + genFromItem(0);
                 return viewDef;
             } else {
-                return "SELECT * FROM " + getChild(0).getViewName();
+                return "SELECT * FROM " + genFromItem(0);
+            }
+        }
+        protected void deriveKeys(DB db) {
+            _keys = getChild(0)._keys;
+            // Rename the key columns, if the input's columns are known
+            // without probing:
+            DB.TableSchema inputSchema = getChild(0)._outputSchema;
+            if (_keys == null || _keys.isEmpty()) return;
+            List<String> columnNames = parseColumnNames(_columns.trim());
+            if (inputSchema == null || inputSchema.getColNames().size() != columnNames.size()) {
+                _keys = new ArrayList<Set<String>>();
+                return;
+            }
+            List<Set<String>> keys = new ArrayList<Set<String>>();
+            for (Set<String> key : _keys) {
+                Set<String> newKey = new HashSet<String>();
+                for (int i=0; i<columnNames.size(); i++) {
+                    if (key.contains(inputSchema.getColNames().get(i).toLowerCase())) {
+                        newKey.add(columnNames.get(i).toLowerCase());
+                    }
+                }
+                keys.add(newKey);
+            }
+            _keys = keys;
+            return;
+        }
+        public String genViewColumns(DB db) {
+            // See comments in genViewDef(DB):
+            return canUseViewColumns(db)? _columns : null;
+        }
+        public String toPrintString() {
+            return "\\rename_{" + _columns + "}";
+        }
+    }
+
+    // Sorting only means something for the final result, and for the
+    // input of \limit, which then returns the first rows in that order
+    // (see LIMIT); elsewhere, relations are sets and the order of their
+    // rows is lost.  The columns are an ORDER BY list, which refers to
+    // the columns of the input.
+    public static class SORT extends RAXNode {
+        protected String _columns;
+        public SORT(String columns, RAXNode input) {
+            super(new ArrayList<RAXNode>(Arrays.asList(input)));
+            _columns = columns;
+        }
+        public String genViewDef(DB db)
+            throws SQLException {
+            // The ORDER BY is checked here, even if the view itself
+            // is only ever read in some other order:
+            return "SELECT * FROM " + genFromItem(0) + " ORDER BY " + _columns;
+        }
+        // Duplicates have to be gone before the output goes anywhere
+        // that keeps its order (see LIMIT and genQuery()), where
+        // SELECT DISTINCT would not:
+        protected boolean needsDuplicateFreeInputs() {
+            return true;
+        }
+        protected void deriveKeys(DB db) {
+            _keys = getInputKeys(0);
+            return;
+        }
+        public String getOrderBy() {
+            return _columns;
+        }
+        public String toPrintString() {
+            return "\\sort_{" + _columns + "}";
+        }
+    }
+
+    // The first n rows of the input, in its order if it is sorted, or
+    // any n rows otherwise.  Over a \sort, the ORDER BY and the cutoff
+    // go into one query, so the database can pick the top rows as it
+    // goes (or read them off an index) instead of sorting everything.
+    public static class LIMIT extends RAXNode {
+        protected String _limit;
+        public LIMIT(String limit, RAXNode input) {
+            super(new ArrayList<RAXNode>(Arrays.asList(input)));
+            _limit = limit;
+        }
+        public LIMIT(long limit, RAXNode input) {
+            this(String.valueOf(limit), input);
+        }
+        // Returns the number of rows, or -1 if the option is not a
+        // non-negative integer:
+        public long getLimit() {
+            try {
+                long limit = Long.parseLong(_limit.trim());
+                return (limit < 0)? -1 : limit;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        public long getCheckedLimit()
+            throws ValidateException {
+            long limit = getLimit();
+            if (limit < 0) {
+                throw new ValidateException("\\limit needs a non-negative number of rows, not \"" +
+                                            _limit.trim() + "\"", this);
             }
+            return limit;
         }
-        public String genViewCreateStatement(DB db)
+        public String genViewDef(DB db)
             throws SQLException, ValidateException {
-            if (db.getDriverName().equals("org.sqlite.JDBC")) {
-                // See comments in genViewDef(DB):
-                return "CREATE VIEW " + _viewName + " AS " + genViewDef(db);
+            long limit = getCheckedLimit();
+            RAXNode child = getChild(0);
+            String query;
+            if (child instanceof SORT) {
+                // Straight from the input of the sort:
+                query = "SELECT * FROM " + child.genFromItem(0) + " ORDER BY " + child.getOrderBy();
+            } else if (child.getOrderBy() != null) {
+                query = "SELECT * FROM " + genFromItem(0) + " ORDER BY " + child.getOrderBy();
             } else {
-                return "CREATE VIEW " + _viewName + "(" + _columns + ") AS " +
-                    genViewDef(db);
+                query = "SELECT * FROM " + genFromItem(0);
             }
+            return db.getDialect().genLimit(query, limit);
+        }
+        // Otherwise, rows would be counted before duplicates are
+        // eliminated:
+        protected boolean needsDuplicateFreeInputs() {
+            return true;
+        }
+        protected void deriveKeys(DB db) {
+            _keys = getInputKeys(0);
+            return;
+        }
+        protected DB.TableSchema getKnownOutputSchema(DB db) {
+            // Same as the input, since the limit has been checked
+            // already (but not the ORDER BY of a sort under it, whose
+            // schema is only known once it has been probed):
+            DB.TableSchema inputSchema = getChild(0)._outputSchema;
+            if (inputSchema == null) return null;
+            return db.new TableSchema(_viewName, inputSchema.getColNames(), inputSchema.getColTypes());
+        }
+        public String getOrderBy() {
+            return getChild(0).getOrderBy();
         }
         public String toPrintString() {
-            return "\\rename_{" + _columns + "}";
+            return "\\limit_{" + _limit + "}";
         }
     }
 
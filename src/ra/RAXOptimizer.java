@@ -0,0 +1,512 @@
+package ra;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.sql.SQLException;
+
+// A rule-based rewriter for RAXNode trees, applied after construction
+// and before validation:
+// * conjunctive selection conditions are split and pushed down as far
+//   as possible (through joins, cross products, set operations,
+//   projections and renames);
+// * a selection over a cross product whose condition involves both
+//   inputs becomes a theta-join;
+// * under a projection, inputs to joins and cross products are
+//   projected down to the columns that are still needed;
+// * \limit (and the \sort under it, if any) is pushed below renaming
+//   and below projections that keep a key of their input, and copied
+//   into both inputs of a union, so that fewer rows reach the
+//   operators above.
+// Rewriting needs to know the output columns of subtrees; where they
+// cannot be inferred (or a condition is too complicated to analyze),
+// that part of the tree is simply left alone, so that validation
+// reports any error against the original expression.
+public class RAXOptimizer {
+
+    protected DB _db;
+    protected Map<RAXNode, List<String>> _columnsCache =
+        new IdentityHashMap<RAXNode, List<String>>();
+
+    public RAXOptimizer(DB db) {
+        _db = db;
+    }
+
+    public RAXNode optimize(RAXNode node) {
+        if (node instanceof RAXNode.SELECT) {
+            RAXNode.SELECT select = (RAXNode.SELECT)node;
+            return pushSelection(select.getChild(0),
+                                 SQLFragment.splitConjuncts(select._condition));
+        } else if (node instanceof RAXNode.PROJECT) {
+            RAXNode.PROJECT project = (RAXNode.PROJECT)node;
+            RAXNode input = optimize(project.getChild(0));
+            List<String> columnNames = SQLFragment.getSimpleColumnNames(project._columns);
+            if (columnNames != null) {
+                input = pruneColumns(input, lowerCase(columnNames));
+            }
+            return replaceChildren(node, input);
+        } else if (node instanceof RAXNode.LIMIT) {
+            RAXNode.LIMIT limit = (RAXNode.LIMIT)node;
+            RAXNode input = optimize(limit.getChild(0));
+            if (limit.getLimit() < 0) {
+                // Leave it to validation to report.
+                return replaceChildren(node, input);
+            }
+            return pushLimit(input, limit.getLimit());
+        } else {
+            return replaceChildren(node, optimizeChildren(node));
+        }
+    }
+
+    protected RAXNode[] optimizeChildren(RAXNode node) {
+        RAXNode[] children = new RAXNode[node.getNumChildren()];
+        for (int i=0; i<children.length; i++) {
+            children[i] = optimize(node.getChild(i));
+        }
+        return children;
+    }
+
+    // Returns a tree equivalent to node with all given conjuncts
+    // applied as selections.
+    protected RAXNode pushSelection(RAXNode node, List<String> conjuncts) {
+        List<String> remaining = new ArrayList<String>();
+        RAXNode result;
+        if (node instanceof RAXNode.SELECT) {
+            List<String> all = new ArrayList<String>(conjuncts);
+            all.addAll(SQLFragment.splitConjuncts(((RAXNode.SELECT)node)._condition));
+            return pushSelection(node.getChild(0), all);
+        } else if (node instanceof RAXNode.JOIN || node instanceof RAXNode.CROSS) {
+            result = pushSelectionIntoJoin(node, conjuncts, remaining);
+        } else if (node instanceof RAXNode.UNION ||
+                   node instanceof RAXNode.DIFF ||
+                   node instanceof RAXNode.INTERSECT) {
+            // Selection distributes over all set operations, as long
+            // as we refer to the columns of the second input by their
+            // own names:
+            List<String> columns1 = getColumns(node.getChild(0));
+            List<String> columns2 = getColumns(node.getChild(1));
+            List<String> pushed1 = new ArrayList<String>();
+            List<String> pushed2 = new ArrayList<String>();
+            Map<String, String> newNames = (columns1 == null || columns2 == null ||
+                                            columns1.size() != columns2.size())?
+                null : makeRenaming(columns1, columns2);
+            for (String conjunct : conjuncts) {
+                Set<String> referenced = SQLFragment.getReferencedColumns(conjunct);
+                if (newNames == null || referenced == null ||
+                    !lowerCase(columns1).containsAll(referenced)) {
+                    remaining.add(conjunct);
+                } else {
+                    pushed1.add(conjunct);
+                    pushed2.add(SQLFragment.renameColumns(conjunct, newNames));
+                }
+            }
+            result = replaceChildren(node,
+                                     pushSelection(node.getChild(0), pushed1),
+                                     pushSelection(node.getChild(1), pushed2));
+        } else if (node instanceof RAXNode.PROJECT) {
+            List<String> columnNames = SQLFragment.getSimpleColumnNames(((RAXNode.PROJECT)node)._columns);
+            List<String> pushed = new ArrayList<String>();
+            for (String conjunct : conjuncts) {
+                Set<String> referenced = SQLFragment.getReferencedColumns(conjunct);
+                if (columnNames == null || referenced == null ||
+                    !lowerCase(columnNames).containsAll(referenced)) {
+                    remaining.add(conjunct);
+                } else {
+                    pushed.add(conjunct);
+                }
+            }
+            RAXNode input = pushSelection(node.getChild(0), pushed);
+            if (columnNames != null) {
+                input = pruneColumns(input, lowerCase(columnNames));
+            }
+            result = replaceChildren(node, input);
+        } else if (node instanceof RAXNode.RENAME) {
+            List<String> newColumns = getColumns(node);
+            List<String> oldColumns = getColumns(node.getChild(0));
+            List<String> pushed = new ArrayList<String>();
+            Map<String, String> oldNames = (newColumns == null || oldColumns == null)?
+                null : makeRenaming(newColumns, oldColumns);
+            for (String conjunct : conjuncts) {
+                Set<String> referenced = SQLFragment.getReferencedColumns(conjunct);
+                if (oldNames == null || referenced == null ||
+                    !oldNames.keySet().containsAll(referenced)) {
+                    remaining.add(conjunct);
+                } else {
+                    pushed.add(SQLFragment.renameColumns(conjunct, oldNames));
+                }
+            }
+            result = replaceChildren(node, pushSelection(node.getChild(0), pushed));
+        } else {
+            remaining.addAll(conjuncts);
+            result = optimize(node);
+        }
+        if (remaining.isEmpty()) {
+            return result;
+        } else {
+            return new RAXNode.SELECT(SQLFragment.conjoin(remaining), result);
+        }
+    }
+
+    protected RAXNode pushSelectionIntoJoin(RAXNode node, List<String> conjuncts,
+                                            List<String> remaining) {
+        boolean natural = (node instanceof RAXNode.JOIN && ((RAXNode.JOIN)node)._condition == null);
+        List<String> columns1 = getColumns(node.getChild(0));
+        List<String> columns2 = getColumns(node.getChild(1));
+        List<String> pushed1 = new ArrayList<String>();
+        List<String> pushed2 = new ArrayList<String>();
+        List<String> spanning = new ArrayList<String>();
+        if (columns1 == null || columns2 == null) {
+            remaining.addAll(conjuncts);
+        } else {
+            Set<String> lowerColumns1 = new HashSet<String>(lowerCase(columns1));
+            Set<String> lowerColumns2 = new HashSet<String>(lowerCase(columns2));
+            for (String conjunct : conjuncts) {
+                Set<String> referenced = SQLFragment.getReferencedColumns(conjunct);
+                if (referenced == null || referenced.isEmpty()) {
+                    remaining.add(conjunct);
+                    continue;
+                }
+                boolean in1 = lowerColumns1.containsAll(referenced);
+                boolean in2 = lowerColumns2.containsAll(referenced);
+                if (natural) {
+                    // Columns shared by both inputs are equated, so a
+                    // condition on them can go to both sides:
+                    if (in1) pushed1.add(conjunct);
+                    if (in2) pushed2.add(conjunct);
+                    if (!in1 && !in2) remaining.add(conjunct);
+                } else if (in1 && in2) {
+                    // Ambiguous column references; leave them alone
+                    // so the error is reported as usual.
+                    remaining.add(conjunct);
+                } else if (in1) {
+                    pushed1.add(conjunct);
+                } else if (in2) {
+                    pushed2.add(conjunct);
+                } else if (isUnambiguous(referenced, lowerColumns1, lowerColumns2)) {
+                    spanning.add(conjunct);
+                } else {
+                    remaining.add(conjunct);
+                }
+            }
+        }
+        RAXNode input1 = pushSelection(node.getChild(0), pushed1);
+        RAXNode input2 = pushSelection(node.getChild(1), pushed2);
+        if (spanning.isEmpty()) {
+            return replaceChildren(node, input1, input2);
+        }
+        // The selection turns a cross product into a theta-join, or
+        // adds to the condition of an existing theta-join:
+        if (node instanceof RAXNode.JOIN) {
+            spanning.add(0, ((RAXNode.JOIN)node)._condition);
+        }
+        return new RAXNode.JOIN(SQLFragment.conjoin(spanning), input1, input2);
+    }
+
+    // Returns a tree equivalent to the first limit rows of node.
+    // Without a sort, any rows will do, so the limit can go below
+    // anything that neither drops rows nor merges them.
+    protected RAXNode pushLimit(RAXNode node, long limit) {
+        if (node instanceof RAXNode.LIMIT && ((RAXNode.LIMIT)node).getLimit() >= 0) {
+            return pushLimit(node.getChild(0), Math.min(limit, ((RAXNode.LIMIT)node).getLimit()));
+        } else if (node instanceof RAXNode.SORT) {
+            return pushSortedLimit(node.getChild(0), ((RAXNode.SORT)node)._columns, limit, true);
+        } else if (node instanceof RAXNode.RENAME ||
+                   (node instanceof RAXNode.PROJECT && keepsKey((RAXNode.PROJECT)node))) {
+            return replaceChildren(node, pushLimit(node.getChild(0), limit));
+        } else if (node instanceof RAXNode.UNION) {
+            // Either input may have enough rows by itself, but
+            // together they may have more than that:
+            return new RAXNode.LIMIT(limit,
+                                     replaceChildren(node,
+                                                     pushLimit(node.getChild(0), limit),
+                                                     pushLimit(node.getChild(1), limit)));
+        } else {
+            return new RAXNode.LIMIT(limit, node);
+        }
+    }
+
+    // Returns a tree equivalent to the first limit rows of node in the
+    // order given by columns (an ORDER BY list).  If the result should
+    // be in that order as well (ordered), the (few) rows left are
+    // sorted again wherever the limit is pushed below the top, since
+    // the operators in between don't keep the order.
+    protected RAXNode pushSortedLimit(RAXNode node, String columns, long limit, boolean ordered) {
+        Set<String> referenced = SQLFragment.getSortColumnNames(columns);
+        if (referenced == null) {
+            // Too complicated to analyze (and ORDER BY may refer to
+            // columns by position, which change under projection).
+        } else if (node instanceof RAXNode.PROJECT && keepsKey((RAXNode.PROJECT)node)) {
+            List<String> columnNames = SQLFragment.getSimpleColumnNames(((RAXNode.PROJECT)node)._columns);
+            if (lowerCase(columnNames).containsAll(referenced)) {
+                RAXNode result = replaceChildren(node, pushSortedLimit(node.getChild(0), columns, limit, false));
+                return ordered? new RAXNode.SORT(columns, result) : result;
+            }
+        } else if (node instanceof RAXNode.RENAME) {
+            List<String> newColumns = getColumns(node);
+            List<String> oldColumns = getColumns(node.getChild(0));
+            Map<String, String> oldNames = (newColumns == null || oldColumns == null)?
+                null : makeRenaming(newColumns, oldColumns);
+            if (oldNames != null && oldNames.keySet().containsAll(referenced)) {
+                String oldOrder = SQLFragment.renameColumns(columns, oldNames);
+                RAXNode result = replaceChildren(node, pushSortedLimit(node.getChild(0), oldOrder, limit, false));
+                return ordered? new RAXNode.SORT(columns, result) : result;
+            }
+        } else if (node instanceof RAXNode.UNION) {
+            // As for selections, the second input is sorted by its own
+            // column names:
+            List<String> columns1 = getColumns(node.getChild(0));
+            List<String> columns2 = getColumns(node.getChild(1));
+            Map<String, String> newNames = (columns1 == null || columns2 == null ||
+                                            columns1.size() != columns2.size())?
+                null : makeRenaming(columns1, columns2);
+            if (newNames != null && lowerCase(columns1).containsAll(referenced)) {
+                String order2 = SQLFragment.renameColumns(columns, newNames);
+                return new RAXNode.LIMIT(limit,
+                                         new RAXNode.SORT(columns,
+                                                          replaceChildren(node,
+                                                                          pushSortedLimit(node.getChild(0), columns, limit, false),
+                                                                          pushSortedLimit(node.getChild(1), order2, limit, false))));
+            }
+        }
+        return new RAXNode.LIMIT(limit, new RAXNode.SORT(columns, node));
+    }
+
+    // Whether a projection keeps all columns of a key of its input, so
+    // that no two rows of the input become one:
+    protected boolean keepsKey(RAXNode.PROJECT project) {
+        List<String> columnNames = SQLFragment.getSimpleColumnNames(project._columns);
+        List<Set<String>> keys = getKeys(project.getChild(0));
+        if (columnNames == null || keys == null) return false;
+        for (Set<String> key : keys) {
+            if (lowerCase(columnNames).containsAll(key)) return true;
+        }
+        return false;
+    }
+
+    protected boolean isUnambiguous(Set<String> referenced, Set<String> columns1, Set<String> columns2) {
+        for (String column : referenced) {
+            boolean in1 = columns1.contains(column);
+            boolean in2 = columns2.contains(column);
+            if (in1 == in2) return false;
+        }
+        return true;
+    }
+
+    // Returns a tree equivalent to node, except that its output may
+    // lack columns not in required (lower-cased names).  Projections
+    // are only introduced on inputs to joins and cross products, where
+    // narrower inputs make a difference.
+    protected RAXNode pruneColumns(RAXNode node, List<String> required) {
+        if (node instanceof RAXNode.JOIN || node instanceof RAXNode.CROSS) {
+            List<String> columns1 = getColumns(node.getChild(0));
+            List<String> columns2 = getColumns(node.getChild(1));
+            if (columns1 == null || columns2 == null) return node;
+            Set<String> needed = new HashSet<String>(required);
+            if (node instanceof RAXNode.JOIN) {
+                String condition = ((RAXNode.JOIN)node)._condition;
+                if (condition == null) {
+                    // Natural join columns must stay:
+                    Set<String> common = new HashSet<String>(lowerCase(columns1));
+                    common.retainAll(lowerCase(columns2));
+                    needed.addAll(common);
+                } else {
+                    Set<String> referenced = SQLFragment.getReferencedColumns(condition);
+                    if (referenced == null) return node;
+                    needed.addAll(referenced);
+                }
+            }
+            return replaceChildren(node,
+                                   projectInput(node.getChild(0), columns1, needed),
+                                   projectInput(node.getChild(1), columns2, needed));
+        } else if (node instanceof RAXNode.SELECT) {
+            Set<String> referenced = SQLFragment.getReferencedColumns(((RAXNode.SELECT)node)._condition);
+            if (referenced == null) return node;
+            Set<String> needed = new HashSet<String>(required);
+            needed.addAll(referenced);
+            return replaceChildren(node, pruneColumns(node.getChild(0), new ArrayList<String>(needed)));
+        } else {
+            return node;
+        }
+    }
+
+    protected RAXNode projectInput(RAXNode input, List<String> columns, Set<String> needed) {
+        List<String> kept = new ArrayList<String>();
+        for (String column : columns) {
+            if (needed.contains(column.toLowerCase())) kept.add(column);
+        }
+        input = pruneColumns(input, lowerCase(kept));
+        if (kept.size() == columns.size() || kept.isEmpty()) {
+            return input;
+        }
+        String projectColumns = "";
+        for (int i=0; i<kept.size(); i++) {
+            if (!SQLFragment.isSimpleIdentifier(kept.get(i))) return input;
+            if (i>0) projectColumns += ", ";
+            projectColumns += kept.get(i);
+        }
+        return new RAXNode.PROJECT(projectColumns, input);
+    }
+
+    // Infers the output column names of a subtree without validating
+    // it, or returns null if that is not possible.
+    protected List<String> getColumns(RAXNode node) {
+        if (_columnsCache.containsKey(node)) {
+            return _columnsCache.get(node);
+        }
+        List<String> columns = inferColumns(node);
+        _columnsCache.put(node, columns);
+        return columns;
+    }
+
+    protected List<String> inferColumns(RAXNode node) {
+        if (node instanceof RAXNode.TABLE) {
+            try {
+                return _db.getTableSchema(((RAXNode.TABLE)node)._tableName).getColNames();
+            } catch (SQLException e) {
+                // Leave it to validation to report.
+                return null;
+            }
+        } else if (node instanceof RAXNode.SELECT ||
+                   node instanceof RAXNode.SORT ||
+                   node instanceof RAXNode.LIMIT) {
+            return getColumns(node.getChild(0));
+        } else if (node instanceof RAXNode.PROJECT) {
+            return SQLFragment.getSimpleColumnNames(((RAXNode.PROJECT)node)._columns);
+        } else if (node instanceof RAXNode.RENAME) {
+            List<String> inputColumns = getColumns(node.getChild(0));
+            List<String> columns = SQLFragment.getSimpleColumnNames(((RAXNode.RENAME)node)._columns);
+            if (inputColumns == null || columns == null ||
+                inputColumns.size() != columns.size()) {
+                return null;
+            }
+            return columns;
+        } else if (node instanceof RAXNode.JOIN || node instanceof RAXNode.CROSS) {
+            List<String> columns1 = getColumns(node.getChild(0));
+            List<String> columns2 = getColumns(node.getChild(1));
+            if (columns1 == null || columns2 == null) return null;
+            List<String> columns = new ArrayList<String>(columns1);
+            if (node instanceof RAXNode.JOIN && ((RAXNode.JOIN)node)._condition == null) {
+                // Mirror RAXNode.JOIN.genViewDef(), which matches
+                // names exactly; bail out if the database might see
+                // things differently.
+                for (String column : columns2) {
+                    boolean exact = columns1.contains(column);
+                    boolean loose = lowerCase(columns1).contains(column.toLowerCase());
+                    if (exact != loose) return null;
+                    if (!exact) columns.add(column);
+                }
+            } else {
+                columns.addAll(columns2);
+            }
+            return columns;
+        } else {
+            // Set operations:
+            return getColumns(node.getChild(0));
+        }
+    }
+
+    // Infers keys (each a set of lower-cased column names) of the
+    // output of a subtree without validating it, as RAXNode.deriveKeys()
+    // does, or returns null if none are known.
+    protected List<Set<String>> getKeys(RAXNode node) {
+        if (node instanceof RAXNode.TABLE) {
+            List<Set<String>> keys = new ArrayList<Set<String>>();
+            try {
+                for (List<String> key : _db.getTableKeys(((RAXNode.TABLE)node)._tableName)) {
+                    keys.add(new HashSet<String>(lowerCase(key)));
+                }
+            } catch (SQLException e) {
+                // Leave it to validation to report.
+                return null;
+            }
+            return keys.isEmpty()? null : keys;
+        } else if (node instanceof RAXNode.SELECT ||
+                   node instanceof RAXNode.SORT ||
+                   node instanceof RAXNode.LIMIT) {
+            return getKeys(node.getChild(0));
+        } else if (node instanceof RAXNode.PROJECT) {
+            if (!keepsKey((RAXNode.PROJECT)node)) return null;
+            List<String> columnNames = lowerCase(SQLFragment.getSimpleColumnNames(((RAXNode.PROJECT)node)._columns));
+            List<Set<String>> keys = new ArrayList<Set<String>>();
+            for (Set<String> key : getKeys(node.getChild(0))) {
+                if (columnNames.containsAll(key)) keys.add(key);
+            }
+            return keys;
+        } else if (node instanceof RAXNode.RENAME) {
+            List<String> oldColumns = getColumns(node.getChild(0));
+            List<String> newColumns = getColumns(node);
+            List<Set<String>> inputKeys = getKeys(node.getChild(0));
+            if (oldColumns == null || newColumns == null || inputKeys == null) return null;
+            Map<String, String> newNames = makeRenaming(oldColumns, newColumns);
+            if (newNames == null) return null;
+            List<Set<String>> keys = new ArrayList<Set<String>>();
+            for (Set<String> key : inputKeys) {
+                Set<String> newKey = new HashSet<String>();
+                for (String column : key) {
+                    if (newNames.get(column) == null) return null;
+                    newKey.add(newNames.get(column).toLowerCase());
+                }
+                keys.add(newKey);
+            }
+            return keys;
+        } else {
+            return null;
+        }
+    }
+
+    // Maps the lower-cased names in from to the corresponding names in
+    // to, or returns null if that is not possible.
+    protected Map<String, String> makeRenaming(List<String> from, List<String> to) {
+        Map<String, String> renaming = new HashMap<String, String>();
+        for (int i=0; i<from.size(); i++) {
+            if (!SQLFragment.isSimpleIdentifier(to.get(i))) return null;
+            renaming.put(from.get(i).toLowerCase(), to.get(i));
+        }
+        return renaming;
+    }
+
+    protected static List<String> lowerCase(List<String> names) {
+        List<String> result = new ArrayList<String>();
+        for (String name : names) {
+            result.add(name.toLowerCase());
+        }
+        return result;
+    }
+
+    // Returns node itself if the children are unchanged, or a copy of
+    // it with the new children otherwise.
+    protected RAXNode replaceChildren(RAXNode node, RAXNode... children) {
+        boolean changed = false;
+        for (int i=0; i<children.length; i++) {
+            if (children[i] != node.getChild(i)) changed = true;
+        }
+        if (!changed) return node;
+        if (node instanceof RAXNode.SELECT) {
+            return new RAXNode.SELECT(((RAXNode.SELECT)node)._condition, children[0]);
+        } else if (node instanceof RAXNode.PROJECT) {
+            return new RAXNode.PROJECT(((RAXNode.PROJECT)node)._columns, children[0]);
+        } else if (node instanceof RAXNode.RENAME) {
+            return new RAXNode.RENAME(((RAXNode.RENAME)node)._columns, children[0]);
+        } else if (node instanceof RAXNode.SORT) {
+            return new RAXNode.SORT(((RAXNode.SORT)node)._columns, children[0]);
+        } else if (node instanceof RAXNode.LIMIT) {
+            return new RAXNode.LIMIT(((RAXNode.LIMIT)node)._limit, children[0]);
+        } else if (node instanceof RAXNode.JOIN) {
+            return new RAXNode.JOIN(((RAXNode.JOIN)node)._condition, children[0], children[1]);
+        } else if (node instanceof RAXNode.CROSS) {
+            return new RAXNode.CROSS(children[0], children[1]);
+        } else if (node instanceof RAXNode.UNION) {
+            return new RAXNode.UNION(children[0], children[1]);
+        } else if (node instanceof RAXNode.DIFF) {
+            return new RAXNode.DIFF(children[0], children[1]);
+        } else if (node instanceof RAXNode.INTERSECT) {
+            return new RAXNode.INTERSECT(children[0], children[1]);
+        } else {
+            throw new IllegalArgumentException("Unexpected node type: " + node.toPrintString());
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package ra;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Results of recently evaluated queries (-C), kept in memory so that
+// evaluating the same query again simply prints them.  Queries are
+// looked up by RAXNode.genCacheKey(), and a result is only reused if
+// the relations the query references still have the schemas they had
+// when it was cached.  \sqlexec commands (see DB.execCommands())
+// invalidate the results of queries that reference relations they
+// may modify; results of queries that reference views are invalidated
+// by any modification, since we don't know what the views depend on.
+// As with DB's schema cache, changes made by other programs are not
+// noticed.  The cache holds at most about getMaxBytes() bytes of
+// results, evicting the least recently used results beyond that.
+// One cache can be shared by the sessions of a DB.
+public class ResultCache {
+
+    public static class Result {
+        protected List<String> _colNames;
+        protected List<String> _colTypes;
+        protected List<Object[]> _rows;
+        public Result(List<String> colNames, List<String> colTypes, List<Object[]> rows) {
+            _colNames = colNames;
+            _colTypes = colTypes;
+            _rows = rows;
+        }
+        public List<String> getColNames() {
+            return _colNames;
+        }
+        public List<String> getColTypes() {
+            return _colTypes;
+        }
+        public List<Object[]> getRows() {
+            return _rows;
+        }
+    }
+
+    protected static class Entry {
+        protected Result _result;
+        protected long _size;
+        // The relations referenced, as named in the query, and their
+        // schemas (as printed) when the result was cached:
+        protected Map<String, String> _schemas;
+        // The same relations, as named by relationKey():
+        protected Set<String> _relationNames;
+        protected boolean _referencesViews;
+        public Entry(Result result, long size, Map<String, String> schemas,
+                     Set<String> relationNames, boolean referencesViews) {
+            _result = result;
+            _size = size;
+            _schemas = schemas;
+            _relationNames = relationNames;
+            _referencesViews = referencesViews;
+        }
+    }
+
+    // Collects a result as it is printed (see DB.printResultHeading()
+    // and friends).  Gives up if the result grows too big to cache.
+    public class Recorder {
+        protected long _generation;
+        protected List<String> _colNames = null;
+        protected List<String> _colTypes = null;
+        protected List<Object[]> _rows = new ArrayList<Object[]>();
+        protected long _size = 0;
+        protected boolean _tooBig = false;
+        protected Recorder(long generation) {
+            _generation = generation;
+        }
+        public void heading(List<String> colNames, List<String> colTypes) {
+            _colNames = new ArrayList<String>(colNames);
+            _colTypes = new ArrayList<String>(colTypes);
+            _size = estimateSize(_colNames) + estimateSize(_colTypes);
+            return;
+        }
+        public void row(Object[] row) {
+            if (_tooBig) return;
+            Object[] copy = new Object[row.length];
+            for (int i=0; i<row.length; i++) {
+                // Keep only what gets printed:
+                copy[i] = (row[i] instanceof DB.UnsupportedValue)? UNSUPPORTED : row[i];
+            }
+            _rows.add(copy);
+            _size += estimateSize(copy);
+            if (_size > _maxBytes) {
+                _tooBig = true;
+                _rows = null;
+            }
+            return;
+        }
+    }
+
+    protected static final DB.UnsupportedValue UNSUPPORTED = new DB.UnsupportedValue(null);
+
+    protected long _maxBytes;
+    protected long _bytes = 0;
+    // In order of last use, least recent first:
+    protected LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    // Incremented by every invalidation, so that results computed
+    // before one are not cached after it:
+    protected long _generation = 0;
+    protected int _hits = 0;
+    protected int _misses = 0;
+
+    public ResultCache(long maxBytes) {
+        _maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    public synchronized int getNumEntries() {
+        return _entries.size();
+    }
+
+    public synchronized int getHits() {
+        return _hits;
+    }
+
+    public synchronized int getMisses() {
+        return _misses;
+    }
+
+    public synchronized Recorder newRecorder() {
+        return new Recorder(_generation);
+    }
+
+    // Returns the cached result for the query with the given key, or
+    // null if there is none (or it may be out of date).
+    public Result lookup(DB db, String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = _entries.get(key);
+            if (entry == null) {
+                _misses++;
+                return null;
+            }
+        }
+        // Check the schemas without holding the lock, since this may
+        // take a trip to the database:
+        boolean current = true;
+        try {
+            for (Map.Entry<String, String> schema : entry._schemas.entrySet()) {
+                if (!db.getTableSchema(schema.getKey()).toPrintString().equals(schema.getValue())) {
+                    current = false;
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            current = false;
+        }
+        synchronized (this) {
+            if (!current) {
+                remove(key, entry);
+                _misses++;
+                return null;
+            }
+            _hits++;
+            return entry._result;
+        }
+    }
+
+    // Caches the result of the query rax (with the given key), as
+    // collected by recorder, unless the result is too big or the
+    // cache has been invalidated since the query started:
+    public void put(DB db, String key, RAXNode rax, Recorder recorder) {
+        if (recorder._tooBig || recorder._colNames == null) return;
+        ArrayList<RAXNode> nodes = new ArrayList<RAXNode>();
+        rax.collectPostOrder(nodes);
+        Map<String, String> schemas = new HashMap<String, String>();
+        Set<String> relationNames = new HashSet<String>();
+        boolean referencesViews = false;
+        long size = 2*key.length();
+        try {
+            for (RAXNode node : nodes) {
+                if (!(node instanceof RAXNode.TABLE)) continue;
+                String tableName = ((RAXNode.TABLE)node)._tableName;
+                if (schemas.containsKey(tableName)) continue;
+                String schema = db.getTableSchema(tableName).toPrintString();
+                schemas.put(tableName, schema);
+                relationNames.add(relationKey(tableName));
+                size += 2*(2*tableName.length() + schema.length());
+                if (db.isView(tableName)) referencesViews = true;
+            }
+        } catch (SQLException e) {
+            // Not worth caching then.
+            return;
+        }
+        size += recorder._size;
+        Result result = new Result(recorder._colNames, recorder._colTypes, recorder._rows);
+        synchronized (this) {
+            if (recorder._generation != _generation || size > _maxBytes) return;
+            remove(key, _entries.get(key));
+            _entries.put(key, new Entry(result, size, schemas, relationNames, referencesViews));
+            _bytes += size;
+            Iterator<Entry> it = _entries.values().iterator();
+            while (_bytes > _maxBytes && it.hasNext()) {
+                _bytes -= it.next()._size;
+                it.remove();
+            }
+        }
+        return;
+    }
+
+    // Forgets the results of queries that reference the given
+    // relations, or all results if relationNames is null:
+    public synchronized void invalidate(Set<String> relationNames) {
+        _generation++;
+        if (relationNames != null && relationNames.isEmpty()) return;
+        Set<String> keys = null;
+        if (relationNames != null) {
+            keys = new HashSet<String>();
+            for (String relationName : relationNames) {
+                keys.add(relationKey(relationName));
+            }
+        }
+        Iterator<Entry> it = _entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            boolean affected = (keys == null || entry._referencesViews);
+            if (!affected) {
+                for (String key : keys) {
+                    if (entry._relationNames.contains(key)) {
+                        affected = true;
+                        break;
+                    }
+                }
+            }
+            if (affected) {
+                _bytes -= entry._size;
+                it.remove();
+            }
+        }
+        return;
+    }
+
+    // Names relations for the sake of invalidation.  Some databases
+    // (e.g., SQLite) match even quoted names regardless of case, so
+    // case is ignored altogether; at worst, a few extra results are
+    // invalidated.
+    protected static String relationKey(String relationName) {
+        if (relationName.length() >= 2 && relationName.startsWith("\"") && relationName.endsWith("\"")) {
+            relationName = relationName.substring(1, relationName.length()-1);
+        }
+        return relationName.toLowerCase();
+    }
+
+    protected void remove(String key, Entry entry) {
+        if (entry != null && _entries.get(key) == entry) {
+            _entries.remove(key);
+            _bytes -= entry._size;
+        }
+        return;
+    }
+
+    // Rough estimates of how much memory values take up:
+    protected static long estimateSize(List<String> strings) {
+        long size = 16;
+        for (String s : strings) {
+            size += 8 + estimateSize(s);
+        }
+        return size;
+    }
+
+    protected static long estimateSize(Object[] row) {
+        long size = 16 + 8*row.length;
+        for (Object value : row) {
+            size += estimateSize(value);
+        }
+        return size;
+    }
+
+    protected static long estimateSize(Object value) {
+        if (value == null || value == UNSUPPORTED) {
+            return 0;
+        } else if (value instanceof String) {
+            return 40 + 2*((String)value).length();
+        } else if (value instanceof BigDecimal) {
+            return 64;
+        } else {
+            return 24;
+        }
+    }
+}
@@ -0,0 +1,851 @@
+package ra;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+// Writes query results to a file for other programs to read, as CSV,
+// JSON Lines, or a compact binary format (see the subclasses).  Rows
+// are encoded as they are read from the ResultSet, into a fixed-size
+// buffer that goes out through the file's channel whenever it fills
+// up, so memory use doesn't grow with the size of the result.  Each
+// column is read with the getter for its JDBC type, and encoded as
+// the corresponding kind of value (see Kind); types that have no
+// better match are read as strings.  Where the type of a column says
+// nothing about its values (as with SQLite, where values, not
+// columns, have types), each value is encoded according to what the
+// driver returns for it.  More than one result can be written to the
+// same file.
+public abstract class ResultExporter {
+
+    public static final int BUFFER_SIZE = 64*1024;
+
+    // How values are read and encoded; the ordinals are also the type
+    // codes of the binary format.  DYNAMIC values are read as objects,
+    // and encoded as one of the others, depending on their class:
+    public enum Kind {
+        BOOLEAN, INT, LONG, FLOAT, DOUBLE, DECIMAL, STRING, DATE, TIME, TIMESTAMP, BYTES, DYNAMIC
+    }
+
+    protected static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+
+    protected String _path;
+    protected FileOutputStream _file;
+    protected FileChannel _channel;
+    protected ByteBuffer _buffer;
+    protected long _numRows;
+
+    protected ResultExporter(String path)
+        throws IOException {
+        _path = path;
+        _file = new FileOutputStream(path);
+        _channel = _file.getChannel();
+        _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        _numRows = 0;
+        return;
+    }
+
+    // Creates the file at path (replacing what was there) for writing
+    // results in the given format (csv, jsonl or binary), or returns
+    // null if there is no such format:
+    public static ResultExporter open(String format, String path)
+        throws IOException {
+        format = format.trim().toLowerCase();
+        if (format.equals("csv")) {
+            return new CSV(path);
+        } else if (format.equals("jsonl") || format.equals("json")) {
+            return new JSONLines(path);
+        } else if (format.equals("binary")) {
+            return new Binary(path);
+        } else {
+            return null;
+        }
+    }
+
+    public static boolean isFormat(String format) {
+        format = format.trim().toLowerCase();
+        return format.equals("csv") || format.equals("jsonl") ||
+            format.equals("json") || format.equals("binary");
+    }
+
+    public String getPath() {
+        return _path;
+    }
+
+    // The number of rows written so far, to this file:
+    public long getNumRows() {
+        return _numRows;
+    }
+
+    public static Kind getKind(int type) {
+        switch (type) {
+        case Types.BIT:
+        case Types.BOOLEAN:
+            return Kind.BOOLEAN;
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+            return Kind.INT;
+        case Types.BIGINT:
+            return Kind.LONG;
+        case Types.REAL:
+            return Kind.FLOAT;
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            return Kind.DOUBLE;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            return Kind.DECIMAL;
+        case Types.DATE:
+            return Kind.DATE;
+        case Types.TIME:
+            return Kind.TIME;
+        case Types.TIMESTAMP:
+            return Kind.TIMESTAMP;
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+            return Kind.BYTES;
+        case Types.NULL:
+        case Types.OTHER:
+        case Types.JAVA_OBJECT:
+            return Kind.DYNAMIC;
+        default:
+            // Character types, and everything else (arrays, XML,
+            // intervals, driver-specific types, ...) that drivers can
+            // still turn into strings:
+            return Kind.STRING;
+        }
+    }
+
+    // Writes everything in rs, and returns the number of rows.
+    // staticTypes says whether the column types that rs reports hold
+    // for all values in the columns (see Dialect):
+    public long export(ResultSet rs, boolean staticTypes)
+        throws SQLException, IOException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        int numCols = rsmd.getColumnCount();
+        String[] colNames = new String[numCols];
+        Kind[] kinds = new Kind[numCols];
+        for (int i=1; i<=numCols; i++) {
+            colNames[i-1] = rsmd.getColumnName(i);
+            kinds[i-1] = staticTypes? getKind(rsmd.getColumnType(i)) : Kind.DYNAMIC;
+        }
+        beginResult(colNames, kinds);
+        long count = 0;
+        while (rs.next()) {
+            beginRow();
+            for (int i=1; i<=numCols; i++) {
+                writeColumn(rs, i, kinds[i-1]);
+            }
+            endRow();
+            count++;
+        }
+        endResult(count);
+        _numRows += count;
+        return count;
+    }
+
+    protected void writeColumn(ResultSet rs, int i, Kind kind)
+        throws SQLException, IOException {
+        switch (kind) {
+        case BOOLEAN: {
+            boolean value = rs.getBoolean(i);
+            if (rs.wasNull()) writeNull(i); else writeBoolean(i, value);
+            break;
+        }
+        case INT: {
+            int value = rs.getInt(i);
+            if (rs.wasNull()) writeNull(i); else writeInt(i, value);
+            break;
+        }
+        case LONG: {
+            long value = rs.getLong(i);
+            if (rs.wasNull()) writeNull(i); else writeLong(i, value);
+            break;
+        }
+        case FLOAT: {
+            float value = rs.getFloat(i);
+            if (rs.wasNull()) writeNull(i); else writeFloat(i, value);
+            break;
+        }
+        case DOUBLE: {
+            double value = rs.getDouble(i);
+            if (rs.wasNull()) writeNull(i); else writeDouble(i, value);
+            break;
+        }
+        case DECIMAL: {
+            BigDecimal value = rs.getBigDecimal(i);
+            if (value == null) writeNull(i); else writeDecimal(i, value);
+            break;
+        }
+        case DATE: {
+            java.sql.Date value = rs.getDate(i);
+            if (value == null) writeNull(i); else writeDate(i, value);
+            break;
+        }
+        case TIME: {
+            java.sql.Time value = rs.getTime(i);
+            if (value == null) writeNull(i); else writeTime(i, value);
+            break;
+        }
+        case TIMESTAMP: {
+            Timestamp value = rs.getTimestamp(i);
+            if (value == null) writeNull(i); else writeTimestamp(i, value);
+            break;
+        }
+        case BYTES: {
+            byte[] value = rs.getBytes(i);
+            if (value == null) writeNull(i); else writeBytes(i, value);
+            break;
+        }
+        case DYNAMIC:
+            writeObject(i, rs.getObject(i));
+            break;
+        default: {
+            String value = rs.getString(i);
+            if (value == null) writeNull(i); else writeString(i, value);
+            break;
+        }
+        }
+        return;
+    }
+
+    protected void writeObject(int i, Object value)
+        throws IOException {
+        if (value == null) {
+            writeNull(i);
+        } else if (value instanceof Boolean) {
+            writeKind(i, Kind.BOOLEAN);
+            writeBoolean(i, (Boolean)value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeKind(i, Kind.INT);
+            writeInt(i, ((Number)value).intValue());
+        } else if (value instanceof Long) {
+            writeKind(i, Kind.LONG);
+            writeLong(i, (Long)value);
+        } else if (value instanceof Float) {
+            writeKind(i, Kind.FLOAT);
+            writeFloat(i, (Float)value);
+        } else if (value instanceof Double) {
+            writeKind(i, Kind.DOUBLE);
+            writeDouble(i, (Double)value);
+        } else if (value instanceof BigDecimal) {
+            writeKind(i, Kind.DECIMAL);
+            writeDecimal(i, (BigDecimal)value);
+        } else if (value instanceof java.sql.Date) {
+            writeKind(i, Kind.DATE);
+            writeDate(i, (java.sql.Date)value);
+        } else if (value instanceof java.sql.Time) {
+            writeKind(i, Kind.TIME);
+            writeTime(i, (java.sql.Time)value);
+        } else if (value instanceof Timestamp) {
+            writeKind(i, Kind.TIMESTAMP);
+            writeTimestamp(i, (Timestamp)value);
+        } else if (value instanceof byte[]) {
+            writeKind(i, Kind.BYTES);
+            writeBytes(i, (byte[])value);
+        } else {
+            writeKind(i, Kind.STRING);
+            writeString(i, value.toString());
+        }
+        return;
+    }
+
+    // Says how the (non-NULL) value of a DYNAMIC column that follows
+    // is encoded, for formats that need to:
+    protected void writeKind(int i, Kind kind)
+        throws IOException {
+        return;
+    }
+
+    // What the formats do, with columns numbered from 1:
+    protected abstract void beginResult(String[] colNames, Kind[] kinds)
+        throws IOException;
+    protected abstract void beginRow()
+        throws IOException;
+    protected abstract void endRow()
+        throws IOException;
+    protected abstract void endResult(long count)
+        throws IOException;
+    protected abstract void writeNull(int i)
+        throws IOException;
+    protected abstract void writeBoolean(int i, boolean value)
+        throws IOException;
+    protected abstract void writeInt(int i, int value)
+        throws IOException;
+    protected abstract void writeLong(int i, long value)
+        throws IOException;
+    protected abstract void writeFloat(int i, float value)
+        throws IOException;
+    protected abstract void writeDouble(int i, double value)
+        throws IOException;
+    protected abstract void writeDecimal(int i, BigDecimal value)
+        throws IOException;
+    protected abstract void writeString(int i, String value)
+        throws IOException;
+    protected abstract void writeDate(int i, java.sql.Date value)
+        throws IOException;
+    protected abstract void writeTime(int i, java.sql.Time value)
+        throws IOException;
+    protected abstract void writeTimestamp(int i, Timestamp value)
+        throws IOException;
+    protected abstract void writeBytes(int i, byte[] value)
+        throws IOException;
+
+    public void close()
+        throws IOException {
+        try {
+            flush();
+        } finally {
+            _file.close();
+        }
+        return;
+    }
+
+    protected void flush()
+        throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+        return;
+    }
+
+    // Makes room for n bytes (at most BUFFER_SIZE) in the buffer:
+    protected void ensure(int n)
+        throws IOException {
+        if (_buffer.remaining() < n) flush();
+        return;
+    }
+
+    protected void put(byte b)
+        throws IOException {
+        if (!_buffer.hasRemaining()) flush();
+        _buffer.put(b);
+        return;
+    }
+
+    protected void put(byte[] b)
+        throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            if (!_buffer.hasRemaining()) flush();
+            int len = Math.min(b.length - off, _buffer.remaining());
+            _buffer.put(b, off, len);
+            off += len;
+        }
+        return;
+    }
+
+    // For strings known to be ASCII (numbers and such):
+    protected void putAscii(String s)
+        throws IOException {
+        ensure(s.length());
+        for (int i=0; i<s.length(); i++) {
+            _buffer.put((byte)s.charAt(i));
+        }
+        return;
+    }
+
+    // Encodes the character at s[i] (and the one after it, for a
+    // surrogate pair) in UTF-8; returns the index of the next one:
+    protected int putUTF8(String s, int i)
+        throws IOException {
+        char c = s.charAt(i);
+        ensure(4);
+        if (c < 0x80) {
+            _buffer.put((byte)c);
+        } else if (c < 0x800) {
+            _buffer.put((byte)(0xc0 | (c >> 6)));
+            _buffer.put((byte)(0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c) && i+1 < s.length() &&
+                   Character.isLowSurrogate(s.charAt(i+1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i+1));
+            _buffer.put((byte)(0xf0 | (cp >> 18)));
+            _buffer.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+            _buffer.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+            _buffer.put((byte)(0x80 | (cp & 0x3f)));
+            return i+2;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired; as String.getBytes() does:
+            _buffer.put((byte)'?');
+        } else {
+            _buffer.put((byte)(0xe0 | (c >> 12)));
+            _buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+            _buffer.put((byte)(0x80 | (c & 0x3f)));
+        }
+        return i+1;
+    }
+
+    protected void putUTF8(String s)
+        throws IOException {
+        int i = 0;
+        while (i < s.length()) {
+            i = putUTF8(s, i);
+        }
+        return;
+    }
+
+    protected void putHex(byte[] b)
+        throws IOException {
+        for (int i=0; i<b.length; i++) {
+            ensure(2);
+            _buffer.put(HEX_DIGITS[(b[i] >> 4) & 0xf]);
+            _buffer.put(HEX_DIGITS[b[i] & 0xf]);
+        }
+        return;
+    }
+
+    protected static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Text formats write most values the same way:
+    protected abstract static class Text extends ResultExporter {
+        protected Text(String path)
+            throws IOException {
+            super(path);
+        }
+        protected void writeBoolean(int i, boolean value)
+            throws IOException {
+            putAscii(value? "true" : "false");
+        }
+        protected void writeInt(int i, int value)
+            throws IOException {
+            putAscii(Integer.toString(value));
+        }
+        protected void writeLong(int i, long value)
+            throws IOException {
+            putAscii(Long.toString(value));
+        }
+        protected void writeFloat(int i, float value)
+            throws IOException {
+            putAscii(Float.toString(value));
+        }
+        protected void writeDouble(int i, double value)
+            throws IOException {
+            putAscii(Double.toString(value));
+        }
+        protected void writeDecimal(int i, BigDecimal value)
+            throws IOException {
+            putAscii(value.toPlainString());
+        }
+        protected void writeDate(int i, java.sql.Date value)
+            throws IOException {
+            putAscii(value.toString());
+        }
+        protected void writeTime(int i, java.sql.Time value)
+            throws IOException {
+            putAscii(value.toString());
+        }
+        protected void writeTimestamp(int i, Timestamp value)
+            throws IOException {
+            putAscii(value.toString());
+        }
+    }
+
+    // RFC 4180: a heading line with the column names, then one line
+    // per row, ending with CRLF.  Fields with commas, quotes or line
+    // breaks are quoted, with quotes doubled.  NULL is an empty field,
+    // and the empty string a quoted one ("").  Dates and times are in
+    // ISO 8601 (JDBC escape) format, and binary values in hex.
+    public static class CSV extends Text {
+        protected static final byte[] CRLF = ascii("\r\n");
+        public CSV(String path)
+            throws IOException {
+            super(path);
+        }
+        protected void beginResult(String[] colNames, Kind[] kinds)
+            throws IOException {
+            for (int i=0; i<colNames.length; i++) {
+                writeString(i+1, colNames[i]);
+            }
+            put(CRLF);
+        }
+        protected void beginRow() {
+        }
+        protected void endRow()
+            throws IOException {
+            put(CRLF);
+        }
+        protected void endResult(long count) {
+        }
+        protected void separate(int i)
+            throws IOException {
+            if (i>1) put((byte)',');
+        }
+        protected void writeNull(int i)
+            throws IOException {
+            separate(i);
+        }
+        protected void writeBoolean(int i, boolean value)
+            throws IOException {
+            separate(i);
+            super.writeBoolean(i, value);
+        }
+        protected void writeInt(int i, int value)
+            throws IOException {
+            separate(i);
+            super.writeInt(i, value);
+        }
+        protected void writeLong(int i, long value)
+            throws IOException {
+            separate(i);
+            super.writeLong(i, value);
+        }
+        protected void writeFloat(int i, float value)
+            throws IOException {
+            separate(i);
+            super.writeFloat(i, value);
+        }
+        protected void writeDouble(int i, double value)
+            throws IOException {
+            separate(i);
+            super.writeDouble(i, value);
+        }
+        protected void writeDecimal(int i, BigDecimal value)
+            throws IOException {
+            separate(i);
+            super.writeDecimal(i, value);
+        }
+        protected void writeDate(int i, java.sql.Date value)
+            throws IOException {
+            separate(i);
+            super.writeDate(i, value);
+        }
+        protected void writeTime(int i, java.sql.Time value)
+            throws IOException {
+            separate(i);
+            super.writeTime(i, value);
+        }
+        protected void writeTimestamp(int i, Timestamp value)
+            throws IOException {
+            separate(i);
+            super.writeTimestamp(i, value);
+        }
+        protected void writeBytes(int i, byte[] value)
+            throws IOException {
+            separate(i);
+            putHex(value);
+        }
+        protected void writeString(int i, String value)
+            throws IOException {
+            separate(i);
+            boolean quote = value.length() == 0;
+            for (int j=0; j<value.length() && !quote; j++) {
+                char c = value.charAt(j);
+                quote = (c == ',' || c == '"' || c == '\r' || c == '\n');
+            }
+            if (!quote) {
+                putUTF8(value);
+                return;
+            }
+            put((byte)'"');
+            int j = 0;
+            while (j < value.length()) {
+                if (value.charAt(j) == '"') put((byte)'"');
+                j = putUTF8(value, j);
+            }
+            put((byte)'"');
+        }
+    }
+
+    // One JSON object per row and line, with the columns as members,
+    // in order.  Numbers are JSON numbers (decimals exactly as stored),
+    // except for NaN and infinities, which are strings, as are dates
+    // and times (ISO 8601) and binary values (hex).
+    public static class JSONLines extends Text {
+        // The column names, quoted and followed by ":":
+        protected byte[][] _names;
+        public JSONLines(String path)
+            throws IOException {
+            super(path);
+        }
+        protected void beginResult(String[] colNames, Kind[] kinds) {
+            _names = new byte[colNames.length][];
+            for (int i=0; i<colNames.length; i++) {
+                _names[i] = utf8(quote(colNames[i]) + ":");
+            }
+        }
+        protected void beginRow()
+            throws IOException {
+            put((byte)'{');
+        }
+        protected void endRow()
+            throws IOException {
+            put((byte)'}');
+            put((byte)'\n');
+        }
+        protected void endResult(long count) {
+        }
+        protected void member(int i)
+            throws IOException {
+            if (i>1) put((byte)',');
+            put(_names[i-1]);
+        }
+        protected void writeNull(int i)
+            throws IOException {
+            member(i);
+            putAscii("null");
+        }
+        protected void writeBoolean(int i, boolean value)
+            throws IOException {
+            member(i);
+            super.writeBoolean(i, value);
+        }
+        protected void writeInt(int i, int value)
+            throws IOException {
+            member(i);
+            super.writeInt(i, value);
+        }
+        protected void writeLong(int i, long value)
+            throws IOException {
+            member(i);
+            super.writeLong(i, value);
+        }
+        protected void writeFloat(int i, float value)
+            throws IOException {
+            member(i);
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                putAscii("\"" + value + "\"");
+            } else {
+                super.writeFloat(i, value);
+            }
+        }
+        protected void writeDouble(int i, double value)
+            throws IOException {
+            member(i);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                putAscii("\"" + value + "\"");
+            } else {
+                super.writeDouble(i, value);
+            }
+        }
+        protected void writeDecimal(int i, BigDecimal value)
+            throws IOException {
+            member(i);
+            super.writeDecimal(i, value);
+        }
+        protected void writeDate(int i, java.sql.Date value)
+            throws IOException {
+            member(i);
+            putAscii("\"" + value + "\"");
+        }
+        protected void writeTime(int i, java.sql.Time value)
+            throws IOException {
+            member(i);
+            putAscii("\"" + value + "\"");
+        }
+        protected void writeTimestamp(int i, Timestamp value)
+            throws IOException {
+            member(i);
+            putAscii("\"" + value + "\"");
+        }
+        protected void writeBytes(int i, byte[] value)
+            throws IOException {
+            member(i);
+            put((byte)'"');
+            putHex(value);
+            put((byte)'"');
+        }
+        protected void writeString(int i, String value)
+            throws IOException {
+            member(i);
+            put((byte)'"');
+            int j = 0;
+            while (j < value.length()) {
+                char c = value.charAt(j);
+                if (c == '"' || c == '\\') {
+                    put((byte)'\\');
+                    put((byte)c);
+                    j++;
+                } else if (c < 0x20) {
+                    putAscii(escape(c));
+                    j++;
+                } else {
+                    j = putUTF8(value, j);
+                }
+            }
+            put((byte)'"');
+        }
+        protected static String escape(char c) {
+            switch (c) {
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\t': return "\\t";
+            case '\b': return "\\b";
+            case '\f': return "\\f";
+            default: return String.format("\\u%04x", (int)c);
+            }
+        }
+        protected static String quote(String s) {
+            StringBuilder sb = new StringBuilder("\"");
+            for (int j=0; j<s.length(); j++) {
+                char c = s.charAt(j);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(escape(c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+
+    // All numbers big-endian.  Each result starts with a heading:
+    //     int32 number of columns, then for each column
+    //     int32 length + UTF-8 bytes of its name, and a byte for its
+    //     kind (the ordinal of Kind);
+    // followed by the rows, each one
+    //     int32 length of the rest of the row, in bytes,
+    //     a bitmap of the columns that are NULL ((n+7)/8 bytes, the
+    //     first column in the lowest bit of the first byte),
+    //     and the values of the other columns, in order:
+    //         BOOLEAN: 1 byte (0 or 1), INT: int32, LONG: int64,
+    //         FLOAT: float32, DOUBLE: float64,
+    //         DECIMAL: int32 scale, then int32 length + bytes of the
+    //             unscaled value (two's complement),
+    //         STRING: int32 length + UTF-8 bytes,
+    //         DATE, TIME: int64 milliseconds since the epoch,
+    //         TIMESTAMP: int64 milliseconds since the epoch, then
+    //             int32 nanoseconds within the second,
+    //         BYTES: int32 length + bytes,
+    //         DYNAMIC: a byte for the kind of the value, then the
+    //             value as above;
+    // and ends with an int32 -1 where the next row would start.
+    public static class Binary extends ResultExporter {
+        // The row being encoded (which needs its length up front);
+        // it grows to fit the largest row:
+        protected ByteBuffer _row = ByteBuffer.allocate(1024);
+        protected int _numCols;
+        public Binary(String path)
+            throws IOException {
+            super(path);
+        }
+        protected void beginResult(String[] colNames, Kind[] kinds)
+            throws IOException {
+            _numCols = colNames.length;
+            ensure(4);
+            _buffer.putInt(colNames.length);
+            for (int i=0; i<colNames.length; i++) {
+                byte[] name = utf8(colNames[i]);
+                ensure(4);
+                _buffer.putInt(name.length);
+                put(name);
+                put((byte)kinds[i].ordinal());
+            }
+        }
+        protected void beginRow() {
+            _row.clear();
+            // The NULL bitmap, filled in by writeNull():
+            for (int i=0; i<(_numCols+7)/8; i++) {
+                _row.put((byte)0);
+            }
+        }
+        protected void endRow()
+            throws IOException {
+            _row.flip();
+            ensure(4);
+            _buffer.putInt(_row.remaining());
+            while (_row.hasRemaining()) {
+                if (!_buffer.hasRemaining()) flush();
+                int len = Math.min(_row.remaining(), _buffer.remaining());
+                _buffer.put(_row.array(), _row.position(), len);
+                _row.position(_row.position() + len);
+            }
+        }
+        protected void endResult(long count)
+            throws IOException {
+            ensure(4);
+            _buffer.putInt(-1);
+        }
+        // Makes room for n more bytes in the row:
+        protected void reserve(int n) {
+            if (_row.remaining() >= n) return;
+            ByteBuffer row = ByteBuffer.allocate(Math.max(2*_row.capacity(), _row.position() + n));
+            _row.flip();
+            row.put(_row);
+            _row = row;
+        }
+        protected void writeNull(int i) {
+            int j = (i-1)/8;
+            _row.put(j, (byte)(_row.get(j) | (1 << ((i-1)%8))));
+        }
+        protected void writeKind(int i, Kind kind) {
+            reserve(1);
+            _row.put((byte)kind.ordinal());
+        }
+        protected void writeBoolean(int i, boolean value) {
+            reserve(1);
+            _row.put((byte)(value? 1 : 0));
+        }
+        protected void writeInt(int i, int value) {
+            reserve(4);
+            _row.putInt(value);
+        }
+        protected void writeLong(int i, long value) {
+            reserve(8);
+            _row.putLong(value);
+        }
+        protected void writeFloat(int i, float value) {
+            reserve(4);
+            _row.putFloat(value);
+        }
+        protected void writeDouble(int i, double value) {
+            reserve(8);
+            _row.putDouble(value);
+        }
+        protected void writeDecimal(int i, BigDecimal value) {
+            byte[] unscaled = value.unscaledValue().toByteArray();
+            reserve(8 + unscaled.length);
+            _row.putInt(value.scale());
+            _row.putInt(unscaled.length);
+            _row.put(unscaled);
+        }
+        protected void writeString(int i, String value) {
+            writeBytes(i, utf8(value));
+        }
+        protected void writeDate(int i, java.sql.Date value) {
+            writeLong(i, value.getTime());
+        }
+        protected void writeTime(int i, java.sql.Time value) {
+            writeLong(i, value.getTime());
+        }
+        protected void writeTimestamp(int i, Timestamp value) {
+            reserve(12);
+            // getTime() includes the milliseconds of the nanoseconds:
+            _row.putLong(value.getTime());
+            _row.putInt(value.getNanos());
+        }
+        protected void writeBytes(int i, byte[] value) {
+            reserve(4 + value.length);
+            _row.putInt(value.length);
+            _row.put(value);
+        }
+    }
+}
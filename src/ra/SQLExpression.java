@@ -0,0 +1,917 @@
+package ra;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.sql.SQLException;
+
+// A small evaluator for the SQL expressions that appear in selection
+// and join conditions, projection lists and sort orders, used when
+// queries are evaluated inside ra (see RAXEvaluator).  It covers a
+// common subset of SQL: literals (numbers, strings, DATE '...', NULL,
+// TRUE, FALSE), column references, arithmetic, ||, comparisons, [NOT]
+// BETWEEN, [NOT] IN (list), [NOT] LIKE, IS [NOT] NULL, AND, OR, NOT,
+// and the functions LOWER, UPPER, LENGTH, ABS and COALESCE.  Anything
+// else is rejected when the expression is parsed.
+// Conditions follow SQL's three-valued logic, with null standing for
+// unknown.  Strings compare case-sensitively, as in PostgreSQL;
+// SQLite and MySQL by default may compare differently.
+public abstract class SQLExpression {
+
+    public static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public ParseException(String message) {
+            super(message);
+        }
+    }
+
+    // Evaluates the expression over a row whose columns are as given
+    // when the expression was parsed:
+    public abstract Object evaluate(Object[] row)
+        throws SQLException;
+
+    // Returns the (approximate) SQL type name of the result:
+    public abstract String getTypeName();
+
+    // If the expression is an equality between two columns, returns
+    // their indexes; otherwise returns null.
+    public int[] getEqualityColumns() {
+        return null;
+    }
+
+    public static SQLExpression parse(String text, List<String> colNames, List<String> colTypes)
+        throws ParseException {
+        Parser parser = new Parser(text, colNames, colTypes);
+        SQLExpression e = parser.parseOr();
+        parser.expectEnd();
+        return e;
+    }
+
+    // Parses a projection list, where each item is an expression,
+    // optionally followed by [AS] ALIAS, or *.  The names of the
+    // output columns are appended to outputNames.
+    public static List<SQLExpression> parseList(String text, List<String> colNames, List<String> colTypes,
+                                                List<String> outputNames)
+        throws ParseException {
+        Parser parser = new Parser(text, colNames, colTypes);
+        List<SQLExpression> list = new ArrayList<SQLExpression>();
+        do {
+            if (parser.accept("*")) {
+                for (int i=0; i<colNames.size(); i++) {
+                    list.add(new ColumnRef(i, colTypes.get(i)));
+                    outputNames.add(colNames.get(i));
+                }
+                continue;
+            }
+            int start = parser._pos;
+            SQLExpression e = parser.parseOr();
+            String name = parser.parseAlias();
+            if (name == null) {
+                name = (e instanceof ColumnRef)?
+                    colNames.get(((ColumnRef)e)._index) : parser.getText(start, parser._pos);
+            }
+            list.add(e);
+            outputNames.add(name);
+        } while (parser.accept(","));
+        parser.expectEnd();
+        return list;
+    }
+
+    // Parses an ORDER BY list, where each item is an expression (or
+    // the position of a column, counting from 1), optionally followed
+    // by ASC or DESC; whether each item is DESC is appended to
+    // descending.
+    public static List<SQLExpression> parseOrderBy(String text, List<String> colNames, List<String> colTypes,
+                                                   List<Boolean> descending)
+        throws ParseException {
+        Parser parser = new Parser(text, colNames, colTypes);
+        List<SQLExpression> list = new ArrayList<SQLExpression>();
+        do {
+            SQLFragment.Token token = parser.peek();
+            SQLFragment.Token next = parser.peek(1);
+            if (token != null && token.getType() == SQLFragment.TokenType.NUMBER &&
+                token.getText().matches("[0-9]+") &&
+                (next == null || next.getText().equals(",") ||
+                 next.isKeyword("asc") || next.isKeyword("desc"))) {
+                int position = Integer.parseInt(token.getText());
+                if (position < 1 || position > colNames.size()) {
+                    throw new ParseException("no column " + position + " to sort by in \"" + text.trim() + "\"");
+                }
+                parser._pos++;
+                list.add(new ColumnRef(position-1, colTypes.get(position-1)));
+            } else {
+                list.add(parser.parseOr());
+            }
+            if (parser.acceptKeyword("desc")) {
+                descending.add(true);
+            } else {
+                parser.acceptKeyword("asc");
+                descending.add(false);
+            }
+        } while (parser.accept(","));
+        parser.expectEnd();
+        return list;
+    }
+
+    public static boolean isTrue(Object value) {
+        return Boolean.TRUE.equals(value);
+    }
+
+    // Compares two values, returning null if either is NULL.  Numbers
+    // compare with numbers, and strings are converted to numbers or
+    // dates when compared with them.
+    public static Integer compare(Object a, Object b)
+        throws SQLException {
+        if (a instanceof DB.UnsupportedValue) a = ((DB.UnsupportedValue)a).getValue();
+        if (b instanceof DB.UnsupportedValue) b = ((DB.UnsupportedValue)b).getValue();
+        if (a == null || b == null) return null;
+        if (a instanceof Number && b instanceof String) {
+            b = toNumber(b);
+        } else if (a instanceof String && b instanceof Number) {
+            a = toNumber(a);
+        } else if (a instanceof java.util.Date && b instanceof String) {
+            b = toDate((String)b);
+        } else if (a instanceof String && b instanceof java.util.Date) {
+            a = toDate((String)a);
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return compareNumbers((Number)a, (Number)b);
+        } else if (a instanceof java.util.Date && b instanceof java.util.Date) {
+            long x = ((java.util.Date)a).getTime();
+            long y = ((java.util.Date)b).getTime();
+            return (x < y)? -1 : ((x == y)? 0 : 1);
+        } else if (a instanceof Comparable && a.getClass().equals(b.getClass())) {
+            @SuppressWarnings("unchecked")
+            int result = ((Comparable<Object>)a).compareTo(b);
+            return result;
+        } else {
+            throw new SQLException("cannot compare " + a + " with " + b, "42883");
+        }
+    }
+
+    // Returns a value such that two values are equal according to
+    // compare() if and only if their normalized forms are equal (as
+    // long as they are of the same kind), so they can be hashed.
+    public static Object normalize(Object value) {
+        if (value instanceof DB.UnsupportedValue) {
+            value = ((DB.UnsupportedValue)value).getValue();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number)value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) return Double.valueOf(d);
+            value = BigDecimal.valueOf(d);
+        } else if (value instanceof Number) {
+            value = toBigDecimal((Number)value);
+        } else if (value instanceof java.util.Date) {
+            return Long.valueOf(((java.util.Date)value).getTime());
+        }
+        if (value instanceof BigDecimal) {
+            BigDecimal d = (BigDecimal)value;
+            return (d.signum() == 0)? BigDecimal.ZERO : d.stripTrailingZeros();
+        }
+        return value;
+    }
+
+    protected static int compareNumbers(Number a, Number b) {
+        if (isApproximate(a) || isApproximate(b)) {
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        }
+        return toBigDecimal(a).compareTo(toBigDecimal(b));
+    }
+
+    protected static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer ||
+            value instanceof Short || value instanceof Byte;
+    }
+
+    protected static boolean isApproximate(Object value) {
+        return value instanceof Double || value instanceof Float;
+    }
+
+    protected static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal) {
+            return (BigDecimal)n;
+        } else if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger)n);
+        } else if (isApproximate(n)) {
+            return BigDecimal.valueOf(n.doubleValue());
+        } else {
+            return BigDecimal.valueOf(n.longValue());
+        }
+    }
+
+    protected static Number toNumber(Object value)
+        throws SQLException {
+        if (value instanceof DB.UnsupportedValue) {
+            value = ((DB.UnsupportedValue)value).getValue();
+        }
+        if (value instanceof Number) return (Number)value;
+        try {
+            return new BigDecimal(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("invalid number: " + value, "22018");
+        }
+    }
+
+    protected static java.sql.Date toDate(String value)
+        throws SQLException {
+        try {
+            return java.sql.Date.valueOf(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("invalid date: " + value, "22007");
+        }
+    }
+
+    protected static String toText(Object value) {
+        if (value instanceof DB.UnsupportedValue) {
+            value = ((DB.UnsupportedValue)value).getValue();
+        }
+        return value.toString();
+    }
+
+    // Type names are only used for display, so we just distinguish
+    // the broad categories:
+    protected static String numericTypeName(String type1, String type2) {
+        String t1 = (type1 == null)? "" : type1.toUpperCase();
+        String t2 = (type2 == null)? "" : type2.toUpperCase();
+        if (t1.matches(".*(DOUBLE|FLOAT|REAL).*") || t2.matches(".*(DOUBLE|FLOAT|REAL).*")) {
+            return "DOUBLE";
+        } else if (t1.contains("INT") && t2.contains("INT")) {
+            return "INTEGER";
+        } else {
+            return "DECIMAL";
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    protected static class Parser {
+        protected String _text;
+        protected List<SQLFragment.Token> _tokens;
+        protected List<Integer> _offsets;
+        protected int _pos;
+        protected List<String> _colNames;
+        protected List<String> _colTypes;
+        public Parser(String text, List<String> colNames, List<String> colTypes) {
+            _text = text;
+            _tokens = new ArrayList<SQLFragment.Token>();
+            _offsets = new ArrayList<Integer>();
+            int offset = 0;
+            for (SQLFragment.Token token : SQLFragment.tokenize(text)) {
+                if (token.getType() != SQLFragment.TokenType.WHITE_SPACE) {
+                    _tokens.add(token);
+                    _offsets.add(offset);
+                }
+                offset += token.getText().length();
+            }
+            _offsets.add(offset);
+            _pos = 0;
+            _colNames = colNames;
+            _colTypes = colTypes;
+        }
+        protected String getText(int from, int to) {
+            if (to == from) return "";
+            int end = _offsets.get(to-1) + _tokens.get(to-1).getText().length();
+            return _text.substring(_offsets.get(from), end);
+        }
+        protected SQLFragment.Token peek() {
+            return (_pos < _tokens.size())? _tokens.get(_pos) : null;
+        }
+        protected SQLFragment.Token peek(int ahead) {
+            return (_pos+ahead < _tokens.size())? _tokens.get(_pos+ahead) : null;
+        }
+        protected boolean accept(String symbol) {
+            SQLFragment.Token token = peek();
+            if (token != null && token.getType() == SQLFragment.TokenType.SYMBOL &&
+                token.getText().equals(symbol)) {
+                _pos++;
+                return true;
+            }
+            return false;
+        }
+        protected boolean acceptKeyword(String keyword) {
+            SQLFragment.Token token = peek();
+            if (token != null && token.isKeyword(keyword)) {
+                _pos++;
+                return true;
+            }
+            return false;
+        }
+        protected void expect(String symbol)
+            throws ParseException {
+            if (!accept(symbol)) throw unexpected();
+        }
+        protected void expectKeyword(String keyword)
+            throws ParseException {
+            if (!acceptKeyword(keyword)) throw unexpected();
+        }
+        protected void expectEnd()
+            throws ParseException {
+            if (peek() != null) throw unexpected();
+        }
+        protected ParseException unexpected() {
+            SQLFragment.Token token = peek();
+            if (token == null) {
+                return new ParseException("unexpected end of \"" + _text.trim() + "\"");
+            } else {
+                return new ParseException("unexpected \"" + token.getText() + "\" in \"" + _text.trim() + "\"");
+            }
+        }
+
+        protected String parseAlias()
+            throws ParseException {
+            boolean as = acceptKeyword("as");
+            SQLFragment.Token token = peek();
+            if (token != null && token.getType() == SQLFragment.TokenType.QUOTED_IDENTIFIER) {
+                _pos++;
+                return unquote(token.getText());
+            } else if (token != null && token.getType() == SQLFragment.TokenType.IDENTIFIER &&
+                       SQLFragment.isSimpleIdentifier(token.getText())) {
+                _pos++;
+                return token.getText();
+            } else if (as) {
+                throw unexpected();
+            }
+            return null;
+        }
+
+        protected SQLExpression parseOr()
+            throws ParseException {
+            SQLExpression e = parseAnd();
+            while (acceptKeyword("or")) {
+                e = new Or(e, parseAnd());
+            }
+            return e;
+        }
+        protected SQLExpression parseAnd()
+            throws ParseException {
+            SQLExpression e = parseNot();
+            while (acceptKeyword("and")) {
+                e = new And(e, parseNot());
+            }
+            return e;
+        }
+        protected SQLExpression parseNot()
+            throws ParseException {
+            if (acceptKeyword("not")) {
+                return new Not(parseNot());
+            }
+            return parsePredicate();
+        }
+        protected SQLExpression parsePredicate()
+            throws ParseException {
+            SQLExpression e = parseConcat();
+            SQLFragment.Token token = peek();
+            if (token == null) return e;
+            String text = token.getText();
+            if (token.getType() == SQLFragment.TokenType.SYMBOL &&
+                (text.equals("=") || text.equals("==") || text.equals("<>") || text.equals("!=") ||
+                 text.equals("<") || text.equals("<=") || text.equals(">") || text.equals(">="))) {
+                _pos++;
+                return new Comparison(text, e, parseConcat());
+            }
+            if (acceptKeyword("is")) {
+                boolean negated = acceptKeyword("not");
+                expectKeyword("null");
+                return new IsNull(e, negated);
+            }
+            boolean negated = false;
+            if (token.isKeyword("not")) {
+                SQLFragment.Token next = peek(1);
+                if (next != null && (next.isKeyword("between") || next.isKeyword("in") ||
+                                     next.isKeyword("like"))) {
+                    _pos++;
+                    negated = true;
+                }
+            }
+            SQLExpression result;
+            if (acceptKeyword("between")) {
+                SQLExpression low = parseConcat();
+                expectKeyword("and");
+                SQLExpression high = parseConcat();
+                result = new And(new Comparison(">=", e, low), new Comparison("<=", e, high));
+            } else if (acceptKeyword("in")) {
+                expect("(");
+                List<SQLExpression> list = new ArrayList<SQLExpression>();
+                do {
+                    list.add(parseConcat());
+                } while (accept(","));
+                expect(")");
+                result = new In(e, list);
+            } else if (acceptKeyword("like")) {
+                SQLExpression pattern = parseConcat();
+                SQLExpression escape = acceptKeyword("escape")? parseConcat() : null;
+                result = new Like(e, pattern, escape);
+            } else {
+                return e;
+            }
+            return negated? new Not(result) : result;
+        }
+        protected SQLExpression parseConcat()
+            throws ParseException {
+            SQLExpression e = parseAdditive();
+            while (accept("||")) {
+                e = new Concat(e, parseAdditive());
+            }
+            return e;
+        }
+        protected SQLExpression parseAdditive()
+            throws ParseException {
+            SQLExpression e = parseMultiplicative();
+            while (true) {
+                if (accept("+")) {
+                    e = new Arithmetic('+', e, parseMultiplicative());
+                } else if (accept("-")) {
+                    e = new Arithmetic('-', e, parseMultiplicative());
+                } else {
+                    return e;
+                }
+            }
+        }
+        protected SQLExpression parseMultiplicative()
+            throws ParseException {
+            SQLExpression e = parseUnary();
+            while (true) {
+                if (accept("*")) {
+                    e = new Arithmetic('*', e, parseUnary());
+                } else if (accept("/")) {
+                    e = new Arithmetic('/', e, parseUnary());
+                } else if (accept("%")) {
+                    e = new Arithmetic('%', e, parseUnary());
+                } else {
+                    return e;
+                }
+            }
+        }
+        protected SQLExpression parseUnary()
+            throws ParseException {
+            if (accept("-")) {
+                return new Arithmetic('-', new Literal(Long.valueOf(0), "INTEGER"), parseUnary());
+            } else if (accept("+")) {
+                return parseUnary();
+            }
+            return parsePrimary();
+        }
+        protected SQLExpression parsePrimary()
+            throws ParseException {
+            SQLFragment.Token token = peek();
+            if (token == null) throw unexpected();
+            String text = token.getText();
+            switch (token.getType()) {
+            case NUMBER:
+                _pos++;
+                return parseNumber(text);
+            case STRING:
+                _pos++;
+                return new Literal(unquote(text), "VARCHAR");
+            case QUOTED_IDENTIFIER:
+                _pos++;
+                return resolveColumn(unquote(text), true);
+            case SYMBOL:
+                if (accept("(")) {
+                    SQLExpression e = parseOr();
+                    expect(")");
+                    return e;
+                }
+                throw unexpected();
+            default:
+                break;
+            }
+            String lower = text.toLowerCase();
+            SQLFragment.Token next = peek(1);
+            if (SQLFragment.UNSUPPORTED_KEYWORDS.contains(lower) || lower.equals("case")) {
+                throw new ParseException("\"" + text + "\" is not supported in \"" + _text.trim() + "\"");
+            } else if (lower.equals("null")) {
+                _pos++;
+                return new Literal(null, "NULL");
+            } else if (lower.equals("true") || lower.equals("false")) {
+                _pos++;
+                return new Literal(Boolean.valueOf(lower), "BOOLEAN");
+            } else if (lower.equals("date") && next != null &&
+                       next.getType() == SQLFragment.TokenType.STRING) {
+                _pos += 2;
+                try {
+                    return new Literal(toDate(unquote(next.getText())), "DATE");
+                } catch (SQLException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            } else if (next != null && next.getText().equals("(")) {
+                _pos += 2;
+                List<SQLExpression> args = new ArrayList<SQLExpression>();
+                if (!accept(")")) {
+                    do {
+                        args.add(parseOr());
+                    } while (accept(","));
+                    expect(")");
+                }
+                return new Function(lower, args, this);
+            } else if (SQLFragment.KEYWORDS.contains(lower)) {
+                throw unexpected();
+            } else if (next != null && next.getText().equals(".")) {
+                throw new ParseException("qualified column names are not supported in \"" + _text.trim() + "\"");
+            }
+            _pos++;
+            return resolveColumn(text, false);
+        }
+        protected SQLExpression parseNumber(String text)
+            throws ParseException {
+            try {
+                if (text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+                    return new Literal(Double.valueOf(text), "DOUBLE");
+                } else if (text.indexOf('.') >= 0) {
+                    return new Literal(new BigDecimal(text), "DECIMAL");
+                } else {
+                    BigInteger value = new BigInteger(text);
+                    if (value.bitLength() < 64) {
+                        return new Literal(Long.valueOf(value.longValue()), "INTEGER");
+                    }
+                    return new Literal(new BigDecimal(value), "DECIMAL");
+                }
+            } catch (NumberFormatException e) {
+                throw new ParseException("invalid number \"" + text + "\"");
+            }
+        }
+        protected SQLExpression resolveColumn(String name, boolean quoted)
+            throws ParseException {
+            int found = -1;
+            for (int i=0; i<_colNames.size(); i++) {
+                String colName = _colNames.get(i);
+                if (quoted? colName.equals(name) : colName.equalsIgnoreCase(name)) {
+                    if (found >= 0) {
+                        throw new ParseException("column reference \"" + name + "\" is ambiguous");
+                    }
+                    found = i;
+                }
+            }
+            if (found < 0) {
+                throw new ParseException("column \"" + name + "\" does not exist");
+            }
+            return new ColumnRef(found, _colTypes.get(found));
+        }
+        protected static String unquote(String text) {
+            char quote = text.charAt(0);
+            String body = text.substring(1, text.endsWith(String.valueOf(quote)) && text.length() > 1?
+                                         text.length()-1 : text.length());
+            return body.replace("" + quote + quote, "" + quote);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////
+
+    protected static class Literal extends SQLExpression {
+        protected Object _value;
+        protected String _typeName;
+        public Literal(Object value, String typeName) {
+            _value = value;
+            _typeName = typeName;
+        }
+        public Object evaluate(Object[] row) {
+            return _value;
+        }
+        public String getTypeName() {
+            return _typeName;
+        }
+    }
+
+    protected static class ColumnRef extends SQLExpression {
+        protected int _index;
+        protected String _typeName;
+        public ColumnRef(int index, String typeName) {
+            _index = index;
+            _typeName = typeName;
+        }
+        public int getIndex() {
+            return _index;
+        }
+        public Object evaluate(Object[] row) {
+            return row[_index];
+        }
+        public String getTypeName() {
+            return _typeName;
+        }
+    }
+
+    protected static class Comparison extends SQLExpression {
+        protected String _op;
+        protected SQLExpression _left;
+        protected SQLExpression _right;
+        public Comparison(String op, SQLExpression left, SQLExpression right) {
+            _op = op;
+            _left = left;
+            _right = right;
+        }
+        public int[] getEqualityColumns() {
+            if ((_op.equals("=") || _op.equals("==")) &&
+                _left instanceof ColumnRef && _right instanceof ColumnRef) {
+                return new int[] { ((ColumnRef)_left)._index, ((ColumnRef)_right)._index };
+            }
+            return null;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Integer c = compare(_left.evaluate(row), _right.evaluate(row));
+            if (c == null) return null;
+            if (_op.equals("=") || _op.equals("==")) {
+                return c == 0;
+            } else if (_op.equals("<>") || _op.equals("!=")) {
+                return c != 0;
+            } else if (_op.equals("<")) {
+                return c < 0;
+            } else if (_op.equals("<=")) {
+                return c <= 0;
+            } else if (_op.equals(">")) {
+                return c > 0;
+            } else {
+                return c >= 0;
+            }
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class And extends SQLExpression {
+        protected SQLExpression _left;
+        protected SQLExpression _right;
+        public And(SQLExpression left, SQLExpression right) {
+            _left = left;
+            _right = right;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object l = _left.evaluate(row);
+            if (Boolean.FALSE.equals(l)) return Boolean.FALSE;
+            Object r = _right.evaluate(row);
+            if (Boolean.FALSE.equals(r)) return Boolean.FALSE;
+            return (l == null || r == null)? null : Boolean.TRUE;
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class Or extends SQLExpression {
+        protected SQLExpression _left;
+        protected SQLExpression _right;
+        public Or(SQLExpression left, SQLExpression right) {
+            _left = left;
+            _right = right;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object l = _left.evaluate(row);
+            if (Boolean.TRUE.equals(l)) return Boolean.TRUE;
+            Object r = _right.evaluate(row);
+            if (Boolean.TRUE.equals(r)) return Boolean.TRUE;
+            return (l == null || r == null)? null : Boolean.FALSE;
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class Not extends SQLExpression {
+        protected SQLExpression _input;
+        public Not(SQLExpression input) {
+            _input = input;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object v = _input.evaluate(row);
+            return (v == null)? null : Boolean.valueOf(!Boolean.TRUE.equals(v));
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class IsNull extends SQLExpression {
+        protected SQLExpression _input;
+        protected boolean _negated;
+        public IsNull(SQLExpression input, boolean negated) {
+            _input = input;
+            _negated = negated;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            return (_input.evaluate(row) == null) != _negated;
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class In extends SQLExpression {
+        protected SQLExpression _input;
+        protected List<SQLExpression> _list;
+        public In(SQLExpression input, List<SQLExpression> list) {
+            _input = input;
+            _list = list;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object v = _input.evaluate(row);
+            if (v == null) return null;
+            boolean unknown = false;
+            for (SQLExpression e : _list) {
+                Integer c = compare(v, e.evaluate(row));
+                if (c == null) {
+                    unknown = true;
+                } else if (c == 0) {
+                    return Boolean.TRUE;
+                }
+            }
+            return unknown? null : Boolean.FALSE;
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class Like extends SQLExpression {
+        protected SQLExpression _input;
+        protected SQLExpression _pattern;
+        protected SQLExpression _escape;
+        // The last pattern seen, which is usually a constant:
+        protected String _lastPattern = null;
+        protected String _lastEscape = null;
+        protected Pattern _lastRegex = null;
+        public Like(SQLExpression input, SQLExpression pattern, SQLExpression escape) {
+            _input = input;
+            _pattern = pattern;
+            _escape = escape;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object v = _input.evaluate(row);
+            Object p = _pattern.evaluate(row);
+            Object e = (_escape == null)? "" : _escape.evaluate(row);
+            if (v == null || p == null || e == null) return null;
+            String pattern = toText(p);
+            String escape = toText(e);
+            if (escape.length() > 1) {
+                throw new SQLException("invalid escape string: " + escape, "22025");
+            }
+            if (!pattern.equals(_lastPattern) || !escape.equals(_lastEscape)) {
+                _lastRegex = toRegex(pattern, escape);
+                _lastPattern = pattern;
+                _lastEscape = escape;
+            }
+            return _lastRegex.matcher(toText(v)).matches();
+        }
+        protected static Pattern toRegex(String pattern, String escape) {
+            StringBuilder regex = new StringBuilder();
+            for (int i=0; i<pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (escape.length() == 1 && c == escape.charAt(0) && i+1 < pattern.length()) {
+                    regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else if (c == '%') {
+                    regex.append(".*");
+                } else if (c == '_') {
+                    regex.append(".");
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+        public String getTypeName() {
+            return "BOOLEAN";
+        }
+    }
+
+    protected static class Concat extends SQLExpression {
+        protected SQLExpression _left;
+        protected SQLExpression _right;
+        public Concat(SQLExpression left, SQLExpression right) {
+            _left = left;
+            _right = right;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object l = _left.evaluate(row);
+            Object r = _right.evaluate(row);
+            if (l == null || r == null) return null;
+            return toText(l) + toText(r);
+        }
+        public String getTypeName() {
+            return "VARCHAR";
+        }
+    }
+
+    protected static class Arithmetic extends SQLExpression {
+        protected char _op;
+        protected SQLExpression _left;
+        protected SQLExpression _right;
+        public Arithmetic(char op, SQLExpression left, SQLExpression right) {
+            _op = op;
+            _left = left;
+            _right = right;
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            Object l = _left.evaluate(row);
+            Object r = _right.evaluate(row);
+            if (l == null || r == null) return null;
+            Number x = toNumber(l);
+            Number y = toNumber(r);
+            if ((_op == '/' || _op == '%') && compareNumbers(y, Long.valueOf(0)) == 0 &&
+                !isApproximate(x) && !isApproximate(y)) {
+                throw new SQLException("division by zero", "22012");
+            }
+            if (isIntegral(x) && isIntegral(y)) {
+                long a = x.longValue();
+                long b = y.longValue();
+                switch (_op) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default: return a % b;
+                }
+            } else if (isApproximate(x) || isApproximate(y)) {
+                double a = x.doubleValue();
+                double b = y.doubleValue();
+                switch (_op) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default: return a % b;
+                }
+            } else {
+                BigDecimal a = toBigDecimal(x);
+                BigDecimal b = toBigDecimal(y);
+                switch (_op) {
+                case '+': return a.add(b);
+                case '-': return a.subtract(b);
+                case '*': return a.multiply(b);
+                case '/': return a.divide(b, MathContext.DECIMAL64);
+                default: return a.remainder(b);
+                }
+            }
+        }
+        public String getTypeName() {
+            return numericTypeName(_left.getTypeName(), _right.getTypeName());
+        }
+    }
+
+    protected static class Function extends SQLExpression {
+        protected String _name;
+        protected List<SQLExpression> _args;
+        public Function(String name, List<SQLExpression> args, Parser parser)
+            throws ParseException {
+            _name = name;
+            _args = args;
+            int arity;
+            if (name.equals("lower") || name.equals("upper") ||
+                name.equals("length") || name.equals("abs")) {
+                arity = 1;
+            } else if (name.equals("coalesce")) {
+                arity = -1;
+            } else {
+                throw new ParseException("function " + name + "() is not supported in \"" +
+                                         parser._text.trim() + "\"");
+            }
+            if ((arity >= 0)? args.size() != arity : args.isEmpty()) {
+                throw new ParseException("wrong number of arguments to " + name + "()");
+            }
+        }
+        public Object evaluate(Object[] row)
+            throws SQLException {
+            if (_name.equals("coalesce")) {
+                for (SQLExpression arg : _args) {
+                    Object v = arg.evaluate(row);
+                    if (v != null) return v;
+                }
+                return null;
+            }
+            Object v = _args.get(0).evaluate(row);
+            if (v == null) return null;
+            if (_name.equals("lower")) {
+                return toText(v).toLowerCase();
+            } else if (_name.equals("upper")) {
+                return toText(v).toUpperCase();
+            } else if (_name.equals("length")) {
+                return Long.valueOf(toText(v).length());
+            } else {
+                Number n = toNumber(v);
+                if (isIntegral(n)) return Math.abs(n.longValue());
+                if (isApproximate(n)) return Math.abs(n.doubleValue());
+                return toBigDecimal(n).abs();
+            }
+        }
+        public String getTypeName() {
+            if (_name.equals("lower") || _name.equals("upper")) {
+                return "VARCHAR";
+            } else if (_name.equals("length")) {
+                return "INTEGER";
+            } else {
+                return _args.get(0).getTypeName();
+            }
+        }
+    }
+}
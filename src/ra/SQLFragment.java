@@ -0,0 +1,338 @@
+package ra;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Utilities for the SQL fragments (conditions and column lists) that
+// appear as operator options.  We don't attempt to parse SQL; we only
+// tokenize enough to tell identifiers apart from everything else, and
+// give up (returning null) whenever a fragment looks too complicated.
+public class SQLFragment {
+
+    public enum TokenType { WHITE_SPACE, IDENTIFIER, QUOTED_IDENTIFIER, STRING, NUMBER, SYMBOL }
+
+    public static class Token {
+        protected TokenType _type;
+        protected String _text;
+        public Token(TokenType type, String text) {
+            _type = type;
+            _text = text;
+        }
+        public TokenType getType() {
+            return _type;
+        }
+        public String getText() {
+            return _text;
+        }
+        public boolean isKeyword(String keyword) {
+            return _type == TokenType.IDENTIFIER && _text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    // Identifiers that are not column references:
+    protected static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "and", "or", "not", "null", "is", "in", "like", "ilike", "glob",
+            "regexp", "between", "escape", "true", "false", "unknown", "case",
+            "when", "then", "else", "end", "distinct", "from"
+        ));
+    // Identifiers that make a fragment too complicated to analyze
+    // (subqueries, casts, collations, and so on):
+    protected static final Set<String> UNSUPPORTED_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "select", "exists", "as", "cast", "collate", "over", "any", "all", "some"
+        ));
+
+    public static List<Token> tokenize(String sql) {
+        List<Token> tokens = new ArrayList<Token>();
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            int j = i+1;
+            TokenType type;
+            if (Character.isWhitespace(c)) {
+                while (j < n && Character.isWhitespace(sql.charAt(j))) j++;
+                type = TokenType.WHITE_SPACE;
+            } else if (Character.isLetter(c) || c == '_') {
+                while (j < n && (Character.isLetterOrDigit(sql.charAt(j)) ||
+                                 sql.charAt(j) == '_' || sql.charAt(j) == '$')) j++;
+                type = TokenType.IDENTIFIER;
+            } else if (Character.isDigit(c) ||
+                       (c == '.' && j < n && Character.isDigit(sql.charAt(j)))) {
+                while (j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.')) j++;
+                if (j < n && (sql.charAt(j) == 'e' || sql.charAt(j) == 'E')) {
+                    int k = j+1;
+                    if (k < n && (sql.charAt(k) == '+' || sql.charAt(k) == '-')) k++;
+                    if (k < n && Character.isDigit(sql.charAt(k))) {
+                        j = k;
+                        while (j < n && Character.isDigit(sql.charAt(j))) j++;
+                    }
+                }
+                type = TokenType.NUMBER;
+            } else if (c == '\'' || c == '"') {
+                // A doubled quote inside stands for the quote itself:
+                while (true) {
+                    while (j < n && sql.charAt(j) != c) j++;
+                    if (j+1 < n && sql.charAt(j+1) == c) {
+                        j += 2;
+                    } else {
+                        break;
+                    }
+                }
+                j = Math.min(j+1, n);
+                type = (c == '\'')? TokenType.STRING : TokenType.QUOTED_IDENTIFIER;
+            } else {
+                if (j < n) {
+                    String two = sql.substring(i, j+1);
+                    if (two.equals("<>") || two.equals("<=") || two.equals(">=") ||
+                        two.equals("!=") || two.equals("||") || two.equals("==")) {
+                        j++;
+                    }
+                }
+                type = TokenType.SYMBOL;
+            }
+            tokens.add(new Token(type, sql.substring(i, j)));
+            i = j;
+        }
+        return tokens;
+    }
+
+    public static String toString(List<Token> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (Token token : tokens) {
+            sb.append(token.getText());
+        }
+        return sb.toString();
+    }
+
+    // Drops white space between a symbol and something else, and
+    // shortens all other white space to a single space, so that
+    // fragments differing only in white space come out the same.
+    // White space inside strings and quoted identifiers is left alone.
+    public static String normalizeWhiteSpace(String sql) {
+        StringBuilder sb = new StringBuilder();
+        List<Token> tokens = tokenize(sql);
+        Token previous = null;
+        for (int i=0; i<tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.getType() == TokenType.WHITE_SPACE) continue;
+            if (previous != null &&
+                tokens.get(i-1).getType() == TokenType.WHITE_SPACE &&
+                (previous.getType() == TokenType.SYMBOL) == (token.getType() == TokenType.SYMBOL)) {
+                sb.append(' ');
+            }
+            sb.append(token.getText());
+            previous = token;
+        }
+        return sb.toString();
+    }
+
+    // Returns the index of the next non-white-space token at or after
+    // i, or tokens.size() if there is none:
+    protected static int skipWhiteSpace(List<Token> tokens, int i) {
+        while (i < tokens.size() && tokens.get(i).getType() == TokenType.WHITE_SPACE) i++;
+        return i;
+    }
+
+    // Checks whether the ":" at index i starts a parameter, like
+    // :price, as opposed to being part of a PostgreSQL cast (::):
+    protected static boolean isParameter(List<Token> tokens, int i) {
+        return tokens.get(i).getText().equals(":") &&
+            i+1 < tokens.size() && tokens.get(i+1).getType() == TokenType.IDENTIFIER &&
+            (i == 0 || !tokens.get(i-1).getText().equals(":"));
+    }
+
+    // Checks whether the identifier at index i refers to a column, as
+    // opposed to being a keyword, function name, type name, or the
+    // name of a parameter.
+    protected static boolean isColumnReference(List<Token> tokens, int i) {
+        Token token = tokens.get(i);
+        if (token.getType() != TokenType.IDENTIFIER) return false;
+        if (i > 0 && isParameter(tokens, i-1)) return false;
+        if (KEYWORDS.contains(token.getText().toLowerCase())) return false;
+        int next = skipWhiteSpace(tokens, i+1);
+        if (next < tokens.size()) {
+            Token nextToken = tokens.get(next);
+            // A function call:
+            if (nextToken.getText().equals("(")) return false;
+            // A typed literal, like DATE '2011-08-21':
+            if (nextToken.getType() == TokenType.STRING) return false;
+        }
+        return true;
+    }
+
+    // Returns the set of (lower-cased) column names referenced by a
+    // condition, or null if we cannot tell for sure.
+    public static Set<String> getReferencedColumns(String condition) {
+        List<Token> tokens = tokenize(condition);
+        Set<String> columns = new HashSet<String>();
+        for (int i=0; i<tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (isParameter(tokens, i)) {
+                // A parameter is not a column (see replaceParameters()):
+                i++;
+            } else if (token.getType() == TokenType.QUOTED_IDENTIFIER ||
+                token.getText().equals(".") || token.getText().equals(":") ||
+                token.getText().equals("?")) {
+                // Qualified names, quoted names, casts, and parameters
+                // we don't know about:
+                return null;
+            } else if (token.getType() == TokenType.IDENTIFIER &&
+                       UNSUPPORTED_KEYWORDS.contains(token.getText().toLowerCase())) {
+                return null;
+            } else if (isColumnReference(tokens, i)) {
+                columns.add(token.getText().toLowerCase());
+            }
+        }
+        return columns;
+    }
+
+    // Replaces column references in a condition according to the given
+    // map (whose keys are lower-cased old names).  The condition
+    // should have been checked with getReferencedColumns() first.
+    public static String renameColumns(String condition, Map<String, String> newNames) {
+        List<Token> tokens = tokenize(condition);
+        for (int i=0; i<tokens.size(); i++) {
+            if (!isColumnReference(tokens, i)) continue;
+            String newName = newNames.get(tokens.get(i).getText().toLowerCase());
+            if (newName != null) {
+                tokens.set(i, new Token(TokenType.IDENTIFIER, newName));
+            }
+        }
+        return toString(tokens);
+    }
+
+    // Replaces each parameter (e.g., :price) in sql with replacement,
+    // e.g., "?" for a JDBC PreparedStatement; if names is not null,
+    // the names of the parameters replaced are added to it in order,
+    // once for each occurrence.  Parameters are what RAEngine binds
+    // values to when executing a query; we take them to be a ":"
+    // directly followed by an identifier, outside of strings.
+    public static String replaceParameters(String sql, String replacement, List<String> names) {
+        List<Token> tokens = tokenize(sql);
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<tokens.size(); i++) {
+            if (isParameter(tokens, i)) {
+                if (names != null) names.add(tokens.get(i+1).getText());
+                sb.append(replacement);
+                i++;
+            } else {
+                sb.append(tokens.get(i).getText());
+            }
+        }
+        return sb.toString();
+    }
+
+    // Returns the names of the parameters in sql, in order, once for
+    // each occurrence:
+    public static List<String> getParameterNames(String sql) {
+        List<String> names = new ArrayList<String>();
+        replaceParameters(sql, "?", names);
+        return names;
+    }
+
+    // Checks whether a condition has OR at the top level (i.e., not
+    // inside parentheses or CASE ... END), in which case it must be
+    // parenthesized before being AND'ed with something else.
+    public static boolean hasTopLevelOr(String condition) {
+        int depth = 0;
+        for (Token token : tokenize(condition)) {
+            if (token.getText().equals("(") || token.isKeyword("case")) {
+                depth++;
+            } else if (token.getText().equals(")") || token.isKeyword("end")) {
+                depth--;
+            } else if (depth == 0 && token.isKeyword("or")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Splits a condition into its top-level conjuncts (ANDs inside
+    // parentheses or CASE ... END don't count).  A condition that is
+    // not a conjunction at the top level comes back as is.
+    public static List<String> splitConjuncts(String condition) {
+        List<String> conjuncts = new ArrayList<String>();
+        if (hasTopLevelOr(condition)) {
+            conjuncts.add(condition.trim());
+            return conjuncts;
+        }
+        List<Token> tokens = tokenize(condition);
+        int depth = 0;
+        int pendingBetweens = 0;
+        int start = 0;
+        for (int i=0; i<tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.getText().equals("(") || token.isKeyword("case")) {
+                depth++;
+            } else if (token.getText().equals(")") || token.isKeyword("end")) {
+                depth--;
+            } else if (depth == 0 && token.isKeyword("between")) {
+                pendingBetweens++;
+            } else if (depth == 0 && token.isKeyword("and")) {
+                if (pendingBetweens > 0) {
+                    // This AND belongs to BETWEEN ... AND ...
+                    pendingBetweens--;
+                } else {
+                    conjuncts.add(toString(tokens.subList(start, i)).trim());
+                    start = i+1;
+                }
+            }
+        }
+        conjuncts.add(toString(tokens.subList(start, tokens.size())).trim());
+        return conjuncts;
+    }
+
+    // The opposite of splitConjuncts():
+    public static String conjoin(List<String> conjuncts) {
+        String condition = "";
+        for (int i=0; i<conjuncts.size(); i++) {
+            if (i>0) condition += " AND ";
+            String conjunct = conjuncts.get(i);
+            if (conjuncts.size() > 1 && hasTopLevelOr(conjunct)) {
+                condition += "(" + conjunct + ")";
+            } else {
+                condition += conjunct;
+            }
+        }
+        return condition;
+    }
+
+    // Checks whether a column list consists of plain column names
+    // only, and if so, returns them; otherwise returns null.
+    public static List<String> getSimpleColumnNames(String columns) {
+        List<String> columnNames = new ArrayList<String>();
+        for (String columnName : RAXNode.parseColumnNames(columns.trim())) {
+            if (!isSimpleIdentifier(columnName)) return null;
+            columnNames.add(columnName);
+        }
+        return columnNames;
+    }
+
+    // Checks whether an ORDER BY list consists of plain column names
+    // only, each optionally followed by ASC or DESC, and if so, returns
+    // the (lower-cased) names; otherwise returns null.
+    public static Set<String> getSortColumnNames(String orderBy) {
+        Set<String> columnNames = new HashSet<String>();
+        for (String item : RAXNode.parseColumnNames(orderBy.trim())) {
+            String[] words = item.trim().split("\\s+");
+            if (words.length > 2 || !isSimpleIdentifier(words[0])) return null;
+            if (words.length == 2 &&
+                !words[1].equalsIgnoreCase("asc") && !words[1].equalsIgnoreCase("desc")) {
+                return null;
+            }
+            columnNames.add(words[0].toLowerCase());
+        }
+        return columnNames;
+    }
+
+    public static boolean isSimpleIdentifier(String name) {
+        List<Token> tokens = tokenize(name);
+        return tokens.size() == 1 && tokens.get(0).getType() == TokenType.IDENTIFIER &&
+            !KEYWORDS.contains(name.toLowerCase()) &&
+            !UNSUPPORTED_KEYWORDS.contains(name.toLowerCase());
+    }
+}
@@ -0,0 +1,149 @@
+package ra;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// The output stream behind a session transcript (-o), shared by the
+// tee'd output and error streams and the logged input stream, so that
+// everything ends up in the transcript in the order it happened.
+// Bytes are collected in memory and written to the underlying stream
+// by a background thread, a chunk at a time.  flush() does nothing,
+// because the streams writing into this one flush after every line
+// or even every byte; instead, the owner calls flushBuffered() at
+// statement boundaries, and close() when done.  At most
+// CHUNK_SIZE * (MAX_PENDING_CHUNKS + 1) bytes are held in memory;
+// writers wait if the background thread falls behind.  If writing
+// to the underlying stream fails, further output is discarded, and
+// the error is reported by the next flushBuffered() or close().
+public class TranscriptWriter extends OutputStream {
+
+    public static final int CHUNK_SIZE = 8192;
+    public static final int MAX_PENDING_CHUNKS = 64;
+    // Tells the background thread to stop:
+    protected static final byte[] END = new byte[0];
+
+    protected OutputStream _out;
+    protected byte[] _chunk;
+    protected int _chunkLength;
+    protected BlockingQueue<byte[]> _pending;
+    protected Thread _writerThread;
+    // The first error hit by the background thread, if any:
+    protected volatile IOException _error;
+    protected boolean _closed;
+
+    public TranscriptWriter(OutputStream out) {
+        _out = out;
+        _chunk = new byte[CHUNK_SIZE];
+        _chunkLength = 0;
+        _pending = new ArrayBlockingQueue<byte[]>(MAX_PENDING_CHUNKS);
+        _error = null;
+        _closed = false;
+        _writerThread = new Thread("ra-transcript-writer") {
+            public void run() {
+                writePending();
+            }
+        };
+        _writerThread.setDaemon(true);
+        _writerThread.start();
+        return;
+    }
+
+    protected void writePending() {
+        try {
+            while (true) {
+                byte[] chunk = _pending.take();
+                if (chunk == END) break;
+                if (_error != null) continue;
+                try {
+                    _out.write(chunk);
+                    if (_pending.isEmpty()) _out.flush();
+                } catch (IOException e) {
+                    // Keep draining the queue so writers don't get
+                    // stuck; the error is reported to them instead.
+                    _error = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Just stop.
+        }
+        return;
+    }
+
+    public synchronized void write(int b)
+        throws IOException {
+        ensureOpen();
+        if (_error != null) return;
+        if (_chunkLength == _chunk.length) handOff();
+        _chunk[_chunkLength++] = (byte)b;
+        return;
+    }
+
+    public synchronized void write(byte[] b, int off, int len)
+        throws IOException {
+        ensureOpen();
+        if (_error != null) return;
+        while (len > 0) {
+            if (_chunkLength == _chunk.length) handOff();
+            int n = Math.min(len, _chunk.length - _chunkLength);
+            System.arraycopy(b, off, _chunk, _chunkLength, n);
+            _chunkLength += n;
+            off += n;
+            len -= n;
+        }
+        return;
+    }
+
+    public void flush() {
+        // See comments at the top.
+        return;
+    }
+
+    // Hands whatever has been written so far to the background
+    // thread, without waiting for it to be written out:
+    public synchronized void flushBuffered()
+        throws IOException {
+        ensureOpen();
+        if (_error != null) throw _error;
+        if (_chunkLength > 0) handOff();
+        return;
+    }
+
+    // Writes out everything and closes the underlying stream:
+    public synchronized void close()
+        throws IOException {
+        if (_closed) return;
+        try {
+            if (_chunkLength > 0) handOff();
+            _pending.put(END);
+            _writerThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing transcript");
+        } finally {
+            _closed = true;
+            _out.close();
+        }
+        if (_error != null) throw _error;
+        return;
+    }
+
+    protected void ensureOpen()
+        throws IOException {
+        if (_closed) throw new IOException("Transcript already closed");
+        return;
+    }
+
+    protected void handOff()
+        throws IOException {
+        byte[] chunk = new byte[_chunkLength];
+        System.arraycopy(_chunk, 0, chunk, 0, _chunkLength);
+        _chunkLength = 0;
+        try {
+            _pending.put(chunk);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing transcript");
+        }
+        return;
+    }
+}
@@ -13,6 +13,24 @@ options {
     defaultErrorHandler = false;
 }
 
+tokens {
+    // For "\explain analyze"; note that this makes "analyze" a
+    // reserved word, which cannot be used as a relation name.
+    ANALYZE = "analyze";
+    // Produced by the EXPLAIN and LIST rules below:
+    EXPORT;
+    LIMIT;
+}
+
+{
+    // The session to prompt for more input through, if any (see
+    // RAScriptParser):
+    protected RA _session = null;
+    public void setSession(RA session) {
+        _session = session;
+    }
+}
+
 protected DIGIT: '0'..'9';
 protected ALPHA: ('a'..'z'|'A'..'Z');
 protected NEWLINE
@@ -33,7 +51,7 @@ protected NEWLINE
 //        {System.getProperty("line.separator").equals("\n")}? '\n' |
 //        {System.getProperty("line.separator").equals("\r\n")}? "\r\n") {
             newline();
-            RA.prompt(getLine());
+            if (_session != null) _session.prompt(getLine());
         }
     ;
 protected WHITE_SPACE_NO_NEWLINE : ' '|'\t'|'\f';
@@ -73,10 +91,21 @@ UNION : "\\union";
 DIFF : "\\diff";
 INTERSECT: "\\intersect";
 RENAME : "\\rename";
+SORT : "\\sort";
 SQLEXEC : "\\sqlexec";
-LIST : "\\list";
+// "\list" and "\limit" share a rule, as do "\explain" and "\export"
+// below:
+LIST
+    : "\\li" ( "st" | "mit" { $setType(LIMIT); } )
+    ;
 HELP : "\\help";
 QUIT : "\\quit";
+// "\explain" and "\export" only differ after the lookahead of three
+// characters, so they share a rule:
+EXPLAIN
+    : "\\exp" ( "lain" | "ort" { $setType(EXPORT); } )
+    ;
+STATS : "\\stats";
 OPERATOR_OPTION
     : "_{"! (INSIDE_OPERATOR_OPTION)* '}'!
     // Note that !'s above discard surrounding delimitors.
@@ -102,9 +131,17 @@ start
     // Note that ^'s above explicitly specify what the AST roots should be.
     | LIST STATEMENT_TERMINATOR!
     | HELP STATEMENT_TERMINATOR!
+    | STATS STATEMENT_TERMINATOR!
     | QUIT STATEMENT_TERMINATOR!
+    | EXPLAIN^ (ANALYZE)? expr STATEMENT_TERMINATOR!
+    | EXPORT^ OPERATOR_OPTION expr STATEMENT_TERMINATOR!
     | EOF
     ;
+// A single expression, as passed to RAEngine.prepare(), with or
+// without a terminator:
+query
+    : expr (STATEMENT_TERMINATOR!)? EOF!
+    ;
 // The following rules attempt to let antlr parse the entire
 // input, and handle error recovery by default.  However, there
 // are some issues with error recovery; upon encountering an
@@ -131,6 +168,8 @@ expr_unary
     | SELECT^ OPERATOR_OPTION expr_unary
     | PROJECT^ OPERATOR_OPTION expr_unary
     | RENAME^ OPERATOR_OPTION expr_unary
+    | SORT^ OPERATOR_OPTION expr_unary
+    | LIMIT^ OPERATOR_OPTION expr_unary
     ;
 expr
     : expr_unary ((JOIN^ (OPERATOR_OPTION)?|CROSS^|UNION^|DIFF^|INTERSECT^) expr_unary)*
@@ -172,6 +211,12 @@ expr returns [RAXNode r = null] {
     | #(RENAME rc:OPERATOR_OPTION input=expr) {
             r = new RAXNode.RENAME(rc.getText(), input);
         }
+    | #(SORT oc:OPERATOR_OPTION input=expr) {
+            r = new RAXNode.SORT(oc.getText(), input);
+        }
+    | #(LIMIT lc:OPERATOR_OPTION input=expr) {
+            r = new RAXNode.LIMIT(lc.getText(), input);
+        }
     | t:TABLE_NAME {
             r = new RAXNode.TABLE(t.getText());
         }